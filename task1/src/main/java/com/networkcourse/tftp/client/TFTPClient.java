@@ -5,20 +5,55 @@ import com.networkcourse.tftp.util.FileTransferUtil;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
 import java.util.Scanner;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * TFTP Client implementation using UDP.
  * Allows users to upload and download files from a TFTP server.
+ * Each transfer uses its own DatagramChannel, which is connected to the server's
+ * TID as soon as the first reply arrives, so later packets go to the session and
+ * packets from any other source are dropped by the kernel.
  */
 public class TFTPClient {
     private static final Logger LOGGER = Logger.getLogger(TFTPClient.class.getName());
+    private static final Consumer<SelectionKey> IGNORE_KEY = key -> { };
+    private static final long PROGRESS_INTERVAL_NANOS = 250_000_000L;
+    // Returned by a conditional download when the cached copy is current
+    private static final long NOT_MODIFIED = -1;
     
     private final String serverHost;
     private final int serverPort;
     private final Scanner scanner;
+    private final TransportProfileCache profileCache;
+    private final ContentCache contentCache;
+    
+    // Reused for every incoming packet; the view decodes DATA and ACK packets in place
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(TFTPConstants.MAX_PACKET_SIZE);
+    private final TFTPPacketView packetView = new TFTPPacketView();
+    
+    // DATA packets are sent as a gathering write of the header and the file data
+    private final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer dataBuffer = ByteBuffer.allocateDirect(TFTPConstants.MAX_DATA_SIZE);
+    private final ByteBuffer[] dataSegments = {headerBuffer, dataBuffer};
+    private final ByteBuffer ackView = EncodedPackets.newAckView();
+    private long lastProgressAt;
+    
+    // What conditional downloads saved, and the full downloads the time saved is estimated from
+    private long notModifiedCount;
+    private long bytesSaved;
+    private long nanosSaved;
+    private long bytesDownloaded;
+    private long downloadNanos;
     
     /**
      * Creates a new TFTP client.
@@ -27,15 +62,37 @@ public class TFTPClient {
      * @param serverPort The server port
      */
     public TFTPClient(String serverHost, int serverPort) {
+        this(serverHost, serverPort, new Scanner(System.in), new TransportProfileCache(), new ContentCache());
+    }
+    
+    /**
+     * Creates a client for transfers made by another program through {@link #download}, 
+     * without the console or the content cache.
+     * 
+     * @param serverHost The server hostname or IP address
+     * @param serverPort The server port
+     * @param profileCache The timeouts learned from servers, which clients may share
+     */
+    public TFTPClient(String serverHost, int serverPort, TransportProfileCache profileCache) {
+        this(serverHost, serverPort, null, profileCache, null);
+    }
+    
+    private TFTPClient(String serverHost, int serverPort, Scanner scanner, 
+                       TransportProfileCache profileCache, ContentCache contentCache) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
-        this.scanner = new Scanner(System.in);
+        this.scanner = scanner;
+        this.profileCache = profileCache;
+        this.contentCache = contentCache;
     }
     
     /**
      * Starts the client's interactive console.
      */
     public void start() {
+        if (scanner == null) {
+            throw new IllegalStateException("Client was created without a console");
+        }
         System.out.println("TFTP Client started");
         System.out.println("Server: " + serverHost + ":" + serverPort);
         
@@ -65,6 +122,10 @@ public class TFTPClient {
             }
         }
         
+        if (notModifiedCount > 0) {
+            System.out.println(notModifiedCount + " downloads served from the local cache, saving " 
+                    + bytesSaved + " bytes and about " + nanosSaved / 1_000_000 + " ms");
+        }
         System.out.println("TFTP Client exiting...");
     }
     
@@ -91,59 +152,37 @@ public class TFTPClient {
             
             System.out.println("Downloading " + remoteFile + " to " + localFile + "...");
             
-            // Create a datagram socket
-            try (DatagramSocket socket = new DatagramSocket()) {
-                // Set timeout
-                socket.setSoTimeout(TFTPConstants.SOCKET_TIMEOUT);
-                
-                // Create and send read request
-                TFTPRequestPacket rrqPacket = new TFTPRequestPacket(
-                        TFTPConstants.OP_RRQ, remoteFile, TFTPConstants.MODE_OCTET);
-                
-                byte[] rrqData = rrqPacket.serialize();
-                
-                InetAddress serverAddress = InetAddress.getByName(serverHost);
-                DatagramPacket outPacket = new DatagramPacket(
-                        rrqData, rrqData.length, serverAddress, serverPort);
-                
-                socket.send(outPacket);
-                
-                // Open output file
-                try (FileOutputStream fileOutputStream = new FileOutputStream(localFile)) {
-                    short expectedBlock = 1;
-                    boolean lastPacket = false;
-                    int totalBytes = 0;
-                    
-                    // Receive data packets until the file is completely received
-                    while (!lastPacket) {
-                        TFTPDataPacket dataPacket = receiveData(socket, expectedBlock);
-                        
-                        if (dataPacket == null) {
-                            System.out.println("Error: File transfer failed.");
-                            return;
-                        }
-                        
-                        // Write the data to the file
-                        FileTransferUtil.writeBlock(fileOutputStream, 
-                                dataPacket.getData(), dataPacket.getDataLength());
-                        
-                        totalBytes += dataPacket.getDataLength();
-                        
-                        // Send ACK for the block
-                        sendAck(socket, serverAddress, 
-                               ((InetSocketAddress) outPacket.getSocketAddress()).getPort(), 
-                               expectedBlock);
-                        
-                        // Check if this is the last packet
-                        lastPacket = dataPacket.isFinalPacket();
-                        expectedBlock++;
-                        
-                        // Update progress
-                        System.out.print("\rReceived " + totalBytes + " bytes");
+            // Ask for the file only if it has changed since it was cached
+            String server = serverHost + ":" + serverPort;
+            String cachedDigest = contentCache.digest(server, remoteFile);
+            long startedAt = System.nanoTime();
+            
+            // Open output file, and keep a copy of what arrives in the cache
+            try (FileOutputStream fileOutputStream = new FileOutputStream(localFile);
+                 ContentCache.Fill fill = contentCache.fill(server, remoteFile, fileOutputStream.getChannel())) {
+                long totalBytes = download(remoteFile, cachedDigest, fill, totalReceived -> {
+                    // Update progress, at most a few times a second
+                    if (progressDue()) {
+                        System.out.print("\rReceived " + totalReceived + " bytes");
                     }
-                    
+                });
+                
+                if (totalBytes == NOT_MODIFIED) {
+                    long size = contentCache.copyTo(server, remoteFile, fileOutputStream.getChannel());
+                    System.out.println("Not modified. " + size + " bytes copied from the local cache" 
+                            + recordNotModified(size, System.nanoTime() - startedAt) + ".");
+                } else {
+                    fill.commit();
+                    bytesDownloaded += totalBytes;
+                    downloadNanos += System.nanoTime() - startedAt;
                     System.out.println("\nDownload complete. " + totalBytes + " bytes received.");
                 }
+            } catch (TFTPErrorException e) {
+                System.out.println("Error from server: " + e.getMessage());
+                System.out.println("Error: File transfer failed.");
+            } catch (SocketTimeoutException e) {
+                System.out.println("Maximum retries reached, giving up");
+                System.out.println("Error: File transfer failed.");
             }
             
         } catch (IOException e) {
@@ -152,53 +191,203 @@ public class TFTPClient {
         }
     }
     
+    /**
+     * Downloads a file from the server.
+     * A client runs one transfer at a time; concurrent downloads need a client each.
+     * 
+     * @param remoteFile The name of the file on the server
+     * @param destination The channel to write the file to, as it arrives
+     * @return The size of the file in bytes
+     * @throws TFTPErrorException If the server answers with an error
+     * @throws SocketTimeoutException If the server stops answering
+     * @throws IOException If an I/O error occurs
+     */
+    public long download(String remoteFile, WritableByteChannel destination) throws IOException {
+        return download(remoteFile, null, destination, totalReceived -> { });
+    }
+    
+    /**
+     * Downloads a file from the server, reporting progress after every block.
+     * 
+     * @param remoteFile The name of the file on the server
+     * @param digest The digest of a copy the client has, to only download the file if it 
+     *               has changed, or null
+     * @param destination The channel to write the file to, as it arrives
+     * @param progress Called with the number of bytes received so far
+     * @return The size of the file in bytes, or NOT_MODIFIED if the copy is current
+     * @throws IOException If an I/O error occurs, the server answers with an error or stops answering
+     */
+    private long download(String remoteFile, String digest, WritableByteChannel destination, 
+                          LongConsumer progress) throws IOException {
+        // Create a datagram channel
+        try (DatagramChannel channel = openChannel(); 
+             Selector selector = openSelector(channel)) {
+            // Create and send read request
+            TFTPRequestPacket rrqPacket = new TFTPRequestPacket(
+                    TFTPConstants.OP_RRQ, remoteFile, TFTPConstants.MODE_OCTET, 
+                    TFTPRequestParser.OPTION_ABSENT, TFTPRequestParser.OPTION_ABSENT, 
+                    TFTPRequestParser.OPTION_ABSENT, TFTPRequestParser.OPTION_ABSENT, digest);
+            
+            InetAddress serverAddress = InetAddress.getByName(serverHost);
+            
+            // Warm-start the timeouts from earlier transfers with this server
+            RttEstimator rttEstimator = new RttEstimator(profileCache.get(serverAddress));
+            
+            ByteBuffer request = ByteBuffer.wrap(rrqPacket.serialize());
+            InetSocketAddress server = new InetSocketAddress(serverAddress, serverPort);
+            channel.send(request, server);
+            
+            short expectedBlock = 1;
+            boolean lastPacket = false;
+            long totalBytes = 0;
+            
+            // Receive data packets until the file is completely received
+            while (!lastPacket) {
+                TFTPPacketView dataPacket;
+                try {
+                    dataPacket = receiveData(channel, selector, request, server, expectedBlock, rttEstimator);
+                } catch (TFTPErrorException e) {
+                    // Servers that do not know the digest option ignore it and send the file
+                    if (digest != null && expectedBlock == 1 
+                            && e.getErrorCode() == TFTPConstants.ERR_NOT_MODIFIED) {
+                        return NOT_MODIFIED;
+                    }
+                    throw e;
+                }
+                
+                if (dataPacket == null) {
+                    throw new SocketTimeoutException("No data from server for block " + expectedBlock);
+                }
+                
+                // Write the payload straight from the receive buffer to the destination
+                int dataLength = dataPacket.getPayloadLength();
+                lastPacket = dataPacket.isFinalPacket();
+                FileTransferUtil.writeBlock(destination, dataPacket.payload());
+                
+                totalBytes += dataLength;
+                
+                // Send ACK for the block to the server's TID
+                sendAck(channel, expectedBlock);
+                
+                expectedBlock++;
+                progress.accept(totalBytes);
+            }
+            
+            if (rttEstimator.hasEstimate()) {
+                profileCache.put(serverAddress, rttEstimator.toProfile(TFTPConstants.MAX_DATA_SIZE, 1));
+            }
+            return totalBytes;
+        }
+    }
+    
+    /**
+     * Records a download answered from the cache, and estimates the time it saved from 
+     * the throughput of the full downloads so far.
+     * 
+     * @param size The size of the cached copy
+     * @param elapsedNanos The time the conditional request took
+     * @return A note on the time saved, empty if there is nothing to estimate from yet
+     */
+    private String recordNotModified(long size, long elapsedNanos) {
+        notModifiedCount++;
+        bytesSaved += size;
+        if (bytesDownloaded == 0) {
+            return "";
+        }
+        long saved = Math.max(0, (long) ((double) size * downloadNanos / bytesDownloaded) - elapsedNanos);
+        nanosSaved += saved;
+        return ", about " + saved / 1_000_000 + " ms saved";
+    }
+    
+    /**
+     * Gets the number of downloads answered from the local cache.
+     * 
+     * @return The not-modified count
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount;
+    }
+    
+    /**
+     * Gets the number of bytes not downloaded because the cached copy was current.
+     * 
+     * @return The byte count
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+    
+    /**
+     * Gets the estimated time saved by downloads answered from the local cache.
+     * 
+     * @return The time in milliseconds
+     */
+    public long getMillisSaved() {
+        return nanosSaved / 1_000_000;
+    }
+    
     /**
      * Receives a data packet from the server.
      * 
-     * @param socket The socket to receive on
+     * The packet the server is waiting for, the request or the ACK of the previous block, 
+     * is sent again on every timeout, and the ACK again for every duplicate of the previous 
+     * block, whose ACK the server has evidently not seen.
+     * 
+     * @param channel The channel to receive on
+     * @param selector The selector the channel is registered with
+     * @param request The read request, sent again if the server has not replied yet
+     * @param server The address the request was sent to
      * @param expectedBlock The expected block number
-     * @return The received data packet, or null if it could not be received
+     * @param rttEstimator The round-trip time estimator for this server
+     * @return A view of the received data packet, valid until the next receive, 
+     *         or null if the retries ran out
+     * @throws TFTPErrorException If the server sent an error
      * @throws IOException If an I/O error occurs
      */
-    private TFTPDataPacket receiveData(DatagramSocket socket, short expectedBlock) throws IOException {
-        byte[] buffer = new byte[TFTPConstants.MAX_PACKET_SIZE];
-        DatagramPacket inPacket = new DatagramPacket(buffer, buffer.length);
+    private TFTPPacketView receiveData(DatagramChannel channel, Selector selector, 
+                                       ByteBuffer request, InetSocketAddress server, 
+                                       short expectedBlock, RttEstimator rttEstimator) throws IOException {
+        long requestSentAt = System.nanoTime();
+        short previousBlock = (short) (expectedBlock - 1);
         
         for (int retry = 0; retry < TFTPConstants.MAX_RETRIES; retry++) {
-            try {
-                socket.receive(inPacket);
-                
-                // Parse the received packet
-                TFTPPacket receivedPacket = TFTPPacket.createFromBytes(inPacket.getData(), inPacket.getLength());
-                
-                if (receivedPacket.getOpcode() == TFTPConstants.OP_DATA) {
-                    TFTPDataPacket dataPacket = (TFTPDataPacket) receivedPacket;
-                    
-                    if (dataPacket.getBlockNumber() == expectedBlock) {
-                        // Got the expected data packet
-                        return dataPacket;
-                    } else {
-                        // Got a data packet with unexpected block number
-                        LOGGER.warning("Received data packet with wrong block number, expected " + 
-                                      expectedBlock + ", got " + dataPacket.getBlockNumber());
+            TFTPPacketView receivedPacket = receivePacket(channel, selector, server.getAddress(), 
+                                                          rttEstimator.getTimeout(retry));
+            
+            if (receivedPacket == null) {
+                LOGGER.info("Timeout waiting for data, retrying (" + (retry + 1) + "/" + 
+                            TFTPConstants.MAX_RETRIES + ")");
+                if (channel.isConnected()) {
+                    sendAck(channel, previousBlock);
+                } else {
+                    channel.send(request.rewind(), server);
+                }
+            } else if (receivedPacket.isData() && channel.isConnected() 
+                    && receivedPacket.getBlockNumber() == previousBlock) {
+                // The server resent the previous block, so our ACK of it was lost
+                sendAck(channel, previousBlock);
+            } else if (receivedPacket.isData()) {
+                if (receivedPacket.getBlockNumber() == expectedBlock) {
+                    // Got the expected data packet
+                    if (retry == 0) {
+                        rttEstimator.addSample((System.nanoTime() - requestSentAt) / 1e6);
+                    }
+                    return receivedPacket;
+                } else {
+                    // Got a data packet with unexpected block number; routine under loss, so only traced
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Received data packet with wrong block number, expected " + 
+                                    expectedBlock + ", got " + receivedPacket.getBlockNumber());
                     }
-                } else if (receivedPacket.getOpcode() == TFTPConstants.OP_ERROR) {
-                    // Server sent an error
-                    TFTPErrorPacket errorPacket = (TFTPErrorPacket) receivedPacket;
-                    System.out.println("Error from server: " + 
-                                     errorPacket.getErrorCode() + " - " + 
-                                     errorPacket.getErrorMessage());
-                    return null;
                 }
-                
-            } catch (SocketTimeoutException e) {
-                System.out.println("Timeout waiting for data, retrying (" + (retry + 1) + "/" + 
-                                 TFTPConstants.MAX_RETRIES + ")");
+            } else if (receivedPacket.getOpcode() == TFTPConstants.OP_ERROR) {
+                // Server sent an error
+                TFTPErrorPacket errorPacket = (TFTPErrorPacket) receivedPacket.toPacket();
+                throw new TFTPErrorException(errorPacket.getErrorCode(), errorPacket.getErrorMessage());
             }
         }
         
         // If we got here, we ran out of retries
-        System.out.println("Maximum retries reached, giving up");
         return null;
     }
     
@@ -225,51 +414,45 @@ public class TFTPClient {
             
             System.out.println("Uploading " + localFile + " to " + remoteFile + "...");
             
-            // Create a datagram socket
-            try (DatagramSocket socket = new DatagramSocket()) {
-                // Set timeout
-                socket.setSoTimeout(TFTPConstants.SOCKET_TIMEOUT);
-                
+            // Create a datagram channel
+            try (DatagramChannel channel = openChannel(); 
+                 Selector selector = openSelector(channel)) {
                 // Create and send write request
                 TFTPRequestPacket wrqPacket = new TFTPRequestPacket(
                         TFTPConstants.OP_WRQ, remoteFile, TFTPConstants.MODE_OCTET);
                 
-                byte[] wrqData = wrqPacket.serialize();
-                
                 InetAddress serverAddress = InetAddress.getByName(serverHost);
-                DatagramPacket outPacket = new DatagramPacket(
-                        wrqData, wrqData.length, serverAddress, serverPort);
                 
-                socket.send(outPacket);
+                // Warm-start the timeouts from earlier transfers with this server
+                RttEstimator rttEstimator = new RttEstimator(profileCache.get(serverAddress));
                 
-                // Wait for initial ACK
-                TFTPAckPacket ackPacket = receiveAck(socket, (short) 0);
+                channel.send(ByteBuffer.wrap(wrqPacket.serialize()), 
+                             new InetSocketAddress(serverAddress, serverPort));
                 
-                if (ackPacket == null) {
+                // Wait for initial ACK; this also connects the channel to the server's TID
+                if (!receiveAck(channel, selector, serverAddress, (short) 0, rttEstimator.getTimeout(0))) {
                     System.out.println("Error: Failed to receive initial acknowledgment.");
                     return;
                 }
                 
-                // Remember server's TID (port)
-                int serverTID = ((InetSocketAddress) outPacket.getSocketAddress()).getPort();
-                
                 // Open input file
                 try (FileInputStream fileInputStream = new FileInputStream(localFile)) {
-                    byte[] buffer = new byte[TFTPConstants.MAX_DATA_SIZE];
+                    FileChannel fileChannel = fileInputStream.getChannel();
                     short blockNumber = 1;
                     int bytesRead;
                     int totalBytes = 0;
                     
                     // Read and send blocks until the file is completely sent
                     do {
-                        // Read a block from the file
-                        bytesRead = FileTransferUtil.readBlock(fileInputStream, buffer, TFTPConstants.MAX_DATA_SIZE);
+                        // Read a block from the file straight into the direct data buffer
+                        dataBuffer.clear();
+                        bytesRead = FileTransferUtil.readBlock(fileChannel, dataBuffer);
                         
                         if (bytesRead >= 0) {
-                            // Create and send data packet
-                            TFTPDataPacket dataPacket = new TFTPDataPacket(blockNumber, buffer, bytesRead);
-                            boolean success = sendDataAndWaitForAck(socket, serverAddress, serverTID, 
-                                                                  dataPacket, blockNumber);
+                            // Send data packet
+                            dataBuffer.flip();
+                            boolean success = sendDataAndWaitForAck(channel, selector, serverAddress, 
+                                                                  blockNumber, rttEstimator);
                             
                             if (!success) {
                                 System.out.println("Error: Failed to send data block " + blockNumber);
@@ -279,13 +462,19 @@ public class TFTPClient {
                             totalBytes += bytesRead;
                             blockNumber++;
                             
-                            // Update progress
-                            System.out.print("\rSent " + totalBytes + " bytes");
+                            // Update progress, at most a few times a second
+                            if (progressDue()) {
+                                System.out.print("\rSent " + totalBytes + " bytes");
+                            }
                         }
                     } while (bytesRead == TFTPConstants.MAX_DATA_SIZE);
                     
                     System.out.println("\nUpload complete. " + totalBytes + " bytes sent.");
                 }
+                
+                if (rttEstimator.hasEstimate()) {
+                    profileCache.put(serverAddress, rttEstimator.toProfile(TFTPConstants.MAX_DATA_SIZE, 1));
+                }
             }
             
         } catch (IOException e) {
@@ -296,33 +485,36 @@ public class TFTPClient {
     
     /**
      * Sends a data packet and waits for an acknowledgment.
+     * The block data is taken from the data buffer, between its position and limit.
      * 
-     * @param socket The socket to use
+     * @param channel The channel to use, connected to the server's TID
+     * @param selector The selector the channel is registered with
      * @param serverAddress The server address
-     * @param serverPort The server port
-     * @param dataPacket The data packet to send
-     * @param expectedBlock The expected block number for the ACK
+     * @param expectedBlock The block number, also expected in the ACK
+     * @param rttEstimator The round-trip time estimator for this server
      * @return true if the data was acknowledged, false otherwise
      * @throws IOException If an I/O error occurs
      */
-    private boolean sendDataAndWaitForAck(DatagramSocket socket, InetAddress serverAddress, 
-                                         int serverPort, TFTPDataPacket dataPacket, 
-                                         short expectedBlock) throws IOException {
-        byte[] serializedData = dataPacket.serialize();
-        DatagramPacket outPacket = new DatagramPacket(
-                serializedData, 
-                serializedData.length,
-                serverAddress,
-                serverPort);
+    private boolean sendDataAndWaitForAck(DatagramChannel channel, Selector selector, 
+                                         InetAddress serverAddress, short expectedBlock, 
+                                         RttEstimator rttEstimator) throws IOException {
+        headerBuffer.clear();
+        TFTPDataPacket.encodeHeader(headerBuffer, 0, expectedBlock);
+        int dataStart = dataBuffer.position();
         
         for (int retry = 0; retry < TFTPConstants.MAX_RETRIES; retry++) {
-            // Send the data packet
-            socket.send(outPacket);
-            
-            // Wait for ACK
-            TFTPAckPacket ackPacket = receiveAck(socket, expectedBlock);
+            // Send the data packet as one datagram gathered from the header and data buffers
+            headerBuffer.position(0);
+            dataBuffer.position(dataStart);
+            long sentAt = System.nanoTime();
+            channel.write(dataSegments);
+            rttEstimator.packetSent(retry > 0);
             
-            if (ackPacket != null) {
+            // Wait for ACK, backing off the timeout on every retry
+            if (receiveAck(channel, selector, serverAddress, expectedBlock, rttEstimator.getTimeout(retry))) {
+                if (retry == 0) {
+                    rttEstimator.addSample((System.nanoTime() - sentAt) / 1e6);
+                }
                 return true;
             }
             
@@ -338,69 +530,136 @@ public class TFTPClient {
     /**
      * Receives an acknowledgment packet from the server.
      * 
-     * @param socket The socket to receive on
+     * @param channel The channel to receive on
+     * @param selector The selector the channel is registered with
+     * @param serverAddress The server address
      * @param expectedBlock The expected block number
-     * @return The received ACK packet, or null if it could not be received
+     * @param timeoutMillis The maximum time to wait in milliseconds
+     * @return true if the expected ACK was received, false otherwise
      * @throws IOException If an I/O error occurs
      */
-    private TFTPAckPacket receiveAck(DatagramSocket socket, short expectedBlock) throws IOException {
-        byte[] buffer = new byte[TFTPConstants.MAX_PACKET_SIZE];
-        DatagramPacket inPacket = new DatagramPacket(buffer, buffer.length);
+    private boolean receiveAck(DatagramChannel channel, Selector selector, InetAddress serverAddress, 
+                               short expectedBlock, int timeoutMillis) throws IOException {
+        TFTPPacketView receivedPacket = receivePacket(channel, selector, serverAddress, timeoutMillis);
         
-        try {
-            socket.receive(inPacket);
-            
-            // Parse the received packet
-            TFTPPacket receivedPacket = TFTPPacket.createFromBytes(inPacket.getData(), inPacket.getLength());
-            
-            if (receivedPacket.getOpcode() == TFTPConstants.OP_ACK) {
-                TFTPAckPacket ackPacket = (TFTPAckPacket) receivedPacket;
-                
-                if (ackPacket.getBlockNumber() == expectedBlock) {
-                    // Got the expected ACK
-                    return ackPacket;
-                } else {
-                    // Got an ACK with unexpected block number
-                    LOGGER.warning("Received ACK with wrong block number, expected " + 
-                                  expectedBlock + ", got " + ackPacket.getBlockNumber());
+        if (receivedPacket == null) {
+            LOGGER.warning("Timeout waiting for ACK");
+        } else if (receivedPacket.isAck()) {
+            if (receivedPacket.getBlockNumber() == expectedBlock) {
+                // Got the expected ACK
+                return true;
+            } else {
+                // Got an ACK with unexpected block number; routine under loss, so only traced
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Received ACK with wrong block number, expected " + 
+                                expectedBlock + ", got " + receivedPacket.getBlockNumber());
                 }
-            } else if (receivedPacket.getOpcode() == TFTPConstants.OP_ERROR) {
-                // Server sent an error
-                TFTPErrorPacket errorPacket = (TFTPErrorPacket) receivedPacket;
-                System.out.println("Error from server: " + 
-                                 errorPacket.getErrorCode() + " - " + 
-                                 errorPacket.getErrorMessage());
-                return null;
             }
-            
-        } catch (SocketTimeoutException e) {
-            LOGGER.warning("Timeout waiting for ACK");
+        } else if (receivedPacket.getOpcode() == TFTPConstants.OP_ERROR) {
+            // Server sent an error
+            TFTPErrorPacket errorPacket = (TFTPErrorPacket) receivedPacket.toPacket();
+            System.out.println("Error from server: " + 
+                             errorPacket.getErrorCode() + " - " + 
+                             errorPacket.getErrorMessage());
+            return false;
         }
         
-        return null;
+        return false;
+    }
+    
+    /**
+     * Receives the next packet into the client's receive buffer.
+     * Until the channel is connected, packets are accepted from the server host only,
+     * and the first one connects the channel to the TID it came from.
+     * 
+     * @param channel The channel to receive on
+     * @param selector The selector the channel is registered with
+     * @param serverAddress The server address
+     * @param timeoutMillis The maximum time to wait in milliseconds
+     * @return The shared view of the received packet, valid until the next receive, 
+     *         or null if the timeout expired
+     * @throws IOException If an I/O error occurs or the packet is too short
+     */
+    private TFTPPacketView receivePacket(DatagramChannel channel, Selector selector, 
+                                         InetAddress serverAddress, int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.isConnected()) {
+                if (channel.read(receiveBuffer) > 0) {
+                    receiveBuffer.flip();
+                    return packetView.wrap(receiveBuffer);
+                }
+            } else {
+                InetSocketAddress source = (InetSocketAddress) channel.receive(receiveBuffer);
+                if (source != null && source.getAddress().equals(serverAddress)) {
+                    // The first reply carries the server's TID
+                    channel.connect(source);
+                    receiveBuffer.flip();
+                    return packetView.wrap(receiveBuffer);
+                }
+            }
+            
+            long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remaining <= 0) {
+                return null;
+            }
+            // Waiting with an action instead of the selected-key set allocates nothing
+            selector.select(IGNORE_KEY, remaining);
+        }
     }
     
     /**
      * Sends an acknowledgment packet.
      * 
-     * @param socket The socket to send on
-     * @param address The destination address
-     * @param port The destination port
+     * @param channel The channel to send on, connected to the server's TID
      * @param blockNumber The block number to acknowledge
      * @throws IOException If an I/O error occurs
      */
-    private void sendAck(DatagramSocket socket, InetAddress address, 
-                        int port, short blockNumber) throws IOException {
-        TFTPAckPacket ackPacket = new TFTPAckPacket(blockNumber);
-        byte[] serializedAck = ackPacket.serialize();
-        
-        DatagramPacket outPacket = new DatagramPacket(
-                serializedAck, 
-                serializedAck.length,
-                address,
-                port);
-        
-        socket.send(outPacket);
+    private void sendAck(DatagramChannel channel, short blockNumber) throws IOException {
+        channel.write(EncodedPackets.selectAck(ackView, blockNumber));
+    }
+    
+    /**
+     * Checks whether enough time has passed to print another progress line.
+     * Progress is throttled so a long transfer does not build a string for every block.
+     * 
+     * @return true if progress should be printed now
+     */
+    private boolean progressDue() {
+        long now = System.nanoTime();
+        if (now - lastProgressAt < PROGRESS_INTERVAL_NANOS) {
+            return false;
+        }
+        lastProgressAt = now;
+        return true;
+    }
+    
+    /**
+     * Opens a non-blocking datagram channel for one transfer.
+     * 
+     * @return The channel, bound to an ephemeral port
+     * @throws IOException If an I/O error occurs
+     */
+    private static DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        return channel;
+    }
+    
+    /**
+     * Opens a selector used to wait on a channel with a timeout.
+     * 
+     * @param channel The channel to wait on
+     * @return The selector
+     * @throws IOException If an I/O error occurs
+     */
+    private static Selector openSelector(DatagramChannel channel) throws IOException {
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        return selector;
     }
     
     /**
@@ -0,0 +1,80 @@
+package com.networkcourse.tftp.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of equally sized direct buffers.
+ * Direct buffers are expensive to allocate and free, but let the kernel copy
+ * datagrams and file data without an extra copy through the Java heap, so
+ * sessions borrow them from a pool instead of allocating their own.
+ * When the pool is empty a new buffer is allocated; when it is full a returned
+ * buffer is simply dropped.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param bufferSize The size of each buffer in bytes
+     * @param capacity The maximum number of idle buffers kept in the pool
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Borrows a cleared buffer from the pool.
+     *
+     * @return A direct buffer of the pool's buffer size
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer The buffer to return, or null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize && buffer.isDirect()) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Get the size of the pooled buffers.
+     * @return The buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of buffers currently idle in the pool.
+     * @return The idle buffer count
+     */
+    public int getIdleCount() {
+        return buffers.size();
+    }
+
+    /**
+     * Get the number of buffers this pool has had to allocate.
+     * @return The allocation count
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+}
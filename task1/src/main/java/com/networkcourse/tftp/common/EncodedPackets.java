@@ -0,0 +1,129 @@
+package com.networkcourse.tftp.common;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * Packets that are sent often enough to be worth encoding only once.
+ * Holds every possible ACK and the ERROR packet for each standard error code,
+ * encoded at class initialisation into shared tables that must never be modified.
+ * Callers point a reusable DatagramPacket or buffer view at the right slice,
+ * so sending one of these packets allocates nothing.
+ */
+public final class EncodedPackets {
+    public static final int ACK_LENGTH = 4;
+
+    private static final int BLOCK_NUMBERS = 1 << 16;
+    private static final byte[] ACKS = new byte[BLOCK_NUMBERS * ACK_LENGTH];
+
+    private static final String[] STANDARD_ERROR_MESSAGES = {
+        "Not defined.",
+        TFTPConstants.ERR_MSG_FILE_NOT_FOUND,
+        TFTPConstants.ERR_MSG_ACCESS_VIOLATION,
+        TFTPConstants.ERR_MSG_DISK_FULL,
+        TFTPConstants.ERR_MSG_ILLEGAL_OP,
+        TFTPConstants.ERR_MSG_UNKNOWN_TID,
+        TFTPConstants.ERR_MSG_FILE_EXISTS,
+        TFTPConstants.ERR_MSG_NO_SUCH_USER
+    };
+    private static final byte[] ERRORS;
+    private static final int[] ERROR_OFFSETS = new int[STANDARD_ERROR_MESSAGES.length + 1];
+
+    static {
+        ByteBuffer acks = ByteBuffer.wrap(ACKS);
+        for (int block = 0; block < BLOCK_NUMBERS; block++) {
+            TFTPAckPacket.encode(acks, block * ACK_LENGTH, (short) block);
+        }
+
+        int total = 0;
+        for (int code = 0; code < STANDARD_ERROR_MESSAGES.length; code++) {
+            ERROR_OFFSETS[code] = total;
+            total += new TFTPErrorPacket((short) code, STANDARD_ERROR_MESSAGES[code]).getEncodedLength();
+        }
+        ERROR_OFFSETS[STANDARD_ERROR_MESSAGES.length] = total;
+
+        ERRORS = new byte[total];
+        ByteBuffer errors = ByteBuffer.wrap(ERRORS);
+        for (int code = 0; code < STANDARD_ERROR_MESSAGES.length; code++) {
+            new TFTPErrorPacket((short) code, STANDARD_ERROR_MESSAGES[code]).encode(errors, ERROR_OFFSETS[code]);
+        }
+    }
+
+    private EncodedPackets() {
+    }
+
+    /**
+     * Points a datagram at the pre-encoded ACK for a block number.
+     *
+     * @param packet The reusable datagram to send
+     * @param blockNumber The block number to acknowledge
+     */
+    public static void setAck(DatagramPacket packet, short blockNumber) {
+        packet.setData(ACKS, (blockNumber & 0xFFFF) * ACK_LENGTH, ACK_LENGTH);
+    }
+
+    /**
+     * Creates a read-only view over the ACK table, to be kept and reused with {@link #selectAck}.
+     *
+     * @return A new view over the ACK table
+     */
+    public static ByteBuffer newAckView() {
+        return ByteBuffer.wrap(ACKS).asReadOnlyBuffer();
+    }
+
+    /**
+     * Narrows a view created by {@link #newAckView} to the ACK for a block number.
+     *
+     * @param view The view over the ACK table
+     * @param blockNumber The block number to acknowledge
+     * @return The same view, positioned on the ACK
+     */
+    public static ByteBuffer selectAck(ByteBuffer view, short blockNumber) {
+        int offset = (blockNumber & 0xFFFF) * ACK_LENGTH;
+        view.limit(offset + ACK_LENGTH).position(offset);
+        return view;
+    }
+
+    /**
+     * Checks whether an error code has a pre-encoded packet.
+     *
+     * @param errorCode The error code
+     * @return true if the code is one of the standard codes of RFC 1350
+     */
+    public static boolean isStandardError(short errorCode) {
+        return errorCode >= 0 && errorCode < STANDARD_ERROR_MESSAGES.length;
+    }
+
+    /**
+     * Gets the message carried by the pre-encoded packet for a standard error code.
+     *
+     * @param errorCode The standard error code
+     * @return The standard message
+     */
+    public static String standardMessage(short errorCode) {
+        return STANDARD_ERROR_MESSAGES[errorCode];
+    }
+
+    /**
+     * Points a datagram at the pre-encoded ERROR packet for a standard error code,
+     * carrying the standard message for that code.
+     *
+     * @param packet The reusable datagram to send
+     * @param errorCode The standard error code
+     */
+    public static void setError(DatagramPacket packet, short errorCode) {
+        int offset = ERROR_OFFSETS[errorCode];
+        packet.setData(ERRORS, offset, ERROR_OFFSETS[errorCode + 1] - offset);
+    }
+
+    /**
+     * Creates a read-only view of the pre-encoded ERROR packet for a standard error code.
+     *
+     * @param errorCode The standard error code
+     * @return A new view positioned on the ERROR packet
+     */
+    public static ByteBuffer errorView(short errorCode) {
+        int offset = ERROR_OFFSETS[errorCode];
+        return ByteBuffer.wrap(ERRORS, offset, ERROR_OFFSETS[errorCode + 1] - offset).asReadOnlyBuffer();
+    }
+}
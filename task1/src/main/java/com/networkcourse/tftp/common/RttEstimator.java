@@ -0,0 +1,135 @@
+package com.networkcourse.tftp.common;
+
+/**
+ * Estimates the round-trip time to a peer and derives the retransmission timeout
+ * from it, following the algorithm of RFC 6298.
+ * Samples are only taken from packets that were not retransmitted (Karn's algorithm).
+ */
+public class RttEstimator {
+    public static final int MIN_TIMEOUT = 200;   // Lower bound for the RTO in milliseconds
+    public static final int MAX_TIMEOUT = TFTPConstants.SOCKET_TIMEOUT;
+    // Time an exchange is given across all its attempts, as with the fixed timeout
+    public static final int TOTAL_TIMEOUT = TFTPConstants.MAX_RETRIES * TFTPConstants.SOCKET_TIMEOUT;
+    
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    private int retransmissionTimeout = MAX_TIMEOUT;
+    private long packetsSent;
+    private long retransmissions;
+    
+    /**
+     * Creates an estimator that starts from the protocol default timeout.
+     */
+    public RttEstimator() {
+    }
+    
+    /**
+     * Creates an estimator warm-started from a previously learned profile.
+     * 
+     * @param profile The learned profile, or null to start from the defaults
+     */
+    public RttEstimator(TransportProfile profile) {
+        if (profile != null) {
+            this.smoothedRtt = profile.getSmoothedRtt();
+            this.rttVariance = profile.getRttVariance();
+            this.retransmissionTimeout = clamp(profile.getRetransmissionTimeout());
+        }
+    }
+    
+    /**
+     * Records a round-trip time sample.
+     * 
+     * @param rttMillis The measured round-trip time in milliseconds
+     */
+    public void addSample(double rttMillis) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttMillis;
+            rttVariance = rttMillis / 2;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rttMillis;
+        }
+        retransmissionTimeout = clamp((int) Math.ceil(smoothedRtt + 4 * rttVariance));
+    }
+    
+    /**
+     * Records that a packet was sent.
+     * 
+     * @param retransmission true if the packet is a retransmission
+     */
+    public void packetSent(boolean retransmission) {
+        packetsSent++;
+        if (retransmission) {
+            retransmissions++;
+        }
+    }
+    
+    /**
+     * Get the current retransmission timeout.
+     * @return The RTO in milliseconds
+     */
+    public int getRetransmissionTimeout() {
+        return retransmissionTimeout;
+    }
+    
+    /**
+     * Get the timeout to use for a given attempt, doubling the RTO on every retry.
+     * The last of the {@link TFTPConstants#MAX_RETRIES} attempts waits out whatever is left of
+     * {@link #TOTAL_TIMEOUT}, so a small learned RTO resends lost packets sooner without
+     * giving up on a slow peer any earlier than the fixed timeout did.
+     * 
+     * @param retry The zero-based retry number
+     * @return The timeout in milliseconds
+     */
+    public int getTimeout(int retry) {
+        int timeout = backoff(retry);
+        if (retry < TFTPConstants.MAX_RETRIES - 1) {
+            return timeout;
+        }
+        long waited = 0;
+        for (int i = 0; i < retry; i++) {
+            waited += backoff(i);
+        }
+        return (int) Math.max(timeout, TOTAL_TIMEOUT - waited);
+    }
+    
+    private int backoff(int retry) {
+        long timeout = (long) retransmissionTimeout << Math.min(retry, 16);
+        return (int) Math.min(timeout, MAX_TIMEOUT);
+    }
+    
+    /**
+     * Get the fraction of packets that had to be retransmitted.
+     * @return The loss rate
+     */
+    public double getLossRate() {
+        return packetsSent == 0 ? 0 : (double) retransmissions / packetsSent;
+    }
+    
+    /**
+     * Checks whether any round-trip time has been measured or inherited.
+     * @return true if an RTT estimate is available
+     */
+    public boolean hasEstimate() {
+        return smoothedRtt >= 0;
+    }
+    
+    /**
+     * Captures the current estimate as a profile that can be cached.
+     * 
+     * @param blockSize The block size in use
+     * @param windowSize The window size in use
+     * @return The transport profile
+     */
+    public TransportProfile toProfile(int blockSize, int windowSize) {
+        return new TransportProfile(smoothedRtt, rttVariance, retransmissionTimeout,
+                blockSize, windowSize, getLossRate());
+    }
+    
+    private static int clamp(int timeout) {
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+}
@@ -1,6 +1,5 @@
 package com.networkcourse.tftp.common;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -34,18 +33,31 @@ public class TFTPAckPacket extends TFTPPacket {
     }
     
     @Override
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(4);
-        
-        // Write opcode
-        baos.write((opcode >> 8) & 0xFF);
-        baos.write(opcode & 0xFF);
+    public int getEncodedLength() {
+        return 4;
+    }
+    
+    @Override
+    public int encode(ByteBuffer buffer, int offset) {
+        return encode(buffer, offset, blockNumber);
+    }
+    
+    /**
+     * Encodes an ACK for the given block without creating a packet object.
+     * 
+     * @param buffer The buffer to write into
+     * @param offset The index in the buffer at which the packet starts
+     * @param blockNumber The block number being acknowledged
+     * @return The number of bytes written
+     */
+    public static int encode(ByteBuffer buffer, int offset, short blockNumber) {
+        checkCapacity(buffer, offset, 4);
         
-        // Write block number
-        baos.write((blockNumber >> 8) & 0xFF);
-        baos.write(blockNumber & 0xFF);
+        // Write opcode and block number
+        buffer.putShort(offset, TFTPConstants.OP_ACK);
+        buffer.putShort(offset + 2, blockNumber);
         
-        return baos.toByteArray();
+        return 4;
     }
     
     /**
@@ -1,6 +1,5 @@
 package com.networkcourse.tftp.common;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -37,6 +36,19 @@ public class TFTPDataPacket extends TFTPPacket {
         this.dataLength = dataLength;
     }
     
+    /**
+     * Creates a DATA packet that takes ownership of an array without copying it.
+     * 
+     * @param blockNumber The block number
+     * @param data The data, which must not be modified afterwards
+     */
+    private TFTPDataPacket(short blockNumber, byte[] data) {
+        super(TFTPConstants.OP_DATA);
+        this.blockNumber = blockNumber;
+        this.data = data;
+        this.dataLength = data.length;
+    }
+    
     /**
      * Get the block number of this data packet.
      * @return The block number
@@ -72,21 +84,58 @@ public class TFTPDataPacket extends TFTPPacket {
     }
     
     @Override
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(dataLength + 4);
+    public int getEncodedLength() {
+        return dataLength + 4;
+    }
+    
+    @Override
+    public int encode(ByteBuffer buffer, int offset) {
+        return encode(buffer, offset, blockNumber, data, dataLength);
+    }
+    
+    /**
+     * Encodes a DATA packet straight from a caller's block buffer, without creating a packet object
+     * or copying the data anywhere but into the destination buffer.
+     * 
+     * @param buffer The buffer to write into
+     * @param offset The index in the buffer at which the packet starts
+     * @param blockNumber The block number
+     * @param data The block data
+     * @param dataLength The length of data
+     * @return The number of bytes written
+     */
+    public static int encode(ByteBuffer buffer, int offset, short blockNumber, byte[] data, int dataLength) {
+        checkCapacity(buffer, offset, dataLength + 4);
+        
+        // Write opcode and block number
+        buffer.putShort(offset, TFTPConstants.OP_DATA);
+        buffer.putShort(offset + 2, blockNumber);
         
-        // Write opcode
-        baos.write((opcode >> 8) & 0xFF);
-        baos.write(opcode & 0xFF);
+        // Write data; bulk put is relative, so restore the caller's position afterwards
+        int position = buffer.position();
+        buffer.position(offset + 4);
+        buffer.put(data, 0, dataLength);
+        buffer.position(position);
         
-        // Write block number
-        baos.write((blockNumber >> 8) & 0xFF);
-        baos.write(blockNumber & 0xFF);
+        return dataLength + 4;
+    }
+    
+    /**
+     * Encodes just the header of a DATA packet, for gathering sends that take the
+     * data from a separate buffer.
+     * 
+     * @param buffer The buffer to write into
+     * @param offset The index in the buffer at which the header starts
+     * @param blockNumber The block number
+     * @return The number of bytes written
+     */
+    public static int encodeHeader(ByteBuffer buffer, int offset, short blockNumber) {
+        checkCapacity(buffer, offset, 4);
         
-        // Write data
-        baos.write(data, 0, dataLength);
+        buffer.putShort(offset, TFTPConstants.OP_DATA);
+        buffer.putShort(offset + 2, blockNumber);
         
-        return baos.toByteArray();
+        return 4;
     }
     
     /**
@@ -103,9 +152,14 @@ public class TFTPDataPacket extends TFTPPacket {
         
         short blockNumber = buffer.getShort();
         
+        if (buffer.remaining() > TFTPConstants.MAX_DATA_SIZE) {
+            throw new IOException("Invalid data packet: data exceeds maximum allowed size");
+        }
+        
+        // The array is freshly allocated here, so the packet can own it without another copy
         byte[] data = new byte[buffer.remaining()];
         buffer.get(data);
         
-        return new TFTPDataPacket(blockNumber, data, data.length);
+        return new TFTPDataPacket(blockNumber, data);
     }
 }
@@ -1,9 +1,7 @@
 package com.networkcourse.tftp.common;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a TFTP Error packet (ERROR).
@@ -46,21 +44,20 @@ public class TFTPErrorPacket extends TFTPPacket {
     }
     
     @Override
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        
-        // Write opcode
-        baos.write((opcode >> 8) & 0xFF);
-        baos.write(opcode & 0xFF);
+    public int getEncodedLength() {
+        return errorMessage.length() + 5;
+    }
+    
+    @Override
+    public int encode(ByteBuffer buffer, int offset) {
+        checkCapacity(buffer, offset, getEncodedLength());
         
-        // Write error code
-        baos.write((errorCode >> 8) & 0xFF);
-        baos.write(errorCode & 0xFF);
+        // Write opcode and error code
+        buffer.putShort(offset, opcode);
+        buffer.putShort(offset + 2, errorCode);
         
         // Write error message, null-terminated
-        writeNullTerminatedString(baos, errorMessage);
-        
-        return baos.toByteArray();
+        return putNullTerminatedString(buffer, offset + 4, errorMessage) - offset;
     }
     
     /**
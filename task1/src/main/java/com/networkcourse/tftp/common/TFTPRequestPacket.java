@@ -1,9 +1,7 @@
 package com.networkcourse.tftp.common;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a TFTP Read or Write Request packet (RRQ/WRQ).
@@ -12,10 +10,16 @@ import java.nio.charset.StandardCharsets;
  *   ------------------------------------------------
  *  | Opcode |  Filename  |   0   |    Mode    |   0  |
  *   ------------------------------------------------
+ * optionally followed by the option name/value pairs of RFC 2347.
  */
 public class TFTPRequestPacket extends TFTPPacket {
     private final String filename;
     private final String mode;
+    private final int blockSize;
+    private final int timeout;
+    private final long transferSize;
+    private final int windowSize;
+    private final String digest;
     
     /**
      * Creates a new request packet (RRQ or WRQ).
@@ -25,6 +29,44 @@ public class TFTPRequestPacket extends TFTPPacket {
      * @param mode The transfer mode (should be "octet" for this implementation)
      */
     public TFTPRequestPacket(short opcode, String filename, String mode) {
+        this(opcode, filename, mode, TFTPRequestParser.OPTION_ABSENT, TFTPRequestParser.OPTION_ABSENT,
+                TFTPRequestParser.OPTION_ABSENT, TFTPRequestParser.OPTION_ABSENT);
+    }
+    
+    /**
+     * Creates a new request packet (RRQ or WRQ) carrying options.
+     * Pass TFTPRequestParser.OPTION_ABSENT for any option that should not be sent.
+     * 
+     * @param opcode The opcode (OP_RRQ or OP_WRQ)
+     * @param filename The filename to read or write
+     * @param mode The transfer mode
+     * @param blockSize The blksize option (RFC 2348)
+     * @param timeout The timeout option in seconds (RFC 2349)
+     * @param transferSize The tsize option (RFC 2349)
+     * @param windowSize The windowsize option (RFC 7440)
+     */
+    public TFTPRequestPacket(short opcode, String filename, String mode,
+                             int blockSize, int timeout, long transferSize, int windowSize) {
+        this(opcode, filename, mode, blockSize, timeout, transferSize, windowSize, null);
+    }
+    
+    /**
+     * Creates a new request packet (RRQ or WRQ) carrying options, including the digest
+     * of a copy the client already has. An RRQ with a digest asks for the file only if
+     * it has changed; the server answers ERR_NOT_MODIFIED otherwise.
+     * 
+     * @param opcode The opcode (OP_RRQ or OP_WRQ)
+     * @param filename The filename to read or write
+     * @param mode The transfer mode
+     * @param blockSize The blksize option (RFC 2348)
+     * @param timeout The timeout option in seconds (RFC 2349)
+     * @param transferSize The tsize option (RFC 2349)
+     * @param windowSize The windowsize option (RFC 7440)
+     * @param digest The SHA-256 digest of the client's copy in hex, or null
+     */
+    public TFTPRequestPacket(short opcode, String filename, String mode,
+                             int blockSize, int timeout, long transferSize, int windowSize, 
+                             String digest) {
         super(opcode);
         
         if (opcode != TFTPConstants.OP_RRQ && opcode != TFTPConstants.OP_WRQ) {
@@ -33,6 +75,11 @@ public class TFTPRequestPacket extends TFTPPacket {
         
         this.filename = filename;
         this.mode = mode;
+        this.blockSize = blockSize;
+        this.timeout = timeout;
+        this.transferSize = transferSize;
+        this.windowSize = windowSize;
+        this.digest = digest;
     }
     
     /**
@@ -51,6 +98,46 @@ public class TFTPRequestPacket extends TFTPPacket {
         return mode;
     }
     
+    /**
+     * Get the requested block size (RFC 2348).
+     * @return The block size, or TFTPRequestParser.OPTION_ABSENT
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Get the requested timeout (RFC 2349).
+     * @return The timeout in seconds, or TFTPRequestParser.OPTION_ABSENT
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+    
+    /**
+     * Get the transfer size (RFC 2349).
+     * @return The transfer size, or TFTPRequestParser.OPTION_ABSENT
+     */
+    public long getTransferSize() {
+        return transferSize;
+    }
+    
+    /**
+     * Get the requested window size (RFC 7440).
+     * @return The window size, or TFTPRequestParser.OPTION_ABSENT
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+    
+    /**
+     * Get the digest of the client's copy of the file.
+     * @return The SHA-256 digest in hex, or null if the file was asked for unconditionally
+     */
+    public String getDigest() {
+        return digest;
+    }
+    
     /**
      * Checks if this is a read request (RRQ).
      * @return true if this is a read request, false otherwise
@@ -68,22 +155,52 @@ public class TFTPRequestPacket extends TFTPPacket {
     }
     
     @Override
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    public int getEncodedLength() {
+        int length = 2 + filename.length() + 1 + mode.length() + 1;
+        length += optionLength("blksize", blockSize);
+        length += optionLength("timeout", timeout);
+        length += optionLength("tsize", transferSize);
+        length += optionLength("windowsize", windowSize);
+        if (digest != null) {
+            length += "digest".length() + 1 + digest.length() + 1;
+        }
+        return length;
+    }
+    
+    @Override
+    public int encode(ByteBuffer buffer, int offset) {
+        checkCapacity(buffer, offset, getEncodedLength());
         
         // Write opcode
-        outputStream.write((getOpcode() >> 8) & 0xFF);
-        outputStream.write(getOpcode() & 0xFF);
+        buffer.putShort(offset, getOpcode());
         
-        // Write filename
-        outputStream.write(filename.getBytes(StandardCharsets.US_ASCII));
-        outputStream.write(0);  // Zero byte separator
+        // Write filename and mode, each followed by a zero byte separator
+        int index = putNullTerminatedString(buffer, offset + 2, filename);
+        index = putNullTerminatedString(buffer, index, mode);
         
-        // Write mode
-        outputStream.write(mode.getBytes(StandardCharsets.US_ASCII));
-        outputStream.write(0);  // Zero byte separator
+        // Write any options as name/value pairs
+        index = putOption(buffer, index, "blksize", blockSize);
+        index = putOption(buffer, index, "timeout", timeout);
+        index = putOption(buffer, index, "tsize", transferSize);
+        index = putOption(buffer, index, "windowsize", windowSize);
+        if (digest != null) {
+            index = putNullTerminatedString(buffer, index, "digest");
+            index = putNullTerminatedString(buffer, index, digest);
+        }
         
-        return outputStream.toByteArray();
+        return index - offset;
+    }
+    
+    private static int optionLength(String name, long value) {
+        return value < 0 ? 0 : name.length() + 1 + Long.toString(value).length() + 1;
+    }
+    
+    private static int putOption(ByteBuffer buffer, int index, String name, long value) {
+        if (value < 0) {
+            return index;
+        }
+        index = putNullTerminatedString(buffer, index, name);
+        return putNullTerminatedString(buffer, index, Long.toString(value));
     }
     
     /**
@@ -93,64 +210,30 @@ public class TFTPRequestPacket extends TFTPPacket {
      * @param data The raw bytes of the packet (without the opcode)
      * @param length The length of the data
      * @return A new request packet
+     * @throws IllegalArgumentException If the packet is malformed
      */
     public static TFTPRequestPacket parseFrom(short opcode, byte[] data, int length) {
-        // Find the first zero byte (end of filename)
-        int i = 0;
-        while (i < length && data[i] != 0) {
-            i++;
-        }
-        
-        if (i >= length) {
-            throw new IllegalArgumentException("Invalid request packet: no zero after filename");
-        }
-        
-        // Extract filename
-        String filename = new String(data, 0, i, StandardCharsets.US_ASCII);
-        
-        // Move past the zero byte
-        i++;
-        
-        // Find the second zero byte (end of mode)
-        int j = i;
-        while (j < length && data[j] != 0) {
-            j++;
+        TFTPRequestParser parser = new TFTPRequestParser();
+        if (!parser.parse(opcode, ByteBuffer.wrap(data, 0, length))) {
+            throw new IllegalArgumentException(parser.getError());
         }
-        
-        if (j >= length) {
-            throw new IllegalArgumentException("Invalid request packet: no zero after mode");
-        }
-        
-        // Extract mode
-        String mode = new String(data, i, j - i, StandardCharsets.US_ASCII);
-        
-        return new TFTPRequestPacket(opcode, filename, mode);
+        return parser.toPacket();
     }
 
     /**
      * Creates a request packet from a ByteBuffer.
      * 
-     * @param buffer The ByteBuffer containing the packet data
+     * @param buffer The ByteBuffer containing the packet data (positioned after the opcode)
      * @param opcode The opcode of the packet
      * @return A new request packet
-     * @throws IOException If an I/O error occurs
+     * @throws IOException If the packet is malformed
      */
     public static TFTPRequestPacket createFromBuffer(ByteBuffer buffer, short opcode) throws IOException {
-        // Read filename
-        StringBuilder filenameBuilder = new StringBuilder();
-        byte b;
-        while ((b = buffer.get()) != 0) {
-            filenameBuilder.append((char) b);
+        TFTPRequestParser parser = new TFTPRequestParser();
+        if (!parser.parse(opcode, buffer)) {
+            throw new IOException(parser.getError());
         }
-        String filename = filenameBuilder.toString();
-
-        // Read mode
-        StringBuilder modeBuilder = new StringBuilder();
-        while ((b = buffer.get()) != 0) {
-            modeBuilder.append((char) b);
-        }
-        String mode = modeBuilder.toString();
-
-        return new TFTPRequestPacket(opcode, filename, mode);
+        buffer.position(buffer.limit());
+        return parser.toPacket();
     }
-}
\ No newline at end of file
+}
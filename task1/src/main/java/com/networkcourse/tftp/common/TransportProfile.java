@@ -0,0 +1,101 @@
+package com.networkcourse.tftp.common;
+
+/**
+ * Transport parameters learned from completed transfers with one peer.
+ * Used to warm-start new transfers with the same peer instead of starting
+ * from the protocol defaults.
+ */
+public class TransportProfile {
+    private final double smoothedRtt;
+    private final double rttVariance;
+    private final int retransmissionTimeout;
+    private final int blockSize;
+    private final int windowSize;
+    private final double lossRate;
+    private final long createdAt;
+    
+    /**
+     * Creates a new transport profile.
+     * 
+     * @param smoothedRtt The smoothed round-trip time in milliseconds
+     * @param rttVariance The round-trip time variance in milliseconds
+     * @param retransmissionTimeout The retransmission timeout in milliseconds
+     * @param blockSize The working block size in bytes
+     * @param windowSize The working window size in blocks
+     * @param lossRate The observed fraction of packets that had to be retransmitted
+     */
+    public TransportProfile(double smoothedRtt, double rttVariance, int retransmissionTimeout,
+                            int blockSize, int windowSize, double lossRate) {
+        this.smoothedRtt = smoothedRtt;
+        this.rttVariance = rttVariance;
+        this.retransmissionTimeout = retransmissionTimeout;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+        this.lossRate = lossRate;
+        this.createdAt = System.currentTimeMillis();
+    }
+    
+    /**
+     * Get the smoothed round-trip time.
+     * @return The smoothed RTT in milliseconds
+     */
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+    
+    /**
+     * Get the round-trip time variance.
+     * @return The RTT variance in milliseconds
+     */
+    public double getRttVariance() {
+        return rttVariance;
+    }
+    
+    /**
+     * Get the retransmission timeout.
+     * @return The RTO in milliseconds
+     */
+    public int getRetransmissionTimeout() {
+        return retransmissionTimeout;
+    }
+    
+    /**
+     * Get the working block size.
+     * @return The block size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Get the working window size.
+     * @return The window size in blocks
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+    
+    /**
+     * Get the observed loss rate.
+     * @return The fraction of packets that had to be retransmitted
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+    
+    /**
+     * Checks whether this profile is older than the given time-to-live.
+     * 
+     * @param ttlMillis The time-to-live in milliseconds
+     * @return true if the profile has expired, false otherwise
+     */
+    public boolean isExpired(long ttlMillis) {
+        return System.currentTimeMillis() - createdAt > ttlMillis;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("srtt=%.1fms rttvar=%.1fms rto=%dms blksize=%d windowsize=%d loss=%.3f",
+                smoothedRtt, rttVariance, retransmissionTimeout, blockSize, windowSize, lossRate);
+    }
+}
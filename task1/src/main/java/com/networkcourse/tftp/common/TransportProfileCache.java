@@ -0,0 +1,126 @@
+package com.networkcourse.tftp.common;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of learned transport profiles, keyed by peer address.
+ * Every profile is also recorded under the peer's subnet (/24 for IPv4, /64 for IPv6),
+ * so that a new peer on a known network starts from its neighbours' values.
+ * Entries expire after a time-to-live and the least recently used entries are
+ * evicted once the cache is full.
+ */
+public class TransportProfileCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    
+    private static final int IPV4_SUBNET_BITS = 24;
+    private static final int IPV6_SUBNET_BITS = 64;
+    
+    private final long ttlMillis;
+    private final Map<InetAddress, TransportProfile> hostProfiles;
+    private final Map<InetAddress, TransportProfile> subnetProfiles;
+    
+    /**
+     * Creates a cache with the default capacity and time-to-live.
+     */
+    public TransportProfileCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+    
+    /**
+     * Creates a new cache.
+     * 
+     * @param capacity The maximum number of hosts (and of subnets) to remember
+     * @param ttlMillis The time after which a profile expires, in milliseconds
+     */
+    public TransportProfileCache(int capacity, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.hostProfiles = createLruMap(capacity);
+        this.subnetProfiles = createLruMap(capacity);
+    }
+    
+    /**
+     * Looks up the profile for a peer, falling back to its subnet.
+     * 
+     * @param address The peer address
+     * @return The learned profile, or null if nothing is known about the peer
+     */
+    public synchronized TransportProfile get(InetAddress address) {
+        TransportProfile profile = getValid(hostProfiles, address);
+        if (profile == null) {
+            profile = getValid(subnetProfiles, subnetOf(address));
+        }
+        return profile;
+    }
+    
+    /**
+     * Records the profile learned from a transfer with a peer.
+     * 
+     * @param address The peer address
+     * @param profile The learned profile
+     */
+    public synchronized void put(InetAddress address, TransportProfile profile) {
+        hostProfiles.put(address, profile);
+        subnetProfiles.put(subnetOf(address), profile);
+    }
+    
+    /**
+     * Get the number of hosts currently cached.
+     * @return The host count
+     */
+    public synchronized int size() {
+        return hostProfiles.size();
+    }
+    
+    /**
+     * Removes all cached profiles.
+     */
+    public synchronized void clear() {
+        hostProfiles.clear();
+        subnetProfiles.clear();
+    }
+    
+    private TransportProfile getValid(Map<InetAddress, TransportProfile> profiles, InetAddress key) {
+        TransportProfile profile = profiles.get(key);
+        if (profile != null && profile.isExpired(ttlMillis)) {
+            profiles.remove(key);
+            return null;
+        }
+        return profile;
+    }
+    
+    /**
+     * Masks an address down to its subnet.
+     * 
+     * @param address The address
+     * @return The subnet address
+     */
+    private static InetAddress subnetOf(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int bits = bytes.length == 4 ? IPV4_SUBNET_BITS : IPV6_SUBNET_BITS;
+        
+        for (int i = 0; i < bytes.length; i++) {
+            int keep = Math.max(0, Math.min(8, bits - i * 8));
+            bytes[i] &= (byte) (0xFF << (8 - keep));
+        }
+        
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Cannot happen for a well-formed address length
+            return address;
+        }
+    }
+    
+    private static Map<InetAddress, TransportProfile> createLruMap(int capacity) {
+        return new LinkedHashMap<InetAddress, TransportProfile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, TransportProfile> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+}
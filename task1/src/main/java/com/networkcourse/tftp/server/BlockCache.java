@@ -0,0 +1,591 @@
+package com.networkcourse.tftp.server;
+
+import com.networkcourse.tftp.common.TFTPDataPacket;
+import com.networkcourse.tftp.util.CacheWarmer;
+import com.networkcourse.tftp.util.FileBlockReader;
+import com.networkcourse.tftp.util.Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Server-wide cache of fully encoded DATA datagrams, header included.
+ * Datagrams are kept off-heap in slots carved out of large direct slabs, so a hit
+ * is sent as a slice of the slab with no disk read and no encoding.
+ *
+ * Entries are keyed by file identity (as given by the storage's read handle),
+ * block size and block number, and belong to one version of the file, identified
+ * by its modification time and size. Opening a file whose version has changed
+ * drops every block of the old version.
+ *
+ * Eviction is segmented LRU: new blocks enter a probation segment and are only
+ * promoted to the protected segment when they are hit again, so a single pass over
+ * a large file cannot flush the hot blocks out. A slot is pinned while a session
+ * is sending it and is never evicted or reused while pinned. Whole files can be pinned
+ * too, as a cache warmer loader: their blocks are kept out of the eviction lists until
+ * the file is unpinned.
+ * All methods are synchronized on the cache.
+ */
+public class BlockCache implements CacheWarmer.Loader {
+    public static final long DEFAULT_CAPACITY_BYTES = 64L << 20;
+
+    // Slots are allocated from slabs of this many slots each
+    private static final int SLOTS_PER_SLAB = 8192;
+    // Share of the slots the protected segment may hold, in percent
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final int blockSize;
+    private final int slotSize;
+    private final int slotCount;
+    private final int protectedCapacity;
+    private final ByteBuffer[] slabs;
+    private final Slot[] slots;
+
+    private final Map<FileId, CachedFile> files = new HashMap<>();
+    private final Set<FileId> pinnedFiles = new HashSet<>();
+    private final Slot probation = new Slot(-1);
+    private final Slot protectedSegment = new Slot(-1);
+    private int protectedCount;
+
+    // Slots that have been used and freed again, and the next never-used slot
+    private final int[] freeSlots;
+    private int freeCount;
+    private int nextUnused;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private int usedSlots;
+
+    /**
+     * Creates a new block cache.
+     *
+     * @param capacityBytes The maximum number of bytes of datagrams to hold
+     * @param blockSize The block size of the cached DATA packets
+     */
+    public BlockCache(long capacityBytes, int blockSize) {
+        this.blockSize = blockSize;
+        this.slotSize = blockSize + 4;
+        this.slotCount = (int) Math.min(Integer.MAX_VALUE - SLOTS_PER_SLAB, capacityBytes / slotSize);
+        this.protectedCapacity = (int) ((long) slotCount * PROTECTED_PERCENT / 100);
+        this.slabs = new ByteBuffer[(slotCount + SLOTS_PER_SLAB - 1) / SLOTS_PER_SLAB];
+        this.slots = new Slot[slotCount];
+        this.freeSlots = new int[slotCount];
+        probation.prev = probation.next = probation;
+        protectedSegment.prev = protectedSegment.next = protectedSegment;
+    }
+
+    /**
+     * Opens the cached view of a file for one transfer.
+     * If the file has changed since its blocks were cached, they are dropped.
+     * Every call must be matched by a call to {@link #close(CachedFile)}.
+     *
+     * @param handle The open file to serve
+     * @return The cached file
+     * @throws IOException If the file's size cannot be read
+     */
+    public CachedFile open(Storage.ReadHandle handle) throws IOException {
+        FileId id = new FileId(handle.identity(), blockSize);
+        long modified = handle.lastModified();
+        long size = handle.size();
+
+        synchronized (this) {
+            CachedFile file = files.get(id);
+            if (file != null && (file.modified != modified || file.size != size)) {
+                invalidate(file);
+                file = null;
+            }
+            if (file == null) {
+                file = new CachedFile(id, modified, size, (int) Math.min(Integer.MAX_VALUE, size / blockSize + 1));
+                file.pinned = pinnedFiles.contains(id);
+                files.put(id, file);
+            }
+            file.openCount++;
+            return file;
+        }
+    }
+
+    /**
+     * Ends a transfer of a file opened with {@link #open(Storage.ReadHandle)}.
+     *
+     * @param file The cached file
+     */
+    public synchronized void close(CachedFile file) {
+        file.openCount--;
+        if (file.openCount == 0 && file.cachedBlocks == 0 && files.get(file.id) == file) {
+            files.remove(file.id);
+        }
+    }
+
+    /**
+     * Looks up a block and pins it if it is cached.
+     *
+     * @param file The cached file
+     * @param blockIndex The zero-based index of the block
+     * @return The pinned slot, or -1 on a miss
+     */
+    public synchronized int acquire(CachedFile file, int blockIndex) {
+        Slot slot = blockIndex < file.blocks.length ? file.blocks[blockIndex] : null;
+        if (slot == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        slot.pins++;
+        if (!file.pinned) {
+            touch(slot);
+        }
+        return slot.index;
+    }
+
+    /**
+     * Encodes a block into the cache and pins it.
+     * Nothing is cached if the file was invalidated or every slot is pinned.
+     *
+     * @param file The cached file
+     * @param blockIndex The zero-based index of the block
+     * @param blockNumber The block number to put in the DATA header
+     * @param data The block data, between the buffer's position and limit; left unchanged
+     * @return The pinned slot, or -1 if the block was not cached
+     */
+    public synchronized int put(CachedFile file, int blockIndex, short blockNumber, ByteBuffer data) {
+        if (file.invalid || blockIndex >= file.blocks.length || data.remaining() > blockSize) {
+            return -1;
+        }
+
+        // Another session may have cached the block since our miss
+        Slot slot = file.blocks[blockIndex];
+        if (slot != null) {
+            slot.pins++;
+            if (!file.pinned) {
+                touch(slot);
+            }
+            return slot.index;
+        }
+
+        slot = allocateSlot();
+        if (slot == null) {
+            return -1;
+        }
+
+        ByteBuffer slab = slabs[slot.index / SLOTS_PER_SLAB];
+        int offset = (slot.index % SLOTS_PER_SLAB) * slotSize;
+        int length = data.remaining();
+        TFTPDataPacket.encodeHeader(slab, offset, blockNumber);
+        slab.put(offset + 4, data, data.position(), length);
+
+        slot.file = file;
+        slot.blockIndex = blockIndex;
+        slot.length = length + 4;
+        slot.pins = 1;
+        file.blocks[blockIndex] = slot;
+        file.cachedBlocks++;
+        usedSlots++;
+        if (!file.pinned) {
+            linkFirst(probation, slot);
+        }
+        return slot.index;
+    }
+
+    /**
+     * Unpins a slot returned by {@link #acquire} or {@link #put}.
+     *
+     * @param slotIndex The slot
+     */
+    public synchronized void release(int slotIndex) {
+        Slot slot = slots[slotIndex];
+        slot.pins--;
+        if (slot.pins == 0 && slot.file == null) {
+            // The block was invalidated while it was being sent
+            freeSlot(slot);
+        }
+    }
+
+    /**
+     * Gets the length of the datagram held in a pinned slot.
+     *
+     * @param slotIndex The slot
+     * @return The datagram length in bytes, header included
+     */
+    public synchronized int getLength(int slotIndex) {
+        return slots[slotIndex].length;
+    }
+
+    /**
+     * Creates an array to hold a session's views of the slabs, for use with {@link #select}.
+     *
+     * @return An empty view array
+     */
+    public ByteBuffer[] newViews() {
+        return new ByteBuffer[slabs.length];
+    }
+
+    /**
+     * Points a session's view at the datagram in a pinned slot.
+     * Views are created once per slab and reused, so this allocates nothing after warm-up.
+     *
+     * @param views The session's view array from {@link #newViews()}
+     * @param slotIndex The pinned slot
+     * @param length The datagram length from {@link #getLength(int)}
+     * @return The view, positioned on the datagram
+     */
+    public ByteBuffer select(ByteBuffer[] views, int slotIndex, int length) {
+        int slab = slotIndex / SLOTS_PER_SLAB;
+        ByteBuffer view = views[slab];
+        if (view == null) {
+            synchronized (this) {
+                view = slabs[slab].asReadOnlyBuffer();
+            }
+            views[slab] = view;
+        }
+        int offset = (slotIndex % SLOTS_PER_SLAB) * slotSize;
+        view.limit(offset + length).position(offset);
+        return view;
+    }
+
+    /**
+     * Caches every block of a file that is not cached yet, for a cache warmer.
+     * Stops early if every slot is pinned.
+     *
+     * @param handle The open file to load
+     * @param throttle The throttle that paces the reads
+     * @throws IOException If the file cannot be read
+     */
+    @Override
+    public void load(Storage.ReadHandle handle, CacheWarmer.Throttle throttle) throws IOException {
+        CachedFile file = open(handle);
+        try {
+            FileBlockReader reader = FileBlockReader.open(handle, ByteBuffer.allocate(blockSize), blockSize);
+            int blockLength;
+            int blockIndex = 0;
+            do {
+                if (isCached(file, blockIndex)) {
+                    blockLength = reader.skipBlock();
+                } else {
+                    throttle.acquire(blockSize);
+                    ByteBuffer block = reader.nextBlock();
+                    blockLength = block.remaining();
+                    // Block numbers wrap around as they do on the wire
+                    int slot = put(file, blockIndex, (short) (blockIndex + 1), block);
+                    if (slot < 0) {
+                        return;
+                    }
+                    release(slot);
+                }
+                blockIndex++;
+            } while (blockLength == blockSize);
+        } finally {
+            close(file);
+        }
+    }
+
+    private synchronized boolean isCached(CachedFile file, int blockIndex) {
+        return blockIndex < file.blocks.length && file.blocks[blockIndex] != null;
+    }
+
+    /**
+     * Keeps the blocks of a file out of the eviction lists, or puts them back.
+     *
+     * @param handle The open file, in the version to pin
+     * @param pinned Whether the file's blocks are to be kept
+     */
+    @Override
+    public void setPinned(Storage.ReadHandle handle, boolean pinned) {
+        FileId id = new FileId(handle.identity(), blockSize);
+        synchronized (this) {
+            if (pinned) {
+                pinnedFiles.add(id);
+            } else {
+                pinnedFiles.remove(id);
+            }
+            CachedFile file = files.get(id);
+            if (file == null || file.pinned == pinned) {
+                return;
+            }
+            file.pinned = pinned;
+            for (Slot slot : file.blocks) {
+                if (slot == null) {
+                    continue;
+                }
+                if (pinned) {
+                    unlink(slot);
+                } else {
+                    linkFirst(probation, slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every cached block of a file.
+     *
+     * @param path The file that has changed
+     * @throws IOException If the file's attributes cannot be read
+     */
+    public void invalidate(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Object identity = attributes.fileKey() != null ? attributes.fileKey() : path.toAbsolutePath().normalize();
+        synchronized (this) {
+            CachedFile file = files.get(new FileId(identity, blockSize));
+            if (file != null) {
+                invalidate(file);
+            }
+        }
+    }
+
+    private void invalidate(CachedFile file) {
+        invalidations++;
+        file.invalid = true;
+        files.remove(file.id, file);
+        for (int i = 0; i < file.blocks.length; i++) {
+            Slot slot = file.blocks[i];
+            if (slot != null) {
+                file.blocks[i] = null;
+                unlink(slot);
+                slot.file = null;
+                if (slot.pins == 0) {
+                    freeSlot(slot);
+                }
+            }
+        }
+        file.cachedBlocks = 0;
+    }
+
+    /**
+     * Gets a free slot, evicting the least recently used unpinned block if needed.
+     */
+    private Slot allocateSlot() {
+        if (freeCount > 0) {
+            return slots[freeSlots[--freeCount]];
+        }
+        if (nextUnused < slotCount) {
+            int index = nextUnused++;
+            int slab = index / SLOTS_PER_SLAB;
+            if (slabs[slab] == null) {
+                int slabSlots = Math.min(SLOTS_PER_SLAB, slotCount - slab * SLOTS_PER_SLAB);
+                slabs[slab] = ByteBuffer.allocateDirect(slabSlots * slotSize);
+            }
+            slots[index] = new Slot(index);
+            return slots[index];
+        }
+
+        // Evict from probation first, so blocks that were hit again survive scans
+        Slot victim = findVictim(probation);
+        if (victim == null) {
+            victim = findVictim(protectedSegment);
+        }
+        if (victim == null) {
+            return null;
+        }
+        evictions++;
+        CachedFile file = victim.file;
+        file.blocks[victim.blockIndex] = null;
+        file.cachedBlocks--;
+        unlink(victim);
+        victim.file = null;
+        usedSlots--;
+        if (file.cachedBlocks == 0 && file.openCount == 0) {
+            files.remove(file.id, file);
+        }
+        return victim;
+    }
+
+    private static Slot findVictim(Slot segment) {
+        for (Slot slot = segment.prev; slot != segment; slot = slot.prev) {
+            if (slot.pins == 0) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private void freeSlot(Slot slot) {
+        usedSlots--;
+        freeSlots[freeCount++] = slot.index;
+    }
+
+    /**
+     * Records a hit: probation blocks are promoted, protected blocks move to the front.
+     */
+    private void touch(Slot slot) {
+        if (slot.protectedSegment) {
+            unlink(slot);
+            linkFirst(protectedSegment, slot);
+            return;
+        }
+        unlink(slot);
+        linkFirst(protectedSegment, slot);
+        if (protectedCount > protectedCapacity) {
+            Slot demoted = protectedSegment.prev;
+            unlink(demoted);
+            linkFirst(probation, demoted);
+        }
+    }
+
+    private void linkFirst(Slot segment, Slot slot) {
+        slot.prev = segment;
+        slot.next = segment.next;
+        segment.next.prev = slot;
+        segment.next = slot;
+        slot.protectedSegment = segment == protectedSegment;
+        if (slot.protectedSegment) {
+            protectedCount++;
+        }
+    }
+
+    private void unlink(Slot slot) {
+        if (slot.prev == null) {
+            return;
+        }
+        slot.prev.next = slot.next;
+        slot.next.prev = slot.prev;
+        slot.prev = slot.next = null;
+        if (slot.protectedSegment) {
+            protectedCount--;
+            slot.protectedSegment = false;
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found their block.
+     * @return The hit count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that did not find their block.
+     * @return The miss count
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the share of lookups that found their block.
+     * @return The hit ratio, between 0 and 1
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Gets the number of blocks evicted to make room for others.
+     * @return The eviction count
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of times a file's blocks were dropped because it changed.
+     * @return The invalidation count
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Gets the number of bytes of slots holding a block.
+     * @return The used size in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return (long) usedSlots * slotSize;
+    }
+
+    /**
+     * Gets the maximum number of bytes of slots.
+     * @return The capacity in bytes
+     */
+    public long getCapacityBytes() {
+        return (long) slotCount * slotSize;
+    }
+
+    /**
+     * A file being served from the cache, in the version that was opened.
+     */
+    public static final class CachedFile {
+        private final FileId id;
+        private final long modified;
+        private final long size;
+        private final Slot[] blocks;
+        private int cachedBlocks;
+        private int openCount;
+        private boolean invalid;
+        private boolean pinned;
+
+        private CachedFile(FileId id, long modified, long size, int blockCount) {
+            this.id = id;
+            this.modified = modified;
+            this.size = size;
+            this.blocks = new Slot[blockCount];
+        }
+
+        /**
+         * Gets the size of the file in the cached version.
+         * @return The file size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Identity of a file at one block size.
+     */
+    private static final class FileId {
+        private final Object identity;
+        private final int blockSize;
+
+        FileId(Object identity, int blockSize) {
+            this.identity = identity;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileId)) {
+                return false;
+            }
+            FileId other = (FileId) o;
+            return blockSize == other.blockSize && identity.equals(other.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identity, blockSize);
+        }
+    }
+
+    /**
+     * A slot of a slab, and its place in the eviction lists.
+     */
+    private static final class Slot {
+        private final int index;
+        private CachedFile file;
+        private int blockIndex;
+        private int length;
+        private int pins;
+        private boolean protectedSegment;
+        private Slot prev;
+        private Slot next;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.networkcourse.tftp.server;
+
+import com.networkcourse.tftp.common.BufferPool;
+import com.networkcourse.tftp.util.FileBlockReader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Per-session read-ahead stage in front of a {@link FileBlockReader}.
+ * The next blocks of the file are loaded into a small ring of buffers by the
+ * read-ahead service's I/O threads while the session waits for ACKs, so a send
+ * only waits for the disk when the reader has fallen behind.
+ *
+ * The number of blocks kept loaded adapts to the ratio of disk read time to the
+ * time between blocks, and grows whenever the session stalls.
+ * Blocks that the session serves from elsewhere can be skipped; the I/O thread
+ * then skips them too, if it has not read them yet.
+ * The session side of a reader is not thread-safe.
+ *
+ * The session and the I/O thread meet on the reader's monitor, which, unlike the locks
+ * and conditions of java.util.concurrent, waits without allocating, so the steady state
+ * of a transfer makes no garbage.
+ */
+public class ReadAheadReader {
+    // Ring size; at most CAPACITY - 1 blocks are loaded ahead, so the block handed
+    // to the session is never overwritten before it asks for the next one
+    public static final int CAPACITY = 16;
+    private static final int MIN_DEPTH = 2;
+    private static final int MAX_DEPTH = CAPACITY - 1;
+    // Weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.125;
+
+    private final ReadAheadService service;
+    private final FileBlockReader source;
+    private final BufferPool bufferPool;
+    private final ByteBuffer[] ring = new ByteBuffer[CAPACITY];
+    private final int blockSize;
+    private final Runnable fillTask = this::fill;
+
+    // Guarded by this
+    private long produced;
+    private long consumed;
+    private boolean endOfFile;
+    private boolean filling;
+    private boolean closed;
+    private IOException error;
+    private int depth = MIN_DEPTH;
+    private double readNanos;
+    private double takeIntervalNanos;
+    private long lastTakeAt;
+
+    ReadAheadReader(ReadAheadService service, FileBlockReader source, BufferPool bufferPool) {
+        this.service = service;
+        this.source = source;
+        this.bufferPool = bufferPool;
+        this.blockSize = source.getBlockSize();
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = bufferPool.acquire();
+        }
+
+        synchronized (this) {
+            scheduleFill();
+        }
+    }
+
+    /**
+     * Gets the next block, waiting for the disk only if it has not been loaded yet.
+     * The returned buffer holds the block between its position and limit and is only
+     * valid until the next call to this method or {@link #skipBlock()}.
+     *
+     * @return The block, shorter than the block size if it is the last one
+     * @throws IOException If the block could not be read
+     */
+    public synchronized ByteBuffer nextBlock() throws IOException {
+        try {
+            long now = System.nanoTime();
+            if (lastTakeAt != 0) {
+                takeIntervalNanos += SMOOTHING * ((now - lastTakeAt) - takeIntervalNanos);
+            }
+            lastTakeAt = now;
+
+            if (produced > consumed) {
+                service.prefetchHits.increment();
+            } else {
+                // The disk is behind the network: read further ahead from now on
+                service.stalls.increment();
+                depth = Math.min(MAX_DEPTH, depth + 1);
+                scheduleFill();
+                while (produced <= consumed && error == null) {
+                    wait();
+                }
+                service.stallNanos.add(System.nanoTime() - now);
+                if (produced <= consumed) {
+                    throw error;
+                }
+            }
+
+            ByteBuffer block = ring[(int) (consumed % CAPACITY)];
+            consumed++;
+            adaptDepth();
+            scheduleFillIfLow();
+            return block;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        }
+    }
+
+    /**
+     * Moves past the next block without waiting for it, for blocks that are served from elsewhere.
+     *
+     * @return The length of the skipped block
+     */
+    public synchronized int skipBlock() {
+        long offset = consumed * blockSize;
+        int length = (int) Math.max(0, Math.min(blockSize, source.getSize() - offset));
+        if (produced > consumed) {
+            service.blocksWasted.increment();
+        }
+        consumed++;
+        scheduleFillIfLow();
+        return length;
+    }
+
+    /**
+     * Gets the number of blocks currently being kept loaded ahead.
+     *
+     * @return The read-ahead depth
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Stops reading ahead and returns the ring buffers to the pool.
+     * Waits for a block read in progress to finish.
+     */
+    public synchronized void close() {
+        closed = true;
+        boolean interrupted = false;
+        while (filling) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            bufferPool.release(ring[i]);
+            ring[i] = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loads blocks until the ring holds the read-ahead depth; runs on an I/O thread.
+     */
+    private void fill() {
+        try {
+            while (true) {
+                long index;
+                boolean skipped;
+                synchronized (this) {
+                    if (closed || endOfFile || error != null || produced - consumed >= depth) {
+                        filling = false;
+                        notifyAll();
+                        return;
+                    }
+                    index = produced;
+                    skipped = index < consumed;
+                }
+
+                // Blocks the session has already skipped are skipped here too
+                int length;
+                long readTime = -1;
+                if (skipped) {
+                    length = source.skipBlock();
+                } else {
+                    long start = System.nanoTime();
+                    ByteBuffer block = source.nextBlock();
+                    ByteBuffer slot = ring[(int) (index % CAPACITY)];
+                    length = block.remaining();
+                    slot.clear();
+                    slot.put(block);
+                    slot.flip();
+                    readTime = System.nanoTime() - start;
+                }
+
+                synchronized (this) {
+                    produced++;
+                    if (length < blockSize) {
+                        endOfFile = true;
+                    }
+                    if (readTime >= 0) {
+                        readNanos += SMOOTHING * (readTime - readNanos);
+                        service.blocksRead.increment();
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Read-ahead failed", e));
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        error = e;
+        filling = false;
+        notifyAll();
+    }
+
+    /**
+     * Sizes the read-ahead so that loading it takes about twice as long as the
+     * session takes to send it, shrinking by at most one block at a time.
+     */
+    private void adaptDepth() {
+        if (readNanos <= 0 || takeIntervalNanos <= 0) {
+            return;
+        }
+        int target = (int) Math.ceil(2 * readNanos / takeIntervalNanos) + 1;
+        depth = Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, Math.max(target, depth - 1)));
+    }
+
+    private void scheduleFillIfLow() {
+        // Refill in batches, so the I/O threads are not woken for every block
+        if (produced - consumed <= depth / 2) {
+            scheduleFill();
+        }
+    }
+
+    private void scheduleFill() {
+        if (filling || closed || endOfFile || error != null) {
+            return;
+        }
+        filling = true;
+        try {
+            service.execute(fillTask);
+        } catch (RejectedExecutionException e) {
+            filling = false;
+            error = new IOException("Read-ahead has been shut down");
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.networkcourse.tftp.server;
+
+import com.networkcourse.tftp.common.BufferPool;
+import com.networkcourse.tftp.util.FileBlockReader;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background I/O stage shared by the UDP sessions.
+ * Owns the I/O threads that fill the sessions' read-ahead rings, and the
+ * server-wide read-ahead metrics.
+ *
+ * Fills are handed to the threads through an array deque guarded by its monitor
+ * rather than an executor, whose queue allocates a node for every task and whose
+ * threads allocate whenever they wait; a session hands over a fill every few blocks.
+ */
+public class ReadAheadService {
+    public static final int DEFAULT_THREADS = 4;
+
+    private final Thread[] threads;
+    private final BufferPool bufferPool;
+
+    // Fills waiting for an I/O thread; guarded by pending
+    private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    private boolean shutdown;
+
+    final LongAdder prefetchHits = new LongAdder();
+    final LongAdder stalls = new LongAdder();
+    final LongAdder stallNanos = new LongAdder();
+    final LongAdder blocksRead = new LongAdder();
+    final LongAdder blocksWasted = new LongAdder();
+
+    /**
+     * Creates a new read-ahead service.
+     *
+     * @param threads The number of I/O threads
+     * @param bufferPool The pool to borrow the ring buffers from
+     */
+    public ReadAheadService(int threads, BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = new Thread(this::work, "tftp-read-ahead-" + (i + 1));
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Starts reading ahead of a transfer.
+     *
+     * @param source The reader of the file to send; only used by the I/O threads from now on
+     * @return The read-ahead reader, to be closed when the transfer ends
+     */
+    public ReadAheadReader open(FileBlockReader source) {
+        return new ReadAheadReader(this, source, bufferPool);
+    }
+
+    void execute(Runnable task) {
+        synchronized (pending) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Read-ahead has been shut down");
+            }
+            pending.addLast(task);
+            pending.notify();
+        }
+    }
+
+    /**
+     * Runs fills until the service is shut down; the loop of every I/O thread.
+     */
+    private void work() {
+        while (true) {
+            Runnable task;
+            synchronized (pending) {
+                while (pending.isEmpty() && !shutdown) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown) {
+                    return;
+                }
+                task = pending.pollFirst();
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * Gets the number of blocks that were already loaded when a session needed them.
+     * @return The prefetch hit count
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    /**
+     * Gets the number of times a session had to wait for the disk.
+     * @return The stall count
+     */
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    /**
+     * Gets the total time sessions spent waiting for the disk.
+     * @return The stall time in milliseconds
+     */
+    public long getStallMillis() {
+        return stallNanos.sum() / 1_000_000L;
+    }
+
+    /**
+     * Gets the number of blocks read ahead.
+     * @return The read count
+     */
+    public long getBlocksRead() {
+        return blocksRead.sum();
+    }
+
+    /**
+     * Gets the number of blocks read ahead but never used, because they were served from the block cache.
+     * @return The wasted read count
+     */
+    public long getBlocksWasted() {
+        return blocksWasted.sum();
+    }
+
+    /**
+     * Stops the I/O threads once the fills they are running are done. They are not
+     * interrupted, as that would close the shared channel a fill reads for every transfer.
+     */
+    public void shutdown() {
+        synchronized (pending) {
+            shutdown = true;
+            pending.clear();
+            pending.notifyAll();
+        }
+    }
+}
@@ -1,15 +1,38 @@
 package com.networkcourse.tftp.server;
 
+import com.networkcourse.tftp.client.TFTPClient;
 import com.networkcourse.tftp.common.*;
+import com.networkcourse.tftp.util.BundleStorage;
+import com.networkcourse.tftp.util.CacheWarmer;
+import com.networkcourse.tftp.util.DigestIndex;
+import com.networkcourse.tftp.util.FileHandleCache;
+import com.networkcourse.tftp.util.FileMetadataCache;
+import com.networkcourse.tftp.util.FileSystemStorage;
+import com.networkcourse.tftp.util.MemoryStorage;
+import com.networkcourse.tftp.util.PathLockTable;
+import com.networkcourse.tftp.util.PopularityTracker;
+import com.networkcourse.tftp.util.ProxyStorage;
+import com.networkcourse.tftp.util.SequencePrefetcher;
+import com.networkcourse.tftp.util.ShardedLayout;
+import com.networkcourse.tftp.util.Storage;
+import com.networkcourse.tftp.util.SyncService;
+import com.networkcourse.tftp.util.VirtualFiles;
+import com.networkcourse.tftp.util.WriteBehindService;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -22,13 +45,43 @@ import java.util.logging.Logger;
 public class TFTPServer {
     private static final Logger LOGGER = Logger.getLogger(TFTPServer.class.getName());
     
+    // Rules of the virtual files and their templates, in a directory hidden from clients
+    private static final String VIRTUAL_FILES_DIRECTORY = ".tftp-virtual";
+    private static final String VIRTUAL_FILES_RULES = "virtual-files.conf";
+    // Saved digests of the served files, in the base directory
+    private static final String DIGEST_INDEX_FILE = ".tftp-digests";
+    // Saved request counts of the served files, in the base directory
+    private static final String POPULARITY_FILE = ".tftp-popularity";
+    
     private final int port;
     private final String baseDirectory;
     private final ExecutorService executorService;
     
     private DatagramSocket mainSocket;
     private boolean running;
-    private final List<TFTPSession> activeSessions;
+    private volatile boolean accepting;
+    private final SessionRegistry sessionRegistry;
+    private final TransportProfileCache profileCache;
+    private final BufferPool bufferPool;
+    private final BlockCache blockCache;
+    private final FileHandleCache handleCache;
+    private final FileMetadataCache metadataCache;
+    private final ReadAheadService readAheadService;
+    private final WriteBehindService writeBehindService;
+    private final SyncService syncService;
+    private final PathLockTable pathLocks;
+    private volatile Storage storage;
+    private final VirtualFiles virtualFiles;
+    private final DigestIndex digestIndex;
+    private final PopularityTracker popularity;
+    private final CacheWarmer cacheWarmer;
+    private final SequencePrefetcher prefetcher;
+    
+    // Intake state, only touched by the listen thread
+    private final byte[] intakeBuffer = new byte[TFTPConstants.MAX_PACKET_SIZE];
+    private final ByteBuffer intakeView = ByteBuffer.wrap(intakeBuffer);
+    private final TFTPRequestParser requestParser = new TFTPRequestParser();
+    private final DatagramPacket errorDatagram = new DatagramPacket(new byte[0], 0);
     
     /**
      * Creates a new TFTP server.
@@ -41,7 +94,27 @@ public class TFTPServer {
         this.port = port;
         this.baseDirectory = baseDirectory;
         this.executorService = Executors.newFixedThreadPool(maxConcurrentSessions);
-        this.activeSessions = new ArrayList<>();
+        this.sessionRegistry = new SessionRegistry();
+        this.profileCache = new TransportProfileCache();
+        // Each session borrows a header, a data and a receive buffer, and a read-ahead ring
+        this.bufferPool = new BufferPool(TFTPConstants.MAX_PACKET_SIZE, 
+                maxConcurrentSessions * (3 + ReadAheadReader.CAPACITY));
+        this.blockCache = new BlockCache(BlockCache.DEFAULT_CAPACITY_BYTES, TFTPConstants.MAX_DATA_SIZE);
+        this.handleCache = new FileHandleCache();
+        this.metadataCache = new FileMetadataCache(baseDirectory);
+        this.readAheadService = new ReadAheadService(ReadAheadService.DEFAULT_THREADS, bufferPool);
+        this.writeBehindService = new WriteBehindService(WriteBehindService.DEFAULT_THREADS);
+        this.syncService = new SyncService(SyncService.Policy.NONE);
+        this.pathLocks = new PathLockTable();
+        this.storage = new FileSystemStorage(baseDirectory, handleCache, metadataCache, 
+                writeBehindService, syncService, pathLocks);
+        this.virtualFiles = new VirtualFiles();
+        this.digestIndex = new DigestIndex(Paths.get(baseDirectory, DIGEST_INDEX_FILE));
+        this.popularity = new PopularityTracker(Paths.get(baseDirectory, POPULARITY_FILE));
+        // Warming takes half of the block cache, leaving the rest to what clients ask for
+        this.cacheWarmer = new CacheWarmer(popularity, blockCache, CacheWarmer.DEFAULT_TOP_FILES, 
+                blockCache.getCapacityBytes() / 2, CacheWarmer.DEFAULT_BYTES_PER_SECOND);
+        this.prefetcher = new SequencePrefetcher(blockCache);
     }
     
     /**
@@ -57,10 +130,14 @@ public class TFTPServer {
         // Create and bind the socket
         mainSocket = new DatagramSocket(port);
         running = true;
+        accepting = true;
         
         LOGGER.info("TFTP Server started on port " + port);
         LOGGER.info("Base directory: " + baseDirectory);
         
+        // Load the most requested files while the first requests are already served
+        cacheWarmer.start(storage);
+        
         // Start the main listen loop
         new Thread(this::listenLoop).start();
     }
@@ -69,12 +146,10 @@ public class TFTPServer {
      * Main server loop that listens for incoming requests.
      */
     private void listenLoop() {
-        byte[] buffer = new byte[TFTPConstants.MAX_PACKET_SIZE];
-        
         while (running) {
             try {
                 // Wait for an incoming packet
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                DatagramPacket packet = new DatagramPacket(intakeBuffer, intakeBuffer.length);
                 mainSocket.receive(packet);
                 
                 // Process the packet
@@ -95,48 +170,90 @@ public class TFTPServer {
      */
     private void processIncomingPacket(DatagramPacket packet) {
         try {
-            // Parse the packet
-            TFTPPacket tftp = TFTPPacket.createFromBytes(packet.getData(), packet.getLength());
+            if (packet.getLength() < 2) {
+                throw new IOException("Invalid packet: too short");
+            }
+            
+            // Parse the packet in place; garbage is rejected without exceptions or allocation
+            intakeView.limit(packet.getLength()).position(0);
+            short opcode = intakeView.getShort(0);
             
             // We only accept RRQ and WRQ packets on the main socket
-            if (tftp.getOpcode() == TFTPConstants.OP_RRQ || tftp.getOpcode() == TFTPConstants.OP_WRQ) {
-                TFTPRequestPacket requestPacket = (TFTPRequestPacket) tftp;
+            if (opcode == TFTPConstants.OP_RRQ || opcode == TFTPConstants.OP_WRQ) {
+                if (!requestParser.parse(intakeView)) {
+                    sendError(packet.getAddress(), packet.getPort(),
+                             TFTPConstants.ERR_ILLEGAL_OP,
+                             requestParser.getError());
+                    return;
+                }
+                
+                // Refuse new transfers while draining
+                if (!accepting) {
+                    sendError(packet.getAddress(), packet.getPort(),
+                             TFTPConstants.ERR_NOT_DEFINED,
+                             "Server is shutting down");
+                    return;
+                }
                 
                 // Only accept octet mode
-                if (!TFTPConstants.MODE_OCTET.equalsIgnoreCase(requestPacket.getMode())) {
+                if (requestParser.getMode() != TFTPRequestParser.MODE_OCTET) {
                     sendError(packet.getAddress(), packet.getPort(), 
                              TFTPConstants.ERR_ILLEGAL_OP, 
                              "Only octet mode is supported");
                     return;
                 }
                 
-                // Create a new socket for this session
-                DatagramSocket sessionSocket = new DatagramSocket();
+                // Requests for files known to be missing are refused here, from the
+                // pre-encoded packet, without setting up a session
+                if (opcode == TFTPConstants.OP_RRQ && storage.isKnownMissing(requestParser.getFilename())
+                        && !virtualFiles.matches(requestParser.getFilename())) {
+                    EncodedPackets.setError(errorDatagram, TFTPConstants.ERR_FILE_NOT_FOUND);
+                    errorDatagram.setAddress(packet.getAddress());
+                    errorDatagram.setPort(packet.getPort());
+                    mainSocket.send(errorDatagram);
+                    return;
+                }
                 
                 // Create client address
                 InetSocketAddress clientAddress = new InetSocketAddress(
                         packet.getAddress(), packet.getPort());
                 
-                // Create and start a new session
-                TFTPSession session = new TFTPSession(sessionSocket, clientAddress, requestPacket, baseDirectory);
+                // A retransmitted request from a client TID that already has a session is a duplicate
+                if (sessionRegistry.getByClient(clientAddress) != null) {
+                    LOGGER.fine("Ignoring duplicate request from " + clientAddress);
+                    return;
+                }
                 
-                synchronized (activeSessions) {
-                    activeSessions.add(session);
+                TFTPRequestPacket requestPacket = requestParser.toPacket();
+                
+                // Create a new channel for this session, connected to the client's TID
+                DatagramChannel sessionChannel = DatagramChannel.open();
+                try {
+                    sessionChannel.bind(null);
+                    sessionChannel.connect(clientAddress);
+                } catch (IOException e) {
+                    sessionChannel.close();
+                    throw e;
                 }
                 
+                // Create and start a new session
+                TFTPSession session = new TFTPSession(sessionRegistry.nextSessionId(), sessionChannel, 
+                        bufferPool, clientAddress, requestPacket, storage, virtualFiles, digestIndex, 
+                        popularity, prefetcher, profileCache, blockCache, readAheadService);
+                
+                sessionRegistry.register(session);
+                
                 executorService.submit(() -> {
                     try {
                         session.run();
                     } finally {
-                        synchronized (activeSessions) {
-                            activeSessions.remove(session);
-                        }
+                        sessionRegistry.unregister(session);
                     }
                 });
                 
             } else {
                 // Unexpected packet type on main socket
-                LOGGER.warning("Received unexpected packet type on main socket: " + tftp.getOpcode());
+                LOGGER.warning("Received unexpected packet type on main socket: " + opcode);
                 sendError(packet.getAddress(), packet.getPort(),
                          TFTPConstants.ERR_ILLEGAL_OP,
                          "Unexpected packet type");
@@ -177,6 +294,237 @@ public class TFTPServer {
         mainSocket.send(outPacket);
     }
     
+    /**
+     * Gets the registry of active sessions.
+     * 
+     * @return The session registry
+     */
+    public SessionRegistry getSessionRegistry() {
+        return sessionRegistry;
+    }
+    
+    /**
+     * Gets the cache of transport profiles learned from earlier sessions.
+     * 
+     * @return The transport profile cache
+     */
+    public TransportProfileCache getProfileCache() {
+        return profileCache;
+    }
+    
+    /**
+     * Gets the pool of direct buffers shared by the sessions.
+     * 
+     * @return The buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    /**
+     * Gets the cache of encoded DATA packets shared by the sessions.
+     * 
+     * @return The block cache
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+    
+    /**
+     * Gets the cache of open file channels shared by the sessions.
+     * 
+     * @return The file handle cache
+     */
+    public FileHandleCache getHandleCache() {
+        return handleCache;
+    }
+    
+    /**
+     * Gets the cache of file metadata shared by the sessions.
+     * 
+     * @return The metadata cache
+     */
+    public FileMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+    
+    /**
+     * Gets the background I/O stage that reads files ahead of the sessions' sends.
+     * 
+     * @return The read-ahead service
+     */
+    public ReadAheadService getReadAheadService() {
+        return readAheadService;
+    }
+    
+    /**
+     * Gets the background I/O stage that writes uploads behind the sessions' receives.
+     * 
+     * @return The write-behind service
+     */
+    public WriteBehindService getWriteBehindService() {
+        return writeBehindService;
+    }
+    
+    /**
+     * Gets the service that makes uploads durable, where the server-wide and per-path
+     * durability policies are set.
+     * 
+     * @return The sync service
+     */
+    public SyncService getSyncService() {
+        return syncService;
+    }
+    
+    /**
+     * Gets the table of per-path locks that keeps concurrent uploads of the same file apart.
+     * 
+     * @return The path lock table
+     */
+    public PathLockTable getPathLocks() {
+        return pathLocks;
+    }
+    
+    /**
+     * Gets the storage files are served from and uploaded to.
+     * 
+     * @return The storage
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+    
+    /**
+     * Sets the storage files are served from and uploaded to, in place of the base directory.
+     * Sessions already running carry on with the storage they started with.
+     * The storage replaced is closed, releasing what it holds for itself; the caches and 
+     * services it shared with the server stay open until the server stops.
+     * 
+     * @param storage The storage, which must not wrap the current one
+     */
+    public void setStorage(Storage storage) {
+        Storage previous = this.storage;
+        this.storage = storage;
+        previous.close();
+    }
+    
+    /**
+     * Serves the base directory with its files spread over a tree of hashed directories,
+     * for upload areas too large for one directory. Existing files are moved into the 
+     * tree with {@link ShardedLayout#main(String[])} while the server is stopped.
+     * 
+     * @throws IOException If the tree cannot be created or indexed
+     */
+    public void useShardedLayout() throws IOException {
+        setStorage(new FileSystemStorage(baseDirectory, handleCache, metadataCache, 
+                writeBehindService, syncService, pathLocks, new ShardedLayout(Paths.get(baseDirectory))));
+    }
+    
+    /**
+     * Makes this server an edge of another TFTP server: files missing from the current 
+     * storage are fetched from the upstream server with the client's transfer logic, 
+     * streamed to the requesting clients as they arrive and cached in memory.
+     * The proxy's cache metrics are on the storage this installs.
+     * 
+     * @param upstreamHost The upstream server's hostname or IP address
+     * @param upstreamPort The upstream server's port
+     */
+    public void setUpstream(String upstreamHost, int upstreamPort) {
+        // Fetches learn the upstream's round-trip time from each other
+        TransportProfileCache upstreamProfiles = new TransportProfileCache();
+        this.storage = new ProxyStorage(storage, (name, destination) -> {
+            try {
+                // A client runs one transfer at a time, so every fetch gets its own
+                return new TFTPClient(upstreamHost, upstreamPort, upstreamProfiles).download(name, destination);
+            } catch (TFTPErrorException e) {
+                if (e.getErrorCode() == TFTPConstants.ERR_FILE_NOT_FOUND) {
+                    throw new NoSuchFileException(name);
+                }
+                throw e;
+            }
+        });
+    }
+    
+    /**
+     * Gets the files rendered per client from templates, where their rules are added.
+     * 
+     * @return The virtual files
+     */
+    public VirtualFiles getVirtualFiles() {
+        return virtualFiles;
+    }
+    
+    /**
+     * Gets the index of file digests that answers conditional requests, with the bytes they saved.
+     * 
+     * @return The digest index
+     */
+    public DigestIndex getDigestIndex() {
+        return digestIndex;
+    }
+    
+    /**
+     * Gets the tracker of how often each stored file is requested.
+     * 
+     * @return The popularity tracker
+     */
+    public PopularityTracker getPopularity() {
+        return popularity;
+    }
+    
+    /**
+     * Gets the warmer that loads the most requested files at startup, with the time it took.
+     * 
+     * @return The cache warmer
+     */
+    public CacheWarmer getCacheWarmer() {
+        return cacheWarmer;
+    }
+    
+    /**
+     * Gets the prefetcher that loads the files clients are about to ask for, with its accuracy.
+     * 
+     * @return The sequence prefetcher
+     */
+    public SequencePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+    
+    /**
+     * Loads a file into the caches and keeps it there until it is unpinned.
+     * 
+     * @param filename The file name
+     * @throws IOException If the file cannot be read
+     */
+    public void pin(String filename) throws IOException {
+        cacheWarmer.pin(storage, filename);
+    }
+    
+    /**
+     * Lets a pinned file leave the caches again.
+     * 
+     * @param filename The file name
+     * @return true if the file was pinned
+     */
+    public boolean unpin(String filename) {
+        return cacheWarmer.unpin(filename);
+    }
+    
+    /**
+     * Stops accepting new requests, waits for the active sessions to finish and then stops the server.
+     * 
+     * @param timeoutMillis The maximum time to wait for active sessions in milliseconds
+     * @return true if all sessions finished before the timeout, false otherwise
+     * @throws IOException If an I/O error occurs
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public boolean drain(long timeoutMillis) throws IOException, InterruptedException {
+        accepting = false;
+        boolean drained = sessionRegistry.drainAll(timeoutMillis);
+        stop();
+        return drained;
+    }
+    
     /**
      * Stops the server.
           * @throws IOException 
@@ -187,14 +535,10 @@ public class TFTPServer {
         }
         
         running = false;
+        accepting = false;
         
         // Stop all active sessions
-        synchronized (activeSessions) {
-            for (TFTPSession session : activeSessions) {
-                session.stop();
-            }
-            activeSessions.clear();
-        }
+        sessionRegistry.killAll();
         
         // Close the main socket
         if (mainSocket != null) {
@@ -202,8 +546,19 @@ public class TFTPServer {
             mainSocket = null;
         }
         
-        // Shutdown the executor service
-        executorService.shutdownNow();
+        // Shutdown the executor service; the sessions were killed above, and an interrupt
+        // would close the shared file channels they read
+        executorService.shutdown();
+        readAheadService.shutdown();
+        prefetcher.shutdown();
+        writeBehindService.shutdown();
+        syncService.shutdown();
+        cacheWarmer.close();
+        storage.close();
+        digestIndex.close();
+        popularity.close();
+        handleCache.closeAll();
+        metadataCache.close();
         
         LOGGER.info("TFTP Server stopped");
     }
@@ -211,10 +566,11 @@ public class TFTPServer {
     /**
      * Main method to start the server.
      * 
-     * @param args Command line arguments (optional: port)
+     * @param args Command line arguments (optional: port, durability policy, storage, upstream server)
      */
     public static void main(String[] args) throws IOException {
         int port = TFTPConstants.DEFAULT_PORT;
+        SyncService.Policy durabilityPolicy = SyncService.Policy.NONE;
         
         // Parse port number from command line arguments
         if (args.length > 0) {
@@ -226,11 +582,61 @@ public class TFTPServer {
             }
         }
         
+        // Parse the durability policy (none, the default, on_close or group_commit)
+        if (args.length > 1) {
+            try {
+                durabilityPolicy = SyncService.Policy.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid durability policy: " + args[1]);
+                System.exit(1);
+            }
+        }
+        
         // Use current directory as base directory
         String baseDirectory = System.getProperty("user.dir");
         
         // Create and start the server
         TFTPServer server = new TFTPServer(port, baseDirectory, 10);
+        server.getSyncService().setDefaultPolicy(durabilityPolicy);
+        
+        // Serve from the file system (disk), from the file system sharded into hashed directories 
+        // (sharded), from a copy of the base directory held in memory (memory), or from the 
+        // entries of a ZIP bundle (the bundle's path)
+        if (args.length > 2) {
+            if (args[2].equalsIgnoreCase("sharded")) {
+                server.useShardedLayout();
+            } else if (args[2].equalsIgnoreCase("memory")) {
+                server.setStorage(MemoryStorage.load(Paths.get(baseDirectory)));
+            } else if (args[2].toLowerCase().endsWith(".zip")) {
+                server.setStorage(new BundleStorage(Paths.get(args[2])));
+            } else if (!args[2].equalsIgnoreCase("disk")) {
+                System.err.println("Invalid storage: " + args[2]);
+                System.exit(1);
+            }
+        }
+        
+        // Fill misses from an upstream server (host:port), as an edge of it
+        if (args.length > 3) {
+            int separator = args[3].lastIndexOf(':');
+            try {
+                server.setUpstream(args[3].substring(0, separator), 
+                        Integer.parseInt(args[3].substring(separator + 1)));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                System.err.println("Invalid upstream server: " + args[3]);
+                System.exit(1);
+            }
+        }
+        
+        // Load the rules of the virtual files, if there are any
+        Path virtualFilesRules = Paths.get(baseDirectory, VIRTUAL_FILES_DIRECTORY, VIRTUAL_FILES_RULES);
+        if (Files.isRegularFile(virtualFilesRules)) {
+            server.getVirtualFiles().load(virtualFilesRules);
+        }
+        if (Files.isRegularFile(Paths.get(baseDirectory, VIRTUAL_FILES_RULES))) {
+            // Where the rules used to be, served to anyone who asks
+            LOGGER.warning(VIRTUAL_FILES_RULES + " in the base directory is not loaded; move it and its templates to "
+                    + Paths.get(baseDirectory, VIRTUAL_FILES_DIRECTORY));
+        }
         
         try {
             server.start();
@@ -248,6 +654,12 @@ public class TFTPServer {
             System.out.println("TFTP Server started on port " + port);
             System.out.println("Base directory: " + baseDirectory);
             System.out.println("Press Ctrl+C to stop the server");
+            System.out.println("Commands: pin <file>, unpin <file>, top [count]");
+            
+            // Operator commands come from standard input
+            Thread console = new Thread(() -> runConsole(server), "tftp-console");
+            console.setDaemon(true);
+            console.start();
             
             // Wait for the server to stop
             while (server.running) {
@@ -261,4 +673,47 @@ public class TFTPServer {
             // Ignore
         }
     }
+    
+    /**
+     * Reads operator commands from standard input until it ends.
+     * 
+     * @param server The server the commands apply to
+     */
+    private static void runConsole(TFTPServer server) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.trim().split("\\s+", 2);
+                String argument = words.length > 1 ? words[1] : "";
+                try {
+                    switch (words[0]) {
+                        case "pin":
+                            server.pin(argument);
+                            System.out.println("Pinned " + argument);
+                            break;
+                        case "unpin":
+                            System.out.println(server.unpin(argument) ? "Unpinned " + argument : "Not pinned: " + argument);
+                            break;
+                        case "top":
+                            int count = argument.isEmpty() ? 10 : Integer.parseInt(argument);
+                            for (String name : server.getPopularity().top(count)) {
+                                System.out.println(server.getPopularity().estimate(name) + "\t" + name);
+                            }
+                            break;
+                        case "":
+                            break;
+                        default:
+                            System.out.println("Unknown command: " + words[0]);
+                    }
+                } catch (NoSuchFileException e) {
+                    System.out.println("File not found: " + argument);
+                } catch (IOException | NumberFormatException e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Console closed", e);
+        }
+    }
 }
@@ -1,51 +1,139 @@
 package com.networkcourse.tftp.server;
 
 import com.networkcourse.tftp.common.*;
+import com.networkcourse.tftp.util.DigestIndex;
+import com.networkcourse.tftp.util.FileBlockReader;
 import com.networkcourse.tftp.util.FileTransferUtil;
+import com.networkcourse.tftp.util.PopularityTracker;
+import com.networkcourse.tftp.util.SequencePrefetcher;
+import com.networkcourse.tftp.util.Storage;
+import com.networkcourse.tftp.util.StorageFullException;
+import com.networkcourse.tftp.util.VirtualFiles;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Handles a single TFTP transfer session over UDP.
  * This class manages the communication for one specific file transfer.
+ * The session talks to the client over a DatagramChannel connected to the client's TID,
+ * so the kernel drops packets from any other source, and sends and receives through
+ * direct buffers borrowed from the server's pool.
  */
 public class TFTPSession implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(TFTPSession.class.getName());
+    private static final Consumer<SelectionKey> IGNORE_KEY = key -> { };
     
-    private final DatagramSocket socket;
+    /**
+     * Lifecycle states of a session.
+     */
+    public enum State {
+        STARTING, TRANSFERRING, DRAINING, COMPLETED, FAILED, KILLED
+    }
+    
+    private final long sessionId;
+    private final DatagramChannel channel;
+    private final BufferPool bufferPool;
     private final InetSocketAddress clientAddress;
     private final TFTPRequestPacket requestPacket;
-    private final String baseDirectory;
+    private final Storage storage;
+    private final VirtualFiles virtualFiles;
+    private final DigestIndex digestIndex;
+    private final PopularityTracker popularity;
+    private final SequencePrefetcher prefetcher;
+    private final TransportProfileCache profileCache;
+    private final BlockCache blockCache;
+    private final ReadAheadService readAheadService;
+    private final RttEstimator rttEstimator;
+    private final long createdAt;
+    
+    // Direct buffers borrowed from the pool for the life of the session
+    private ByteBuffer headerBuffer;
+    private ByteBuffer dataBuffer;
+    private ByteBuffer receiveBuffer;
+    
+    // DATA packets are sent as a gathering write of the header and the block
+    private final ByteBuffer[] dataSegments = new ByteBuffer[2];
+    // Cached DATA packets are sent as a single, already encoded slice
+    private final ByteBuffer[] cachedSegments = new ByteBuffer[1];
+    private final ByteBuffer[] cacheViews;
+    private final ByteBuffer ackView = EncodedPackets.newAckView();
+    private final TFTPPacketView packetView = new TFTPPacketView();
+    private volatile Selector selector;
     
-    private boolean running = true;
+    private volatile boolean running = true;
+    // Changed only by compare-and-set, so a drain or kill is never overwritten
+    private final AtomicReference<State> state = new AtomicReference<>(State.STARTING);
+    private volatile long bytesTransferred;
+    private boolean succeeded;
     
     /**
      * Creates a new TFTP session.
      * 
-     * @param socket The socket to use for communication
+     * @param sessionId The unique ID of this session
+     * @param channel The channel to use for communication, connected to the client
+     * @param bufferPool The pool to borrow direct packet buffers from
      * @param clientAddress The address of the client
      * @param requestPacket The initial request packet
-     * @param baseDirectory The base directory for file operations
+     * @param storage The storage files are served from and uploaded to
+     * @param virtualFiles The files rendered per client, served ahead of the storage
+     * @param digestIndex The digests of the stored files, for conditional requests
+     * @param popularity The tracker the requests for stored files are counted in
+     * @param prefetcher The prefetcher that learns the order of the requests for stored files
+     * @param profileCache The cache of transport profiles learned from earlier transfers
+     * @param blockCache The server-wide cache of encoded DATA packets
+     * @param readAheadService The background I/O stage that reads files ahead of the sends
      */
-    public TFTPSession(DatagramSocket socket, InetSocketAddress clientAddress, 
-                        TFTPRequestPacket requestPacket, String baseDirectory) {
-        this.socket = socket;
+    public TFTPSession(long sessionId, DatagramChannel channel, BufferPool bufferPool, 
+                        InetSocketAddress clientAddress, 
+                        TFTPRequestPacket requestPacket, Storage storage,
+                        VirtualFiles virtualFiles, DigestIndex digestIndex, 
+                        PopularityTracker popularity, SequencePrefetcher prefetcher, 
+                        TransportProfileCache profileCache, BlockCache blockCache,
+                        ReadAheadService readAheadService) {
+        this.sessionId = sessionId;
+        this.channel = channel;
+        this.bufferPool = bufferPool;
         this.clientAddress = clientAddress;
         this.requestPacket = requestPacket;
-        this.baseDirectory = baseDirectory;
+        this.storage = storage;
+        this.virtualFiles = virtualFiles;
+        this.digestIndex = digestIndex;
+        this.popularity = popularity;
+        this.prefetcher = prefetcher;
+        this.profileCache = profileCache;
+        this.blockCache = blockCache;
+        this.readAheadService = readAheadService;
+        this.cacheViews = blockCache.newViews();
+        this.rttEstimator = new RttEstimator(profileCache.get(clientAddress.getAddress()));
+        this.createdAt = System.currentTimeMillis();
     }
     
     @Override
     public void run() {
+        state.compareAndSet(State.STARTING, State.TRANSFERRING);
+        
         try {
-            // Set timeout for socket
-            socket.setSoTimeout(TFTPConstants.SOCKET_TIMEOUT);
+            // Timeouts are implemented with a selector, as channel reads ignore SO_TIMEOUT
+            selector = Selector.open();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            
+            headerBuffer = bufferPool.acquire();
+            dataBuffer = bufferPool.acquire();
+            receiveBuffer = bufferPool.acquire();
+            dataSegments[0] = headerBuffer;
             
             // Handle the request based on its type
             if (requestPacket.isReadRequest()) {
@@ -60,7 +148,16 @@ public class TFTPSession implements Runnable {
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "IO error in session", e);
         } finally {
-            socket.close();
+            FileTransferUtil.closeQuietly(channel);
+            FileTransferUtil.closeQuietly(selector);
+            bufferPool.release(headerBuffer);
+            bufferPool.release(dataBuffer);
+            bufferPool.release(receiveBuffer);
+            if (rttEstimator.hasEstimate()) {
+                profileCache.put(clientAddress.getAddress(), 
+                        rttEstimator.toProfile(TFTPConstants.MAX_DATA_SIZE, 1));
+            }
+            finish(succeeded ? State.COMPLETED : State.FAILED);
         }
     }
     
@@ -70,92 +167,185 @@ public class TFTPSession implements Runnable {
     private void handleReadRequest() {
         LOGGER.info("Handling read request for file: " + requestPacket.getFilename());
         
-        String filePath = baseDirectory + File.separator + requestPacket.getFilename();
-        try (FileInputStream fileInputStream = FileTransferUtil.openFileForReading(filePath)) {
+        // Virtual files shadow stored files of the same name
+        Storage.ReadHandle virtualFile = virtualFiles.open(requestPacket.getFilename(), clientAddress.getAddress());
+        
+        if (virtualFile == null) {
             // Check if file exists and is readable
-            if (!FileTransferUtil.isFileReadable(filePath)) {
+            Storage.Stat stat = storage.stat(requestPacket.getFilename());
+            if (stat.isDenied()) {
+                sendError(TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
+                return;
+            }
+            if (!stat.isReadable()) {
                 sendError(TFTPConstants.ERR_FILE_NOT_FOUND, TFTPConstants.ERR_MSG_FILE_NOT_FOUND);
                 return;
             }
+            popularity.record(requestPacket.getFilename());
+            prefetcher.requested(clientAddress.getAddress(), requestPacket.getFilename(), storage);
             
-            byte[] buffer = new byte[TFTPConstants.MAX_DATA_SIZE];
-            int bytesRead;
-            short blockNumber = 1;
+            // A client that already has the current version is told so instead of sent the file
+            if (digestIndex.isUnchanged(storage, requestPacket.getFilename(), stat, requestPacket.getDigest())) {
+                sendNotModified();
+                return;
+            }
+        }
+        
+        try (Storage.ReadHandle fileHandle = virtualFile != null 
+                ? virtualFile : storage.open(requestPacket.getFilename())) {
+            BlockCache.CachedFile cachedFile = blockCache.open(fileHandle);
+            try {
+                sendFile(fileHandle, cachedFile);
+            } finally {
+                blockCache.close(cachedFile);
+            }
             
-            // Read and send blocks until the file is completely sent
-            do {
-                // Read a block from the file
-                bytesRead = FileTransferUtil.readBlock(fileInputStream, buffer, TFTPConstants.MAX_DATA_SIZE);
-                
-                if (bytesRead >= 0) {
-                    // Create and send data packet
-                    TFTPDataPacket dataPacket = new TFTPDataPacket(blockNumber, buffer, bytesRead);
-                    boolean success = sendDataAndWaitForAck(dataPacket, blockNumber);
-                    
-                    if (!success) {
-                        LOGGER.warning("Failed to send data block " + blockNumber);
-                        return;
-                    }
-                    
-                    blockNumber++;
-                }
-            } while (bytesRead == TFTPConstants.MAX_DATA_SIZE && running);
+            if (!succeeded) {
+                return;
+            }
             
             LOGGER.info("File " + requestPacket.getFilename() + " sent successfully");
             
-        } catch (FileNotFoundException e) {
+        } catch (FileNotFoundException | NoSuchFileException e) {
             sendError(TFTPConstants.ERR_FILE_NOT_FOUND, "File not found: " + requestPacket.getFilename());
+        } catch (AccessDeniedException e) {
+            sendError(TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Error reading file: " + requestPacket.getFilename(), e);
             sendError(TFTPConstants.ERR_NOT_DEFINED, "Error reading file: " + e.getMessage());
         }
     }
     
+    /**
+     * Sends the blocks of a file until a short (possibly empty) one has been acknowledged.
+     * Blocks found in the block cache are sent as they are; others are read from the file
+     * and added to the cache on the way out.
+     * 
+     * @param fileHandle The handle of the file, possibly shared with other transfers
+     * @param cachedFile The file's entry in the block cache
+     * @throws IOException If an I/O error occurs
+     */
+    private void sendFile(Storage.ReadHandle fileHandle, BlockCache.CachedFile cachedFile) throws IOException {
+        // Large and in-memory files are served from a mapping, small ones are read into the 
+        // data buffer; either way the blocks are loaded ahead of the sends on an I/O thread
+        FileBlockReader fileReader = FileBlockReader.open(
+                fileHandle, dataBuffer, TFTPConstants.MAX_DATA_SIZE);
+        ReadAheadReader blockReader = readAheadService.open(fileReader);
+        try {
+            sendBlocks(blockReader, cachedFile);
+        } finally {
+            blockReader.close();
+        }
+    }
+    
+    /**
+     * Sends the blocks of a file from the read-ahead reader or the block cache.
+     * 
+     * @param blockReader The read-ahead reader of the file
+     * @param cachedFile The file's entry in the block cache
+     * @throws IOException If an I/O error occurs
+     */
+    private void sendBlocks(ReadAheadReader blockReader, BlockCache.CachedFile cachedFile) throws IOException {
+        int blockLength;
+        int blockIndex = 0;
+        short blockNumber = 1;
+        
+        do {
+            boolean success;
+            int slot = blockCache.acquire(cachedFile, blockIndex);
+            ByteBuffer block = null;
+            if (slot >= 0) {
+                blockReader.skipBlock();
+            } else {
+                block = blockReader.nextBlock();
+                slot = blockCache.put(cachedFile, blockIndex, blockNumber, block);
+            }
+            
+            try {
+                if (slot >= 0) {
+                    // Send the encoded packet straight from the cache
+                    int length = blockCache.getLength(slot);
+                    blockLength = length - 4;
+                    cachedSegments[0] = blockCache.select(cacheViews, slot, length);
+                    success = sendAndWaitForAck(blockNumber, cachedSegments);
+                } else {
+                    // The cache is full of pinned blocks, so send from the file
+                    blockLength = block.remaining();
+                    success = sendDataAndWaitForAck(blockNumber, block);
+                }
+            } finally {
+                if (slot >= 0) {
+                    blockCache.release(slot);
+                }
+            }
+            
+            if (!success) {
+                LOGGER.warning("Failed to send data block " + blockNumber);
+                return;
+            }
+            
+            bytesTransferred += blockLength;
+            blockIndex++;
+            blockNumber++;
+        } while (blockLength == TFTPConstants.MAX_DATA_SIZE && running);
+        
+        succeeded = running;
+    }
+    
     /**
      * Sends a data packet and waits for an acknowledgment.
+     * 
+     * @param blockNumber The block number, also expected in the ACK
+     * @param block The block data, between the buffer's position and limit
+     * @return true if the data was acknowledged, false otherwise
+     */
+    private boolean sendDataAndWaitForAck(short blockNumber, ByteBuffer block) throws IOException {
+        headerBuffer.clear();
+        headerBuffer.limit(TFTPDataPacket.encodeHeader(headerBuffer, 0, blockNumber));
+        dataSegments[1] = block;
+        return sendAndWaitForAck(blockNumber, dataSegments);
+    }
+    
+    /**
+     * Sends a DATA datagram and waits for its acknowledgment.
      * Implements the retransmission logic.
      * 
-     * @param dataPacket The data packet to send
-     * @param blockNumber The block number to expect in the ACK
+     * @param blockNumber The block number, expected in the ACK
+     * @param datagram The buffers making up the datagram, each between its position and limit
      * @return true if the data was acknowledged, false otherwise
      */
-    private boolean sendDataAndWaitForAck(TFTPDataPacket dataPacket, short blockNumber) throws IOException {
-        byte[] serializedData = dataPacket.serialize();
-        DatagramPacket outPacket = new DatagramPacket(
-                serializedData, 
-                serializedData.length, 
-                clientAddress.getAddress(), 
-                clientAddress.getPort());
+    private boolean sendAndWaitForAck(short blockNumber, ByteBuffer[] datagram) throws IOException {
+        for (ByteBuffer segment : datagram) {
+            segment.mark();
+        }
         
         for (int retry = 0; retry < TFTPConstants.MAX_RETRIES; retry++) {
-            // Send the data packet
-            socket.send(outPacket);
+            // Send the data packet as one datagram gathered from its buffers
+            for (ByteBuffer segment : datagram) {
+                segment.reset();
+            }
+            long sentAt = System.nanoTime();
+            channel.write(datagram);
+            rttEstimator.packetSent(retry > 0);
             
-            // Wait for ACK
-            try {
-                byte[] receiveBuffer = new byte[TFTPConstants.MAX_PACKET_SIZE];
-                DatagramPacket inPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                
-                socket.receive(inPacket);
-                
-                // Parse the received packet
-                TFTPPacket receivedPacket = TFTPPacket.createFromBytes(inPacket.getData(), inPacket.getLength());
-                
-                if (receivedPacket.getOpcode() == TFTPConstants.OP_ACK) {
-                    TFTPAckPacket ackPacket = (TFTPAckPacket) receivedPacket;
-                    
-                    if (ackPacket.getBlockNumber() == blockNumber) {
-                        // Successfully acknowledged
-                        return true;
-                    } else {
-                        LOGGER.warning("Received ACK for wrong block, expected " + 
-                                       blockNumber + " but got " + ackPacket.getBlockNumber());
-                    }
-                }
-                
-            } catch (SocketTimeoutException e) {
+            // Wait for ACK, backing off the timeout on every retry
+            TFTPPacketView receivedPacket = receivePacket(rttEstimator.getTimeout(retry));
+            
+            if (receivedPacket == null) {
                 LOGGER.info("Timeout waiting for ACK, retrying (" + (retry + 1) + 
                            "/" + TFTPConstants.MAX_RETRIES + ")");
+            } else if (receivedPacket.isAck()) {
+                if (receivedPacket.getBlockNumber() == blockNumber) {
+                    // Successfully acknowledged; only first transmissions give an unambiguous RTT
+                    if (retry == 0) {
+                        rttEstimator.addSample((System.nanoTime() - sentAt) / 1e6);
+                    }
+                    return true;
+                } else if (LOGGER.isLoggable(Level.FINE)) {
+                    // Duplicate ACKs are routine under loss, so keep them off the hot path
+                    LOGGER.fine("Received ACK for wrong block, expected " + 
+                                blockNumber + " but got " + receivedPacket.getBlockNumber());
+                }
             }
         }
         
@@ -169,22 +359,19 @@ public class TFTPSession implements Runnable {
     private void handleWriteRequest() {
         LOGGER.info("Handling write request for file: " + requestPacket.getFilename());
         
-        String filePath = baseDirectory + File.separator + requestPacket.getFilename();
-        
-        // Check if file already exists
-        File targetFile = new File(filePath);
-        if (targetFile.exists()) {
+        // Check if file already exists, then if it can be written
+        Storage.Stat stat = storage.stat(requestPacket.getFilename());
+        if (stat.exists()) {
             sendError(TFTPConstants.ERR_FILE_EXISTS, TFTPConstants.ERR_MSG_FILE_EXISTS);
             return;
         }
+        if (!stat.isWritable()) {
+            sendError(TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
+            return;
+        }
         
-        try (FileOutputStream fileOutputStream = FileTransferUtil.openFileForWriting(filePath)) {
-            // Check if file can be written
-            if (!FileTransferUtil.isFileWritable(filePath)) {
-                sendError(TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
-                return;
-            }
-            
+        // Nothing appears under the file's name until the upload is committed
+        try (Storage.Upload upload = storage.create(requestPacket.getFilename())) {
             // Send initial ACK with block number 0 to indicate we're ready to receive data
             sendAck((short) 0);
             
@@ -193,8 +380,8 @@ public class TFTPSession implements Runnable {
             
             // Receive data packets until we get a packet smaller than the maximum size or an error occurs
             while (!lastPacket && running) {
-                // Receive a data packet
-                TFTPDataPacket dataPacket = receiveData(expectedBlock);
+                // Receive a data packet; the view points into the receive buffer
+                TFTPPacketView dataPacket = receiveData(expectedBlock);
                 
                 if (dataPacket == null) {
                     // Failed to receive expected data
@@ -202,28 +389,42 @@ public class TFTPSession implements Runnable {
                     return;
                 }
                 
-                // Write the data to the file
-                FileTransferUtil.writeBlock(fileOutputStream, dataPacket.getData(), dataPacket.getDataLength());
-                
-                // Send ACK
-                sendAck(expectedBlock);
+                // Copy the payload out of the receive buffer into the upload
+                int dataLength = dataPacket.getPayloadLength();
+                upload.write(dataPacket.payload());
+                bytesTransferred += dataLength;
                 
                 // Check if this is the last packet
-                if (dataPacket.getDataLength() < TFTPConstants.MAX_DATA_SIZE) {
+                if (dataLength < TFTPConstants.MAX_DATA_SIZE) {
                     lastPacket = true;
+                    // The final ACK tells the client the file is complete, so it must be committed first
+                    upload.commit();
                 }
                 
+                // Send ACK
+                sendAck(expectedBlock);
+                
                 expectedBlock++;
             }
             
+            if (!lastPacket) {
+                return;
+            }
+            
+            succeeded = true;
             LOGGER.info("File " + requestPacket.getFilename() + " received successfully");
             
+        } catch (FileAlreadyExistsException e) {
+            // Created, or being uploaded, by someone else since the check
+            sendError(TFTPConstants.ERR_FILE_EXISTS, TFTPConstants.ERR_MSG_FILE_EXISTS);
+        } catch (AccessDeniedException e) {
+            sendError(TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
+        } catch (StorageFullException e) {
+            sendError(TFTPConstants.ERR_DISK_FULL, TFTPConstants.ERR_MSG_DISK_FULL);
         } catch (IOException e) {
+            // The upload has been discarded; nothing was written under the file's name
             LOGGER.log(Level.WARNING, "Error writing file: " + requestPacket.getFilename(), e);
             sendError(TFTPConstants.ERR_NOT_DEFINED, "Error writing file: " + e.getMessage());
-            
-            // Try to delete the incomplete file
-            new File(filePath).delete();
         }
     }
     
@@ -231,52 +432,41 @@ public class TFTPSession implements Runnable {
      * Receives a data packet from the client.
      * 
      * @param expectedBlock The expected block number
-     * @return The received data packet, or null if an error occurred
+     * @return A view of the received data packet, valid until the next receive, or null if an error occurred
      */
-    private TFTPDataPacket receiveData(short expectedBlock) throws IOException {
-        byte[] receiveBuffer = new byte[TFTPConstants.MAX_PACKET_SIZE];
-        DatagramPacket inPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+    private TFTPPacketView receiveData(short expectedBlock) throws IOException {
+        long ackSentAt = System.nanoTime();
         
         for (int retry = 0; retry < TFTPConstants.MAX_RETRIES; retry++) {
-            try {
-                socket.receive(inPacket);
-                
-                // Verify packet is from the correct client
-                if (!inPacket.getAddress().equals(clientAddress.getAddress()) || 
-                    inPacket.getPort() != clientAddress.getPort()) {
-                    // Packet from unknown source
-                    sendError(inPacket.getAddress(), inPacket.getPort(), 
-                             TFTPConstants.ERR_UNKNOWN_TID, TFTPConstants.ERR_MSG_UNKNOWN_TID);
-                    continue;
-                }
-                
-                // Parse the received packet
-                TFTPPacket receivedPacket = TFTPPacket.createFromBytes(inPacket.getData(), inPacket.getLength());
-                
-                if (receivedPacket.getOpcode() == TFTPConstants.OP_DATA) {
-                    TFTPDataPacket dataPacket = (TFTPDataPacket) receivedPacket;
-                    
-                    if (dataPacket.getBlockNumber() == expectedBlock) {
-                        // We got the expected data packet
-                        return dataPacket;
-                    } else {
-                        LOGGER.warning("Received data packet with wrong block number, expected " + 
-                                      expectedBlock + " but got " + dataPacket.getBlockNumber());
-                        // Send ACK for the previous block to trigger retransmission
-                        sendAck((short) (expectedBlock - 1));
-                    }
-                } else if (receivedPacket.getOpcode() == TFTPConstants.OP_ERROR) {
-                    TFTPErrorPacket errorPacket = (TFTPErrorPacket) receivedPacket;
-                    LOGGER.warning("Received error from client: " + errorPacket.getErrorCode() + 
-                                  " - " + errorPacket.getErrorMessage());
-                    return null;
-                }
-                
-            } catch (SocketTimeoutException e) {
+            // The channel is connected, so only packets from the client's TID arrive here
+            TFTPPacketView receivedPacket = receivePacket(rttEstimator.getTimeout(retry));
+            
+            if (receivedPacket == null) {
                 LOGGER.info("Timeout waiting for data block " + expectedBlock + 
                            ", retrying (" + (retry + 1) + "/" + TFTPConstants.MAX_RETRIES + ")");
                 // Resend the ACK for the previous block (or the initial ACK)
                 sendAck((short) (expectedBlock - 1));
+                rttEstimator.packetSent(true);
+            } else if (receivedPacket.isData()) {
+                if (receivedPacket.getBlockNumber() == expectedBlock) {
+                    // We got the expected data packet; the ACK that triggered it was never resent
+                    if (retry == 0) {
+                        rttEstimator.addSample((System.nanoTime() - ackSentAt) / 1e6);
+                    }
+                    return receivedPacket;
+                } else {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Received data packet with wrong block number, expected " + 
+                                    expectedBlock + " but got " + receivedPacket.getBlockNumber());
+                    }
+                    // Send ACK for the previous block to trigger retransmission
+                    sendAck((short) (expectedBlock - 1));
+                }
+            } else if (receivedPacket.getOpcode() == TFTPConstants.OP_ERROR) {
+                TFTPErrorPacket errorPacket = (TFTPErrorPacket) receivedPacket.toPacket();
+                LOGGER.warning("Received error from client: " + errorPacket.getErrorCode() + 
+                              " - " + errorPacket.getErrorMessage());
+                return null;
             }
         }
         
@@ -284,22 +474,40 @@ public class TFTPSession implements Runnable {
         return null;
     }
     
+    /**
+     * Receives the next packet into the session's receive buffer.
+     * 
+     * @param timeoutMillis The maximum time to wait in milliseconds
+     * @return The shared view of the received packet, valid until the next receive, 
+     *         or null if the timeout expired
+     * @throws IOException If an I/O error occurs or the packet is too short
+     */
+    private TFTPPacketView receivePacket(int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.read(receiveBuffer) > 0) {
+                receiveBuffer.flip();
+                return packetView.wrap(receiveBuffer);
+            }
+            
+            long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remaining <= 0) {
+                return null;
+            }
+            // Waiting with an action instead of the selected-key set allocates nothing
+            selector.select(IGNORE_KEY, remaining);
+        }
+    }
+    
     /**
      * Sends an acknowledgment packet.
      * 
      * @param blockNumber The block number to acknowledge
      */
     private void sendAck(short blockNumber) throws IOException {
-        TFTPAckPacket ackPacket = new TFTPAckPacket(blockNumber);
-        byte[] serializedAck = ackPacket.serialize();
-        
-        DatagramPacket outPacket = new DatagramPacket(
-                serializedAck, 
-                serializedAck.length,
-                clientAddress.getAddress(),
-                clientAddress.getPort());
-        
-        socket.send(outPacket);
+        channel.write(EncodedPackets.selectAck(ackView, blockNumber));
     }
     
     /**
@@ -310,16 +518,15 @@ public class TFTPSession implements Runnable {
      */
     private void sendError(short errorCode, String errorMessage) {
         try {
-            TFTPErrorPacket errorPacket = new TFTPErrorPacket(errorCode, errorMessage);
-            byte[] serializedError = errorPacket.serialize();
-            
-            DatagramPacket outPacket = new DatagramPacket(
-                    serializedError,
-                    serializedError.length,
-                    clientAddress.getAddress(),
-                    clientAddress.getPort());
-            
-            socket.send(outPacket);
+            if (EncodedPackets.isStandardError(errorCode) 
+                    && EncodedPackets.standardMessage(errorCode).equals(errorMessage)) {
+                channel.write(EncodedPackets.errorView(errorCode));
+            } else {
+                TFTPErrorPacket errorPacket = new TFTPErrorPacket(errorCode, errorMessage);
+                ByteBuffer errorBuffer = ByteBuffer.allocate(errorPacket.getEncodedLength());
+                errorPacket.encode(errorBuffer, 0);
+                channel.write(errorBuffer);
+            }
             
             LOGGER.warning("Sent error to " + clientAddress.getAddress().getHostAddress() + 
                           ":" + clientAddress.getPort() + " - " + errorCode + " - " + errorMessage);
@@ -330,38 +537,137 @@ public class TFTPSession implements Runnable {
     }
     
     /**
-     * Sends an error packet to a specific address and port.
-     * 
-     * @param address The destination address
-     * @param port The destination port
-     * @param errorCode The error code
-     * @param errorMessage The error message
+     * Tells the client its copy of the requested file is current, which ends the transfer.
      */
-    private void sendError(java.net.InetAddress address, int port, short errorCode, String errorMessage) {
+    private void sendNotModified() {
         try {
-            TFTPErrorPacket errorPacket = new TFTPErrorPacket(errorCode, errorMessage);
-            byte[] serializedError = errorPacket.serialize();
-            
-            DatagramPacket outPacket = new DatagramPacket(
-                    serializedError,
-                    serializedError.length,
-                    address,
-                    port);
-            
-            socket.send(outPacket);
-            
-            LOGGER.warning("Sent error to " + address.getHostAddress() + 
-                          ":" + port + " - " + errorCode + " - " + errorMessage);
-            
+            // Not a standard error, so not among the pre-encoded packets
+            TFTPErrorPacket notModified = new TFTPErrorPacket(
+                    TFTPConstants.ERR_NOT_MODIFIED, TFTPConstants.ERR_MSG_NOT_MODIFIED);
+            ByteBuffer packet = ByteBuffer.allocate(notModified.getEncodedLength());
+            notModified.encode(packet, 0);
+            channel.write(packet);
+            succeeded = true;
+            LOGGER.info("File " + requestPacket.getFilename() + " not modified");
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to send error packet", e);
         }
     }
     
+    /**
+     * Get the unique ID of this session.
+     * @return The session ID
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+    
+    /**
+     * Get the client's transfer ID (address and port).
+     * @return The client address
+     */
+    public InetSocketAddress getClientAddress() {
+        return clientAddress;
+    }
+    
+    /**
+     * Get the current state of this session.
+     * @return The session state
+     */
+    public State getState() {
+        return state.get();
+    }
+    
+    /**
+     * Get the name of the file being transferred.
+     * @return The filename
+     */
+    public String getFilename() {
+        return requestPacket.getFilename();
+    }
+    
+    /**
+     * Get the number of file bytes transferred so far.
+     * @return The byte count
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+    
+    /**
+     * Get the age of this session.
+     * @return The time since the session was created, in milliseconds
+     */
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - createdAt;
+    }
+    
+    /**
+     * Get the current retransmission timeout of this session.
+     * @return The RTO in milliseconds
+     */
+    public int getRetransmissionTimeout() {
+        return rttEstimator.getRetransmissionTimeout();
+    }
+    
+    /**
+     * Get the average transfer rate of this session.
+     * @return The rate in bytes per second
+     */
+    public long getTransferRate() {
+        long age = Math.max(1, getAgeMillis());
+        return bytesTransferred * 1000 / age;
+    }
+    
+    /**
+     * Lets the current transfer run to completion, then ends the session.
+     * A UDP session only ever carries one transfer, so this just marks it as draining.
+     */
+    public void drain() {
+        state.compareAndSet(State.STARTING, State.DRAINING);
+        state.compareAndSet(State.TRANSFERRING, State.DRAINING);
+    }
+    
+    /**
+     * Moves the session to its final state, unless it has been killed.
+     */
+    private void finish(State end) {
+        State current;
+        do {
+            current = state.get();
+            if (current == State.KILLED) {
+                return;
+            }
+        } while (!state.compareAndSet(current, end));
+    }
+    
+    /**
+     * Kills the session immediately, aborting any transfer in progress.
+     */
+    public void kill() {
+        state.set(State.KILLED);
+        running = false;
+        FileTransferUtil.closeQuietly(channel);
+        // Ends a wait for the client now rather than at its timeout
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+    
     /**
      * Stops the session.
      */
     public void stop() {
         running = false;
     }
+    
+    @Override
+    public String toString() {
+        return "Session " + sessionId + " [" + state.get() + "] " 
+                + (requestPacket.isReadRequest() ? "RRQ " : "WRQ ") + requestPacket.getFilename()
+                + " client=" + clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort()
+                + " bytes=" + bytesTransferred + " rate=" + getTransferRate() + "B/s"
+                + " age=" + getAgeMillis() + "ms";
+    }
 }
@@ -0,0 +1,363 @@
+package com.networkcourse.tftp.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the SHA-256 digests of the files a server serves, for conditional requests:
+ * a client that sends the digest of its copy gets the file only if it has changed.
+ *
+ * A digest belongs to one version of a file, identified by its size and modification
+ * time. Digests are never computed on the request path: a request for a file whose
+ * current version has no digest yet is served in full, and the digest is computed on
+ * a background thread, once per version, for the requests that follow.
+ * The index is saved to a file every few seconds while it changes and when it is
+ * closed, and read back when it is created, so restarts do not hash everything again.
+ * A digest is dropped when its file is found replaced or deleted, and once nobody has
+ * asked for its file for a day, so the digests of deleted files do not pile up.
+ * All methods are thread-safe.
+ */
+public class DigestIndex {
+    private static final Logger LOGGER = Logger.getLogger(DigestIndex.class.getName());
+
+    public static final int DEFAULT_THREADS = 2;
+    private static final long SAVE_INTERVAL_MILLIS = 5_000;
+    private static final long PRUNE_INTERVAL_MILLIS = 10 * 60_000;
+    private static final long MAX_IDLE_MILLIS = 24 * 60 * 60_000;
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path indexFile;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+    private volatile boolean closed;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder computed = new LongAdder();
+    private final LongAdder computeNanos = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+
+    /**
+     * Creates an index, reading back the digests saved by an earlier one.
+     *
+     * @param indexFile The file the index is saved to
+     */
+    public DigestIndex(Path indexFile) {
+        this(indexFile, DEFAULT_THREADS);
+    }
+
+    /**
+     * Creates an index, reading back the digests saved by an earlier one.
+     *
+     * @param indexFile The file the index is saved to
+     * @param threads The number of threads computing digests
+     */
+    public DigestIndex(Path indexFile, int threads) {
+        this.indexFile = indexFile;
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tftp-digest-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = pool;
+
+        load();
+        executor.scheduleWithFixedDelay(this::saveIfDirty,
+                SAVE_INTERVAL_MILLIS, SAVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::prune,
+                PRUNE_INTERVAL_MILLIS, PRUNE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks whether the current version of a file has the digest a client sent.
+     * If the version has no digest yet, one is computed in the background and the
+     * file is reported as changed; requests without a digest are checked too, so the
+     * digest is ready for the next conditional request.
+     *
+     * @param storage The storage the file is served from
+     * @param name The file name
+     * @param stat The current status of the file
+     * @param digest The digest of the client's copy, in hex, or null if it has none
+     * @return true if the client's copy is current
+     */
+    public boolean isUnchanged(Storage storage, String name, Storage.Stat stat, String digest) {
+        if (!stat.isReadable()) {
+            return false;
+        }
+        if (digest != null) {
+            lookups.increment();
+        }
+
+        String key = normalize(name);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != stat.getSize() || entry.lastModified != stat.getLastModified()) {
+            if (entry != null) {
+                // The file has been replaced since; its new digest is computed below
+                remove(key, entry);
+            }
+            schedule(storage, key);
+            return false;
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        if (digest == null) {
+            return false;
+        }
+
+        byte[] expected;
+        try {
+            expected = HEX.parseHex(digest);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (!MessageDigest.isEqual(expected, entry.digest)) {
+            return false;
+        }
+        notModified.increment();
+        bytesSaved.add(entry.size);
+        return true;
+    }
+
+    private static String normalize(String name) {
+        return Paths.get(name).normalize().toString();
+    }
+
+    private void schedule(Storage storage, String key) {
+        if (!pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    compute(storage, key);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Reads a file through and records its digest under the version that was read.
+     */
+    private void compute(Storage storage, String key) {
+        long start = System.nanoTime();
+        try (Storage.ReadHandle handle = storage.open(key)) {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            long position = 0;
+            int bytesRead;
+            while ((bytesRead = handle.read(buffer, position)) > 0) {
+                if (closed) {
+                    return;
+                }
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.clear();
+                position += bytesRead;
+            }
+            entries.put(key, new Entry(handle.size(), handle.lastModified(), sha256.digest()));
+            dirty = true;
+            computed.increment();
+            computeNanos.add(System.nanoTime() - start);
+        } catch (NoSuchFileException e) {
+            // Deleted since the request
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                remove(key, entry);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot compute the digest of " + key, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            pruned.increment();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drops the digests of files nobody has asked for in a while, deleted files among
+     * them; runs on a digest thread. A dropped digest that is needed again is recomputed.
+     */
+    private void prune() {
+        long oldest = System.currentTimeMillis() - MAX_IDLE_MILLIS;
+        for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+            if (mapping.getValue().lastUsed < oldest) {
+                remove(mapping.getKey(), mapping.getValue());
+            }
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                // digest, size, modification time and name; the name goes last as it may hold tabs
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            HEX.parseHex(fields[0])));
+                }
+            }
+            LOGGER.info("Loaded " + entries.size() + " digests from " + indexFile);
+        } catch (IOException | IllegalArgumentException e) {
+            // A damaged index only costs recomputing the digests
+            LOGGER.log(Level.WARNING, "Cannot read digest index " + indexFile + ", starting empty", e);
+            entries.clear();
+        }
+    }
+
+    private void saveIfDirty() {
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it over the index file.
+     */
+    private synchronized void save() {
+        dirty = false;
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+                    Entry entry = mapping.getValue();
+                    writer.write(HEX.formatHex(entry.digest) + "\t" + entry.size + "\t"
+                            + entry.lastModified + "\t" + mapping.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            LOGGER.log(Level.WARNING, "Cannot save digest index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Stops computing digests and saves the index.
+     */
+    public void close() {
+        // Digests in progress stop at their next read; an interrupt would close the
+        // shared channel they read for every transfer
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveIfDirty();
+    }
+
+    /**
+     * Gets the number of conditional requests checked.
+     * @return The lookup count
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Gets the number of conditional requests answered without a transfer.
+     * @return The not-modified count
+     */
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    /**
+     * Gets the number of file bytes not sent because the client's copy was current.
+     * @return The byte count
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * Gets the number of digests computed.
+     * @return The digest count
+     */
+    public long getDigestsComputed() {
+        return computed.sum();
+    }
+
+    /**
+     * Gets the average time it took to compute a digest.
+     * @return The average time in milliseconds
+     */
+    public double getAverageComputeMillis() {
+        long count = computed.sum();
+        return count == 0 ? 0 : computeNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Gets the number of digests dropped as their files were replaced, deleted or not asked for.
+     * @return The dropped digest count
+     */
+    public long getDigestsPruned() {
+        return pruned.sum();
+    }
+
+    /**
+     * Gets the number of files with a digest.
+     * @return The entry count
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * The digest of one version of a file.
+     */
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final byte[] digest;
+        // Not saved; entries read back count as used when they are read
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Entry(long size, long lastModified, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
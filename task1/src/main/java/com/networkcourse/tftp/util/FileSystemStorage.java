@@ -0,0 +1,312 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage backed by a directory of the file system, read and written through NIO channels.
+ * Lookups go through the server's metadata cache, reads share the channels of its handle
+ * cache, and uploads are written behind the receive loop to a temporary file that is made
+ * durable according to the sync service's policy and then renamed into place.
+ *
+ * Where a file is kept under the directory is up to the storage's layout: by default
+ * under the name it is asked for, or wherever another layout maps that name to.
+ * Names that are absolute, lead outside the directory or are hidden are refused, so the
+ * server's state files and unfinished uploads in the directory are never served or replaced.
+ */
+public class FileSystemStorage implements Storage {
+    private static final Logger LOGGER = Logger.getLogger(FileSystemStorage.class.getName());
+
+    private final Path root;
+    private final FileHandleCache handleCache;
+    private final FileMetadataCache metadataCache;
+    private final WriteBehindService writeBehindService;
+    private final SyncService syncService;
+    private final PathLockTable pathLocks;
+    private final Layout layout;
+
+    /**
+     * Creates a new file system storage that keeps files under the names they are asked for.
+     *
+     * @param baseDirectory The directory files are served from and uploaded to
+     * @param handleCache The server-wide cache of open file channels
+     * @param metadataCache The server-wide cache of file metadata
+     * @param writeBehindService The background I/O stage that writes uploads behind the receives
+     * @param syncService The service that makes uploads durable before they are acknowledged
+     * @param pathLocks The server-wide table of upload reservations
+     */
+    public FileSystemStorage(String baseDirectory, FileHandleCache handleCache, FileMetadataCache metadataCache,
+                             WriteBehindService writeBehindService, SyncService syncService,
+                             PathLockTable pathLocks) {
+        this(baseDirectory, handleCache, metadataCache, writeBehindService, syncService, pathLocks, null);
+    }
+
+    /**
+     * Creates a new file system storage.
+     *
+     * @param baseDirectory The directory files are served from and uploaded to
+     * @param handleCache The server-wide cache of open file channels
+     * @param metadataCache The server-wide cache of file metadata
+     * @param writeBehindService The background I/O stage that writes uploads behind the receives
+     * @param syncService The service that makes uploads durable before they are acknowledged
+     * @param pathLocks The server-wide table of upload reservations
+     * @param layout Where files are kept under the base directory, or null for the names as given
+     */
+    public FileSystemStorage(String baseDirectory, FileHandleCache handleCache, FileMetadataCache metadataCache,
+                             WriteBehindService writeBehindService, SyncService syncService,
+                             PathLockTable pathLocks, Layout layout) {
+        Path rootPath = Paths.get(baseDirectory).toAbsolutePath().normalize();
+        this.root = rootPath;
+        this.handleCache = handleCache;
+        this.metadataCache = metadataCache;
+        this.writeBehindService = writeBehindService;
+        this.syncService = syncService;
+        this.pathLocks = pathLocks;
+        this.layout = layout != null ? layout : name -> rootPath.resolve(name).normalize();
+    }
+
+    /**
+     * Resolves a name through the layout.
+     *
+     * @return The path, or null if the name is absolute, hidden or leads outside the root
+     */
+    private Path resolve(String name) {
+        try {
+            // An absolute name would replace the root, and ".." components could climb out of it
+            Path relative = Paths.get(name);
+            if (relative.isAbsolute() || Storage.isHidden(relative.normalize().toString())) {
+                return null;
+            }
+            Path path = layout.resolve(name);
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private Path resolveAllowed(String name) throws AccessDeniedException {
+        Path path = resolve(name);
+        if (path == null) {
+            throw new AccessDeniedException(name, null, "Hidden or outside of " + root);
+        }
+        return path;
+    }
+
+    @Override
+    public Stat stat(String name) {
+        long statsBefore = metadataCache.getThreadStatCalls();
+        long lookupNanosBefore = metadataCache.getThreadLookupNanos();
+
+        Path path = resolve(name);
+        if (path == null) {
+            return Stat.DENIED;
+        }
+        // A layout that knows every file it holds answers for missing files without a lookup of their own
+        FileMetadataCache.Metadata metadata = layout.isKnownMissing(name) ? null : metadataCache.get(path);
+        boolean exists = metadata != null && metadata.exists();
+        boolean readable = exists && metadata.isRegularFile() && metadata.isReadable();
+        boolean writable;
+        if (exists) {
+            writable = metadata.isRegularFile() && metadata.isWritable();
+        } else {
+            // A new file can be created if its directory can be written
+            Path parentDir = layout.creationDirectory(path);
+            FileMetadataCache.Metadata parent = parentDir == null ? null : metadataCache.get(parentDir);
+            writable = parent != null && parent.exists() && parent.isDirectory() && parent.isWritable();
+        }
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Metadata lookups for " + name + ": "
+                    + (metadataCache.getThreadStatCalls() - statsBefore) + " stat calls, "
+                    + (metadataCache.getThreadLookupNanos() - lookupNanosBefore) / 1000 + " us");
+        }
+        if (!exists) {
+            return new Stat(false, false, writable, 0, 0);
+        }
+        return new Stat(true, readable, writable, metadata.getSize(), metadata.getLastModified());
+    }
+
+    @Override
+    public boolean isKnownMissing(String name) {
+        // A refused name is not missing; the session answers it with an access violation
+        Path path = resolve(name);
+        return path != null && (layout.isKnownMissing(name) || metadataCache.isKnownMissing(path.toString()));
+    }
+
+    @Override
+    public ReadHandle open(String name) throws IOException {
+        Path path = resolveAllowed(name);
+        // Concurrent requests for the same file share one open channel
+        FileHandleCache.Handle handle = handleCache.acquire(path);
+        return new FileReadHandle(handle, metadataCache.get(path).getLastModified());
+    }
+
+    @Override
+    public Upload create(String name) throws IOException {
+        Path path = resolveAllowed(name);
+        SyncService.Policy policy = syncService.policyFor(name);
+        layout.prepare(path);
+        AtomicUpload upload = AtomicUpload.begin(path, pathLocks);
+        return new FileUpload(name, upload, writeBehindService.open(upload.channel()), policy);
+    }
+
+    /**
+     * Gets the directory this storage serves.
+     *
+     * @return The absolute, normalized root directory
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Maps the names files are asked for to where they are kept under the root.
+     */
+    public interface Layout {
+
+        /**
+         * Gets the path a file is kept at.
+         *
+         * @param name The file name, relative to the root of the store
+         * @return The absolute, normalized path
+         */
+        Path resolve(String name);
+
+        /**
+         * Checks whether a file is known to be missing without doing any I/O.
+         *
+         * @param name The file name, relative to the root of the store
+         * @return true if the file is known to be missing
+         */
+        default boolean isKnownMissing(String name) {
+            return false;
+        }
+
+        /**
+         * Gets the directory whose permissions decide whether a new file can be created at a path.
+         *
+         * @param path The path of the new file
+         * @return The directory, or null if there is none
+         */
+        default Path creationDirectory(Path path) {
+            return path.getParent();
+        }
+
+        /**
+         * Prepares for a new file to be created at a path.
+         *
+         * @param path The path of the new file
+         * @throws IOException If the path cannot be prepared
+         */
+        default void prepare(Path path) throws IOException {
+        }
+
+        /**
+         * Records that an upload of a file has been committed.
+         *
+         * @param name The file name, relative to the root of the store
+         */
+        default void committed(String name) {
+        }
+    }
+
+    /**
+     * A reference to a shared channel from the handle cache.
+     */
+    private static final class FileReadHandle implements ReadHandle {
+        private final FileHandleCache.Handle handle;
+        private final FileChannel channel;
+        private final long lastModified;
+
+        FileReadHandle(FileHandleCache.Handle handle, long lastModified) {
+            this.handle = handle;
+            this.channel = handle.channel();
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public Object identity() {
+            return handle.fileKey() != null ? handle.fileKey() : handle.path();
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            return channel.read(destination, position);
+        }
+
+        @Override
+        public ByteBuffer map(long position, long length) throws IOException {
+            // Unmapped when the buffer is garbage collected
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        @Override
+        public boolean isResident() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            handle.close();
+        }
+    }
+
+    /**
+     * An upload written behind to a temporary file and renamed into place on commit.
+     */
+    private final class FileUpload implements Upload {
+        private final String name;
+        private final AtomicUpload upload;
+        private final UploadSink sink;
+        private final SyncService.Policy policy;
+        private final long startedAt = System.nanoTime();
+        private long bytesWritten;
+
+        FileUpload(String name, AtomicUpload upload, UploadSink sink, SyncService.Policy policy) {
+            this.name = name;
+            this.upload = upload;
+            this.sink = sink;
+            this.policy = policy;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            bytesWritten += data.remaining();
+            sink.write(data);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            // Written, made as durable as the policy asks and renamed into place, in that order
+            sink.finish();
+            syncService.commit(upload.channel(), upload.target(), policy,
+                    upload::commit, bytesWritten, startedAt);
+            layout.committed(name);
+        }
+
+        @Override
+        public void close() {
+            sink.close();
+            upload.close();
+            // The file may have been created under the cache
+            metadataCache.invalidate(upload.target());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.networkcourse.tftp.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A file held in memory, which is also the read handle on it as it never changes.
+ * Its identity is the object itself, so every version gets its own cached blocks.
+ */
+final class MemoryFile implements Storage.ReadHandle {
+    private final ByteBuffer contents;
+    private final long lastModified;
+
+    /**
+     * Creates a file.
+     *
+     * @param contents The contents, from index 0 to the capacity; must not be changed afterwards
+     * @param lastModified The modification time in milliseconds since the epoch
+     */
+    MemoryFile(ByteBuffer contents, long lastModified) {
+        this.contents = contents.asReadOnlyBuffer();
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public long size() {
+        return contents.capacity();
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public Object identity() {
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer destination, long position) {
+        if (position >= contents.capacity()) {
+            return -1;
+        }
+        int length = (int) Math.min(destination.remaining(), contents.capacity() - position);
+        destination.put(contents.slice((int) position, length));
+        return length;
+    }
+
+    @Override
+    public ByteBuffer map(long position, long length) {
+        return contents.slice((int) position, (int) length);
+    }
+
+    @Override
+    public boolean isResident() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
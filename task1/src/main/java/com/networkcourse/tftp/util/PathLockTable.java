@@ -0,0 +1,95 @@
+package com.networkcourse.tftp.util;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped table of per-path locks and upload reservations.
+ * Paths hash onto a fixed number of stripes, each with its own lock, so operations
+ * on unrelated files rarely contend and never wait on a global lock. Only uploads
+ * take these locks; downloads read through their open handles and never block here.
+ * All methods are thread-safe.
+ */
+public class PathLockTable {
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final Stripe[] stripes;
+
+    /**
+     * Creates a new lock table with the default number of stripes.
+     */
+    public PathLockTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new lock table.
+     *
+     * @param stripeCount The number of stripes; rounded up to a power of two
+     */
+    public PathLockTable(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Gets the lock of the stripe a path belongs to.
+     *
+     * @param path The absolute, normalized path
+     * @return The stripe's lock
+     */
+    public ReentrantLock lockFor(Path path) {
+        return stripeFor(path).lock;
+    }
+
+    /**
+     * Reserves a path for an upload, unless another upload holds it already.
+     *
+     * @param path The absolute, normalized path
+     * @return true if the path was reserved, false if it is already reserved
+     */
+    public boolean tryReserve(Path path) {
+        Stripe stripe = stripeFor(path);
+        stripe.lock.lock();
+        try {
+            return stripe.reserved.add(path);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the reservation of a path.
+     *
+     * @param path The absolute, normalized path
+     */
+    public void release(Path path) {
+        Stripe stripe = stripeFor(path);
+        stripe.lock.lock();
+        try {
+            stripe.reserved.remove(path);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Stripe stripeFor(Path path) {
+        int hash = path.hashCode();
+        // Spread the high bits, as stripes are picked by the low ones
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    /**
+     * A lock and the paths reserved under it.
+     */
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Set<Path> reserved = new HashSet<>();
+    }
+}
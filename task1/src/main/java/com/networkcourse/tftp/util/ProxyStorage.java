@@ -0,0 +1,686 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage for an edge server, which serves the files of a local storage and fills its
+ * misses from an upstream server.
+ *
+ * A file missing locally is fetched from upstream on a fetch thread and streamed to
+ * the transfers that asked for it while it arrives; once complete it is kept in an LRU
+ * cache in memory, bounded in bytes. Concurrent misses for the same file share one
+ * fetch. A file too large for the cache is written to a temporary file as it arrives
+ * instead, which is deleted once the fetch is over and no transfer reads it; such files
+ * are fetched again for every transfer that does not overlap another. Uploads go to the local storage, so an upload of a file upstream already has
+ * is refused as a duplicate, as it would be upstream.
+ *
+ * That upstream does not have a file is remembered for a short while, so clients probing
+ * a chain of names that mostly do not exist (PXE boot loaders, for one) cost one upstream
+ * round trip per name and not one per probe.
+ *
+ * Hits and misses are counted when a file is looked up with {@link #stat}, which
+ * sessions do before every open.
+ * All methods are thread-safe.
+ */
+public class ProxyStorage implements Storage {
+    private static final Logger LOGGER = Logger.getLogger(ProxyStorage.class.getName());
+
+    public static final long DEFAULT_CACHE_BYTES = 256L << 20;
+    public static final int DEFAULT_FETCH_THREADS = 4;
+    // A transfer waiting on a fetch gives up if no data arrives for this long
+    private static final long STALL_TIMEOUT_MILLIS = 30_000;
+    // Initial capacity of a fetch's buffer; it doubles as the file arrives
+    private static final int INITIAL_FETCH_CAPACITY = 64 << 10;
+    // How long upstream's answer that it does not have a file is trusted
+    private static final long MISS_TTL_NANOS = 5_000_000_000L;
+    private static final int MAX_MISSES = 4096;
+
+    /**
+     * Where misses are fetched from.
+     */
+    public interface Upstream {
+
+        /**
+         * Fetches a file, writing it to a channel as it arrives.
+         *
+         * @param name The file name
+         * @param destination The channel to write the file to
+         * @return The size of the file in bytes
+         * @throws NoSuchFileException If upstream does not have the file
+         * @throws IOException If the file cannot be fetched
+         */
+        long fetch(String name, WritableByteChannel destination) throws IOException;
+    }
+
+    private final Storage local;
+    private final Upstream upstream;
+    private final long cacheCapacityBytes;
+    // Fetched files larger than this go to a temporary file, not to memory
+    private final long maxBufferedBytes;
+    private final ExecutorService fetchExecutor;
+    private volatile boolean closed;
+    private final ConcurrentHashMap<String, Fetch> fetches = new ConcurrentHashMap<>();
+
+    // Guarded by cache
+    private final LinkedHashMap<String, MemoryFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    // Names upstream does not have, with when they were found missing; guarded by misses
+    private final LinkedHashMap<String, Long> misses = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_MISSES;
+        }
+    };
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder upstreamFetches = new LongAdder();
+    private final LongAdder collapsedFetches = new LongAdder();
+    private final LongAdder failedFetches = new LongAdder();
+    private final LongAdder upstreamBytes = new LongAdder();
+    private final LongAdder fetchNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder spilledFetches = new LongAdder();
+
+    /**
+     * Creates a proxy storage with the default cache size and number of fetch threads.
+     *
+     * @param local The storage served first and uploaded to
+     * @param upstream Where local misses are fetched from
+     */
+    public ProxyStorage(Storage local, Upstream upstream) {
+        this(local, upstream, DEFAULT_CACHE_BYTES, DEFAULT_FETCH_THREADS);
+    }
+
+    /**
+     * Creates a proxy storage.
+     *
+     * @param local The storage served first and uploaded to
+     * @param upstream Where local misses are fetched from
+     * @param cacheCapacityBytes The most bytes of fetched files to keep
+     * @param fetchThreads The most fetches to run at once
+     */
+    public ProxyStorage(Storage local, Upstream upstream, long cacheCapacityBytes, int fetchThreads) {
+        this.local = local;
+        this.upstream = upstream;
+        this.cacheCapacityBytes = cacheCapacityBytes;
+        this.maxBufferedBytes = Math.min(cacheCapacityBytes, Integer.MAX_VALUE - 8);
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.fetchExecutor = Executors.newFixedThreadPool(fetchThreads, runnable -> {
+            Thread thread = new Thread(runnable, "tftp-proxy-fetch-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static String normalize(String name) {
+        return Paths.get(name).normalize().toString();
+    }
+
+    @Override
+    public Stat stat(String name) {
+        Stat localStat = local.stat(name);
+        if (localStat.exists()) {
+            localHits.increment();
+            return localStat;
+        }
+        if (localStat.isDenied()) {
+            // What the local store refuses is not fetched either
+            return localStat;
+        }
+        String key = normalize(name);
+        MemoryFile file = cached(key);
+        if (file != null) {
+            cacheHits.increment();
+            return new Stat(true, true, false, file.size(), file.lastModified());
+        }
+        if (isMissingUpstream(key)) {
+            return localStat;
+        }
+
+        // Only upstream knows; the fetch started here serves the open that usually follows
+        try {
+            Fetch fetch = fetch(key, true);
+            fetch.awaitData();
+            return new Stat(true, true, false, fetch.size(), fetch.startedAt);
+        } catch (NoSuchFileException e) {
+            return localStat;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot look up " + name + " upstream", e);
+            return localStat;
+        }
+    }
+
+    @Override
+    public boolean isKnownMissing(String name) {
+        return local.isKnownMissing(name) && isMissingUpstream(normalize(name));
+    }
+
+    @Override
+    public ReadHandle open(String name) throws IOException {
+        Stat localStat = local.stat(name);
+        if (localStat.isDenied()) {
+            throw new AccessDeniedException(name);
+        }
+        if (localStat.exists()) {
+            try {
+                return local.open(name);
+            } catch (NoSuchFileException e) {
+                // Deleted since the check; fall back to upstream
+            }
+        }
+        String key = normalize(name);
+        MemoryFile file = cached(key);
+        if (file != null) {
+            return file;
+        }
+        if (isMissingUpstream(key)) {
+            throw new NoSuchFileException(name);
+        }
+        while (true) {
+            Fetch fetch = fetch(key, false);
+            fetch.awaitData();
+            ReadHandle handle = fetch.newHandle();
+            if (handle != null) {
+                return handle;
+            }
+            // A file too large to cache that was let go since; fetch it again
+            fetches.remove(key, fetch);
+        }
+    }
+
+    @Override
+    public Upload create(String name) throws IOException {
+        return local.create(name);
+    }
+
+    @Override
+    public void close() {
+        // Fetches stop at their next block; an interrupt would close the temporary file
+        // the readers of a large fetch share
+        closed = true;
+        fetchExecutor.shutdown();
+        local.close();
+    }
+
+    private MemoryFile cached(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    /**
+     * Checks whether upstream said it does not have a file a short while ago.
+     */
+    private boolean isMissingUpstream(String key) {
+        synchronized (misses) {
+            Long missedAt = misses.get(key);
+            if (missedAt == null) {
+                return false;
+            }
+            if (System.nanoTime() - missedAt >= MISS_TTL_NANOS) {
+                misses.remove(key);
+                return false;
+            }
+        }
+        negativeHits.increment();
+        return true;
+    }
+
+    /**
+     * Gets the fetch of a file in progress, or starts one.
+     */
+    private Fetch fetch(String key, boolean countJoin) {
+        Fetch fetch = fetches.get(key);
+        if (fetch != null) {
+            if (countJoin) {
+                collapsedFetches.increment();
+            }
+            return fetch;
+        }
+        Fetch started = new Fetch(key);
+        fetch = fetches.putIfAbsent(key, started);
+        if (fetch != null) {
+            if (countJoin) {
+                collapsedFetches.increment();
+            }
+            return fetch;
+        }
+        upstreamFetches.increment();
+        fetchExecutor.execute(started::run);
+        return started;
+    }
+
+    /**
+     * Caches a complete file; it is only removed from the fetches after this, so every
+     * lookup finds it in one place or the other.
+     */
+    private void store(String key, MemoryFile file) {
+        if (file.size() > cacheCapacityBytes) {
+            return;
+        }
+        synchronized (cache) {
+            MemoryFile previous = cache.put(key, file);
+            cachedBytes += file.size() - (previous == null ? 0 : previous.size());
+            Iterator<MemoryFile> eldest = cache.values().iterator();
+            while (cachedBytes > cacheCapacityBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().size();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of lookups answered by the local storage.
+     * @return The local hit count
+     */
+    public long getLocalHits() {
+        return localHits.sum();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache of fetched files.
+     * @return The cache hit count
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Gets the number of lookups answered as missing because upstream had just said so.
+     * @return The negative hit count
+     */
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * Gets the number of fetches started upstream.
+     * @return The fetch count
+     */
+    public long getUpstreamFetches() {
+        return upstreamFetches.sum();
+    }
+
+    /**
+     * Gets the number of misses that joined a fetch already in progress.
+     * @return The collapsed fetch count
+     */
+    public long getCollapsedFetches() {
+        return collapsedFetches.sum();
+    }
+
+    /**
+     * Gets the number of fetches that failed, missing files included.
+     * @return The failed fetch count
+     */
+    public long getFailedFetches() {
+        return failedFetches.sum();
+    }
+
+    /**
+     * Gets the number of bytes fetched from upstream.
+     * @return The byte count
+     */
+    public long getUpstreamBytes() {
+        return upstreamBytes.sum();
+    }
+
+    /**
+     * Gets the average time a successful fetch took, from start to last byte.
+     * @return The average fetch time in milliseconds
+     */
+    public double getAverageFetchMillis() {
+        long count = upstreamFetches.sum() - failedFetches.sum();
+        return count <= 0 ? 0 : fetchNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Gets the fraction of lookups not served locally that did not start a fetch.
+     * @return The hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = cacheHits.sum() + collapsedFetches.sum();
+        long total = hits + upstreamFetches.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Gets the number of files evicted from the cache.
+     * @return The eviction count
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of fetched files too large for the cache, which went to a temporary file.
+     * @return The spilled fetch count
+     */
+    public long getSpilledFetches() {
+        return spilledFetches.sum();
+    }
+
+    /**
+     * Gets the size of the fetched files in the cache.
+     * @return The size in bytes
+     */
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * Gets the number of fetched files in the cache.
+     * @return The file count
+     */
+    public int getCachedFileCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * A file being fetched, which is the channel the upstream writes to and the source
+     * of the handles transfers read it through while it arrives.
+     */
+    private final class Fetch implements WritableByteChannel {
+        private final String key;
+        private final long startedAt = System.currentTimeMillis();
+
+        // Guarded by this
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_FETCH_CAPACITY);
+        // Where the file goes once it is too large for the buffer, which is then dropped
+        private FileChannel spill;
+        private long arrived;
+        private int openHandles;
+        private boolean released;
+        private boolean done;
+        private IOException failure;
+
+        Fetch(String key) {
+            this.key = key;
+        }
+
+        void run() {
+            long start = System.nanoTime();
+            try {
+                upstream.fetch(key, this);
+                MemoryFile file = null;
+                synchronized (this) {
+                    if (spill == null) {
+                        file = new MemoryFile(ByteBuffer.wrap(buffer.array(), 0, (int) arrived).slice(), startedAt);
+                    }
+                    done = true;
+                    notifyAll();
+                }
+                fetchNanos.add(System.nanoTime() - start);
+                if (file != null) {
+                    store(key, file);
+                }
+            } catch (IOException | RuntimeException e) {
+                failedFetches.increment();
+                if (e instanceof NoSuchFileException) {
+                    synchronized (misses) {
+                        misses.put(key, System.nanoTime());
+                    }
+                } else {
+                    LOGGER.log(Level.WARNING, "Fetch of " + key + " from upstream failed", e);
+                }
+                synchronized (this) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    notifyAll();
+                }
+            } finally {
+                fetches.remove(key, this);
+                synchronized (this) {
+                    releaseIfUnused();
+                }
+            }
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer data) throws IOException {
+            if (closed) {
+                throw new IOException("Proxy storage closed");
+            }
+            int length = data.remaining();
+            if (spill == null && arrived + length > maxBufferedBytes) {
+                spill();
+            }
+            if (spill != null) {
+                long position = arrived;
+                while (data.hasRemaining()) {
+                    position += spill.write(data, position);
+                }
+            } else {
+                if (buffer.remaining() < length) {
+                    ByteBuffer grown = ByteBuffer.allocate((int) Math.min(maxBufferedBytes,
+                            Math.max(arrived + length, 2L * buffer.capacity())));
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                }
+                buffer.put(data);
+            }
+            arrived += length;
+            upstreamBytes.add(length);
+            notifyAll();
+            return length;
+        }
+
+        /**
+         * Moves what has arrived to a temporary file, which the rest of the file is written to.
+         */
+        private void spill() throws IOException {
+            Path path = Files.createTempFile("tftp-proxy-", ".part");
+            try {
+                spill = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                spill.write(buffer);
+            }
+            buffer = null;
+            spilledFetches.increment();
+            LOGGER.fine("Fetch of " + key + " is larger than the cache; writing it to " + path);
+        }
+
+        /**
+         * Closes, and so deletes, the temporary file once the fetch is over and no handle reads it.
+         */
+        private void releaseIfUnused() {
+            if (spill == null || released || openHandles > 0 || (!done && failure == null)) {
+                return;
+            }
+            released = true;
+            try {
+                spill.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot delete the temporary copy of " + key, e);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        synchronized long size() {
+            return done ? arrived : 0;
+        }
+
+        /**
+         * Waits until the first data has arrived or the fetch has ended.
+         */
+        synchronized void awaitData() throws IOException {
+            awaitPosition(1);
+        }
+
+        /**
+         * Waits until the file has arrived up to a position, or the fetch has ended.
+         */
+        private void awaitPosition(long position) throws IOException {
+            long deadline = System.currentTimeMillis() + STALL_TIMEOUT_MILLIS;
+            long seen = arrived;
+            while (arrived < position && !done && failure == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No data from upstream for " + key);
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for " + key, e);
+                }
+                if (arrived > seen) {
+                    seen = arrived;
+                    deadline = System.currentTimeMillis() + STALL_TIMEOUT_MILLIS;
+                }
+            }
+            if (failure instanceof NoSuchFileException) {
+                throw new NoSuchFileException(key);
+            }
+            if (failure != null) {
+                throw new IOException("Fetch of " + key + " from upstream failed", failure);
+            }
+        }
+
+        /**
+         * Opens a handle on the file, or returns null if its temporary file was already let go.
+         */
+        synchronized ReadHandle newHandle() {
+            if (released) {
+                return null;
+            }
+            openHandles++;
+            return new FetchHandle(this);
+        }
+
+        synchronized void closeHandle() {
+            openHandles--;
+            releaseIfUnused();
+        }
+    }
+
+    /**
+     * A handle on a file that is still arriving; reads past what has arrived wait for it.
+     *
+     * Its size reads as 0 until the fetch completes, so transfers read it with plain
+     * positional reads until one comes back empty, and its identity is its own, so
+     * no blocks are shared with other transfers through a block cache while the
+     * contents are still incomplete.
+     */
+    private static final class FetchHandle implements ReadHandle {
+        private final Fetch fetch;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        FetchHandle(Fetch fetch) {
+            this.fetch = fetch;
+        }
+
+        @Override
+        public long size() {
+            return fetch.size();
+        }
+
+        @Override
+        public long lastModified() {
+            return fetch.startedAt;
+        }
+
+        @Override
+        public Object identity() {
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) throws IOException {
+            FileChannel spill;
+            int length;
+            synchronized (fetch) {
+                fetch.awaitPosition(position + 1);
+                if (position >= fetch.arrived) {
+                    return -1;
+                }
+                length = (int) Math.min(destination.remaining(), fetch.arrived - position);
+                spill = fetch.spill;
+                if (spill == null) {
+                    destination.put(fetch.buffer.array(), (int) position, length);
+                    return length;
+                }
+            }
+            // What has arrived no longer changes, and the file stays open while this handle is
+            int limit = destination.limit();
+            destination.limit(destination.position() + length);
+            try {
+                return spill.read(destination, position);
+            } finally {
+                destination.limit(limit);
+            }
+        }
+
+        @Override
+        public ByteBuffer map(long position, long length) throws IOException {
+            FileChannel spill;
+            long available;
+            synchronized (fetch) {
+                fetch.awaitPosition(position + length);
+                available = Math.min(length, Math.max(0, fetch.arrived - position));
+                spill = fetch.spill;
+                if (spill == null) {
+                    // The array is only replaced when it grows, so a view of it stays valid
+                    return ByteBuffer.wrap(fetch.buffer.array(), (int) position, (int) available)
+                            .slice().asReadOnlyBuffer();
+                }
+            }
+            return spill.map(FileChannel.MapMode.READ_ONLY, position, available);
+        }
+
+        @Override
+        public boolean isResident() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                fetch.closeHandle();
+            }
+        }
+    }
+}
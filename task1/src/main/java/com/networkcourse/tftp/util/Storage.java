@@ -0,0 +1,275 @@
+package com.networkcourse.tftp.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+
+/**
+ * The store a server serves files from and uploads files to.
+ * Sessions only see files through this interface, by the name the client asked for,
+ * so the same transfer code runs against the file system or any other backend.
+ *
+ * Files are read through handles with positional reads, so concurrent transfers can
+ * share one handle, and written sequentially through uploads that only become visible
+ * once they are committed.
+ * Implementations must be thread-safe.
+ */
+public interface Storage extends Closeable {
+
+    /**
+     * Checks whether a name has a component that starts with a dot. The server keeps its
+     * own state and unfinished uploads under such names, next to the files it serves,
+     * so stores refuse them.
+     *
+     * @param name The file name, normalized
+     * @return true if the name is hidden
+     */
+    static boolean isHidden(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) == '.' && (i == 0 || name.charAt(i - 1) == '/'
+                    || name.charAt(i - 1) == File.separatorChar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up a file.
+     *
+     * @param name The file name, relative to the root of the store
+     * @return The file's status; for a missing file, one that reports it does not exist, and
+     *         for a name the store refuses, hidden names among them, {@link Stat#DENIED}
+     */
+    Stat stat(String name);
+
+    /**
+     * Checks whether a file is known to be missing without doing any I/O, so it can be
+     * called on a server's intake thread. A file that is not known to be missing may
+     * still turn out to be when it is looked up.
+     *
+     * @param name The file name, relative to the root of the store
+     * @return true if the file is known to be missing
+     */
+    default boolean isKnownMissing(String name) {
+        return false;
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param name The file name, relative to the root of the store
+     * @return The handle, to be closed when the transfer ends
+     * @throws java.nio.file.NoSuchFileException If the file does not exist
+     * @throws java.nio.file.AccessDeniedException If the store refuses the name
+     * @throws IOException If the file cannot be opened
+     */
+    ReadHandle open(String name) throws IOException;
+
+    /**
+     * Starts an upload of a new file.
+     *
+     * @param name The file name, relative to the root of the store
+     * @return The upload, to be closed when it ends, committed or not
+     * @throws FileAlreadyExistsException If the file exists or another upload of it is in progress
+     * @throws java.nio.file.AccessDeniedException If the store refuses the name
+     * @throws IOException If the upload cannot be started
+     */
+    Upload create(String name) throws IOException;
+
+    /**
+     * Releases what the store holds for itself, such as background threads; does not throw.
+     * Files opened before stay readable.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * The status of a file in a store.
+     */
+    final class Stat {
+
+        /**
+         * The status of a name the store refuses, such as one that leads outside of it.
+         */
+        public static final Stat DENIED = new Stat(false, false, false, 0, 0, true);
+
+        private final boolean exists;
+        private final boolean readable;
+        private final boolean writable;
+        private final long size;
+        private final long lastModified;
+        private final boolean denied;
+
+        /**
+         * Creates a file status.
+         *
+         * @param exists Whether the file exists
+         * @param readable Whether the file exists and can be read
+         * @param writable Whether the file can be written, or for a missing file created
+         * @param size The size in bytes, or 0 if the file does not exist
+         * @param lastModified The modification time in milliseconds since the epoch
+         */
+        public Stat(boolean exists, boolean readable, boolean writable, long size, long lastModified) {
+            this(exists, readable, writable, size, lastModified, false);
+        }
+
+        private Stat(boolean exists, boolean readable, boolean writable, long size, long lastModified,
+                     boolean denied) {
+            this.exists = exists;
+            this.readable = readable;
+            this.writable = writable;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.denied = denied;
+        }
+
+        /**
+         * Checks whether the store refuses the name, so it can be neither read nor created.
+         * @return true if the name is refused
+         */
+        public boolean isDenied() {
+            return denied;
+        }
+
+        /**
+         * Checks whether the file exists.
+         * @return true if it exists
+         */
+        public boolean exists() {
+            return exists;
+        }
+
+        /**
+         * Checks whether the file exists and can be read.
+         * @return true if it can be read
+         */
+        public boolean isReadable() {
+            return readable;
+        }
+
+        /**
+         * Checks whether the file can be written, or for a missing file created.
+         * @return true if it can be written
+         */
+        public boolean isWritable() {
+            return writable;
+        }
+
+        /**
+         * Gets the size of the file.
+         * @return The size in bytes, or 0 if it does not exist
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the modification time of the file.
+         * @return The time in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * An open file, read with positional reads only.
+     * A handle is a snapshot: it keeps reading the version of the file it was opened on.
+     */
+    interface ReadHandle extends Closeable {
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return The size in bytes
+         * @throws IOException If an I/O error occurs
+         */
+        long size() throws IOException;
+
+        /**
+         * Gets the modification time of the file.
+         *
+         * @return The time in milliseconds since the epoch
+         */
+        long lastModified();
+
+        /**
+         * Gets an object identifying this version of the file, equal across handles
+         * opened on the same file and suitable as a cache key.
+         *
+         * @return The identity
+         */
+        Object identity();
+
+        /**
+         * Reads from a position of the file into a buffer.
+         *
+         * @param destination The buffer to read into, from its position up to its limit
+         * @param position The file position to read from
+         * @return The number of bytes read, or -1 at the end of the file
+         * @throws IOException If an I/O error occurs
+         */
+        int read(ByteBuffer destination, long position) throws IOException;
+
+        /**
+         * Gets a read-only view of part of the file, without copying it.
+         *
+         * @param position The file position the view starts at
+         * @param length The length of the view
+         * @return The view, between its position and limit
+         * @throws IOException If an I/O error occurs
+         */
+        ByteBuffer map(long position, long length) throws IOException;
+
+        /**
+         * Checks whether the whole file is already in memory, so that {@link #map}
+         * costs nothing whatever the size of the file.
+         *
+         * @return true if the file is held in memory
+         */
+        boolean isResident();
+
+        /**
+         * Closes the handle; does not throw.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * A new file being written sequentially. Nothing is visible under the file's
+     * name until the upload is committed; an upload closed without being committed
+     * leaves nothing behind.
+     */
+    interface Upload extends Closeable {
+
+        /**
+         * Appends data to the file.
+         * Copies everything between the buffer's position and limit, leaving the position at the limit.
+         *
+         * @param data The data
+         * @throws StorageFullException If the file or the storage would grow past its limit
+         * @throws IOException If the data cannot be written
+         */
+        void write(ByteBuffer data) throws IOException;
+
+        /**
+         * Makes the complete file visible under its name, as durable as the store promises.
+         *
+         * @throws FileAlreadyExistsException If the file has been created in the meantime
+         * @throws StorageFullException If the storage has no room left for the file
+         * @throws IOException If the file cannot be committed
+         */
+        void commit() throws IOException;
+
+        /**
+         * Ends the upload, discarding it if it was not committed; does not throw.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,21 @@
+package com.networkcourse.tftp.util;
+
+import java.nio.file.FileSystemException;
+
+/**
+ * Thrown when a storage has no room left for an upload, because the file or the
+ * storage as a whole would grow past its limit.
+ */
+public class StorageFullException extends FileSystemException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new exception for an upload that was refused.
+     *
+     * @param file The name of the file being uploaded
+     * @param reason Which limit it would have exceeded
+     */
+    public StorageFullException(String file, String reason) {
+        super(file, null, reason);
+    }
+}
@@ -0,0 +1,150 @@
+package com.networkcourse.tftp.util;
+
+import com.networkcourse.tftp.common.BufferPool;
+
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background write stage shared by the upload sessions of a server.
+ * Owns the executor that flushes the sessions' {@link UploadSink}s, the pool of
+ * large buffers they gather blocks into, and the server-wide write-behind metrics.
+ * Uploads are written sparse by default: runs of zeros become holes in the file.
+ */
+public class WriteBehindService {
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+    private final ExecutorService executor;
+    private final BufferPool bufferPool;
+    private final int queueDepth;
+    private volatile boolean sparse = true;
+
+    final LongAdder flushes = new LongAdder();
+    final LongAdder flushNanos = new LongAdder();
+    final LongAdder bytesFlushed = new LongAdder();
+    final LongAdder bytesSkipped = new LongAdder();
+    final LongAdder stalls = new LongAdder();
+    final AtomicInteger queuedBuffers = new AtomicInteger();
+
+    /**
+     * Creates a new write-behind service with the default buffer size and queue depth.
+     *
+     * @param threads The number of write threads
+     */
+    public WriteBehindService(int threads) {
+        this(threads, DEFAULT_BUFFER_SIZE, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * Creates a new write-behind service.
+     *
+     * @param threads The number of write threads
+     * @param bufferSize The size of the buffers blocks are gathered into
+     * @param queueDepth The number of full buffers an upload may have waiting to be
+     *                   written before its receive loop is held back
+     */
+    public WriteBehindService(int threads, int bufferSize, int queueDepth) {
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tftp-write-behind-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bufferPool = new BufferPool(bufferSize, threads * queueDepth);
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Starts writing an upload behind its receive loop.
+     *
+     * @param channel The channel of the file being written; only used by the write threads from now on
+     * @return The sink, to be finished when the last block has arrived and closed in any case
+     */
+    public UploadSink open(FileChannel channel) {
+        return new UploadSink(this, channel, bufferPool, queueDepth, sparse);
+    }
+
+    /**
+     * Sets whether uploads opened from now on skip writing runs of zeros.
+     * Only new files may be written sparse, as skipped ranges are left as they are.
+     *
+     * @param sparse true to leave holes for runs of zeros
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * Checks whether uploads skip writing runs of zeros.
+     *
+     * @return true if uploads are written sparse
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Gets the number of buffers written to disk.
+     * @return The flush count
+     */
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * Gets the average time it took to write a buffer to disk.
+     * @return The average flush latency in milliseconds
+     */
+    public double getAverageFlushMillis() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : flushNanos.sum() / 1e6 / count;
+    }
+
+    /**
+     * Gets the number of bytes written to disk.
+     * @return The byte count
+     */
+    public long getBytesFlushed() {
+        return bytesFlushed.sum();
+    }
+
+    /**
+     * Gets the number of zero bytes left as holes instead of being written.
+     * @return The skipped byte count
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped.sum();
+    }
+
+    /**
+     * Gets the number of times a receive loop had to wait because its queue was full.
+     * @return The stall count
+     */
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    /**
+     * Gets the number of full buffers currently waiting to be written, across all uploads.
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return queuedBuffers.get();
+    }
+
+    /**
+     * Stops the write threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
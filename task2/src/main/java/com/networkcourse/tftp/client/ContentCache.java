@@ -0,0 +1,350 @@
+package com.networkcourse.tftp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * The client's copies of the files it has downloaded, keyed by server and file name,
+ * with the SHA-256 digest of each, so a later download of the same file can ask the
+ * server for it only if it has changed.
+ *
+ * Each copy is a file in a directory per server, named by the digest of the remote
+ * file name, next to a file holding the digest of its contents. The cache is only an
+ * optimization: when it cannot be read or written, downloads go on without it.
+ *
+ * The copies are bounded in bytes. When a new copy takes them over the bound, the
+ * least recently used ones are removed, by their modification times, which are
+ * renewed whenever a copy is used. A copy is checked against its digest before the
+ * digest is offered to a server, and removed if it no longer matches.
+ */
+public class ContentCache {
+    private static final Logger LOGGER = Logger.getLogger(ContentCache.class.getName());
+    private static final HexFormat HEX = HexFormat.of();
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private final Path root;
+    private final long maxBytes;
+
+    /**
+     * Creates a cache of the default size in the default directory, .tftp-cache in the
+     * user's home directory.
+     */
+    public ContentCache() {
+        this(Paths.get(System.getProperty("user.home"), ".tftp-cache"));
+    }
+
+    /**
+     * Creates a cache of the default size.
+     *
+     * @param root The directory to keep the copies in
+     */
+    public ContentCache(Path root) {
+        this(root, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param root The directory to keep the copies in
+     * @param maxBytes The most bytes of copies to keep
+     */
+    public ContentCache(Path root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the digest of the cached copy of a file.
+     *
+     * @param server The server, as host:port
+     * @param name The remote file name
+     * @return The SHA-256 digest in hex, or null if there is no copy or it no longer matches
+     */
+    public String digest(String server, String name) {
+        Path data = dataPath(server, name);
+        try {
+            if (!Files.isRegularFile(data)) {
+                return null;
+            }
+            String digest = new String(Files.readAllBytes(digestPath(data)), StandardCharsets.US_ASCII).trim();
+            // A copy that was changed or damaged would otherwise be served as current
+            if (!digest.equals(HEX.formatHex(sha256(data)))) {
+                LOGGER.info("Cached copy of " + name + " does not match its digest, removing it");
+                remove(data);
+                return null;
+            }
+            return digest;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot read cached digest of " + name, e);
+            return null;
+        }
+    }
+
+    private static byte[] sha256(Path data) throws IOException {
+        try (FileChannel channel = FileChannel.open(data, StandardOpenOption.READ)) {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.clear();
+            }
+            return sha256.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the cached copy of a file to a channel.
+     *
+     * @param server The server, as host:port
+     * @param name The remote file name
+     * @param destination The channel to copy to
+     * @return The size of the copy in bytes
+     * @throws IOException If there is no copy or it cannot be read
+     */
+    public long copyTo(String server, String name, WritableByteChannel destination) throws IOException {
+        Path path = dataPath(server, name);
+        long size;
+        try (FileChannel data = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = data.size();
+            long position = 0;
+            while (position < size) {
+                position += data.transferTo(position, size - position, destination);
+            }
+        }
+        try {
+            // Marks the copy as recently used
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot touch " + path, e);
+        }
+        return size;
+    }
+
+    /**
+     * Starts filling the cache with a file as it is downloaded.
+     * The returned channel passes everything written to it on to the destination and
+     * keeps a copy; the copy replaces the cached one when the fill is committed.
+     *
+     * @param server The server, as host:port
+     * @param name The remote file name
+     * @param destination The channel the download is written to
+     * @return The fill, to be closed when the download ends, committed or not
+     */
+    public Fill fill(String server, String name, WritableByteChannel destination) {
+        return new Fill(this, dataPath(server, name), destination);
+    }
+
+    private Path dataPath(String server, String name) {
+        try {
+            byte[] key = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            return root.resolve(server.replace(':', '_')).resolve(HEX.formatHex(key));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Path digestPath(Path data) {
+        return data.resolveSibling(data.getFileName() + ".sha256");
+    }
+
+    /**
+     * Removes a copy and its digest, the digest first, so it never describes a copy
+     * that is half gone.
+     */
+    private static void remove(Path data) {
+        try {
+            Files.deleteIfExists(digestPath(data));
+            Files.deleteIfExists(data);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot remove " + data, e);
+        }
+    }
+
+    /**
+     * Removes the least recently used copies until the copies fit in the bound.
+     *
+     * @param keep The copy just made, which stays
+     */
+    private synchronized void trim(Path keep) {
+        List<Copy> copies = new ArrayList<>();
+        long total = 0;
+        // Copies are named by a digest in hex; their digests and unfinished fills have suffixes
+        try (Stream<Path> paths = Files.walk(root, 2)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.getNameCount() - root.getNameCount() != 2 || path.getFileName().toString().contains(".")) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    copies.add(new Copy(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    total += attributes.size();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot list " + root, e);
+            return;
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        copies.sort(Comparator.comparingLong(copy -> copy.lastUsed));
+        for (Copy copy : copies) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (!copy.data.equals(keep)) {
+                remove(copy.data);
+                total -= copy.size;
+            }
+        }
+    }
+
+    /**
+     * A copy found in the cache directory.
+     */
+    private static final class Copy {
+        private final Path data;
+        private final long size;
+        private final long lastUsed;
+
+        Copy(Path data, long size, long lastUsed) {
+            this.data = data;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * A download being copied into the cache.
+     */
+    public static final class Fill implements WritableByteChannel {
+        private final ContentCache cache;
+        private final Path data;
+        private final WritableByteChannel destination;
+        private Path temporary;
+        private FileChannel copy;
+        private MessageDigest sha256;
+
+        Fill(ContentCache cache, Path data, WritableByteChannel destination) {
+            this.cache = cache;
+            this.data = data;
+            this.destination = destination;
+            try {
+                Files.createDirectories(data.getParent());
+                this.temporary = Files.createTempFile(data.getParent(), "fill", ".tmp");
+                this.copy = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (IOException | NoSuchAlgorithmException e) {
+                LOGGER.log(Level.FINE, "Cannot cache " + data, e);
+                discard();
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int start = source.position();
+            int written = destination.write(source);
+            if (copy != null) {
+                ByteBuffer view = source.duplicate();
+                view.position(start).limit(start + written);
+                sha256.update(view.duplicate());
+                try {
+                    while (view.hasRemaining()) {
+                        copy.write(view);
+                    }
+                } catch (IOException e) {
+                    // The download itself is fine
+                    LOGGER.log(Level.FINE, "Cannot cache " + data, e);
+                    discard();
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Makes the downloaded copy the cached one.
+         */
+        public void commit() {
+            if (copy == null) {
+                return;
+            }
+            Path digest = digestPath(data);
+            Path digestTemporary = digest.resolveSibling(digest.getFileName() + ".tmp");
+            try {
+                if (copy.size() > cache.maxBytes) {
+                    // Would push out everything else; the older copy is stale anyway
+                    discard();
+                    remove(data);
+                    return;
+                }
+                copy.close();
+                copy = null;
+                // The digest goes last, so it never describes contents it was not computed from
+                Files.deleteIfExists(digest);
+                Files.move(temporary, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                temporary = null;
+                Files.write(digestTemporary, HEX.formatHex(sha256.digest()).getBytes(StandardCharsets.US_ASCII));
+                Files.move(digestTemporary, digest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                cache.trim(data);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot cache " + data, e);
+                discard();
+            }
+        }
+
+        private void discard() {
+            try {
+                if (copy != null) {
+                    copy.close();
+                }
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot remove " + temporary, e);
+            }
+            copy = null;
+            temporary = null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return destination.isOpen();
+        }
+
+        /**
+         * Ends the fill, discarding the copy if it was not committed; does not close the destination.
+         */
+        @Override
+        public void close() {
+            discard();
+        }
+    }
+}
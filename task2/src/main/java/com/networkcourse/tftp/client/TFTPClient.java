@@ -1,11 +1,15 @@
 package com.networkcourse.tftp.client;
 
 import com.networkcourse.tftp.common.TFTPConstants;
+import com.networkcourse.tftp.common.TFTPErrorException;
 import com.networkcourse.tftp.util.FileTransferUtil;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Scanner;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,10 +19,27 @@ import java.util.logging.Logger;
  */
 public class TFTPClient {
     private static final Logger LOGGER = Logger.getLogger(TFTPClient.class.getName());
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_NANOS = 250_000_000L;
+    // Returned by a conditional download when the cached copy is current
+    private static final long NOT_MODIFIED = -1;
     
     private final String serverHost;
     private final int serverPort;
     private final Scanner scanner;
+    private final ContentCache contentCache;
+    
+    // Reused for every block of every transfer
+    private final byte[] blockBuffer = new byte[TFTPConstants.MAX_DATA_SIZE];
+    private final ByteBuffer blockView = ByteBuffer.wrap(blockBuffer);
+    private long lastProgressAt;
+    
+    // What conditional downloads saved, and the full downloads the time saved is estimated from
+    private long notModifiedCount;
+    private long bytesSaved;
+    private long nanosSaved;
+    private long bytesDownloaded;
+    private long downloadNanos;
     
     /**
      * Creates a new TFTP client.
@@ -27,15 +48,35 @@ public class TFTPClient {
      * @param serverPort The server port
      */
     public TFTPClient(String serverHost, int serverPort) {
+        this(serverHost, serverPort, new Scanner(System.in), new ContentCache());
+    }
+    
+    private TFTPClient(String serverHost, int serverPort, Scanner scanner, ContentCache contentCache) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
-        this.scanner = new Scanner(System.in);
+        this.scanner = scanner;
+        this.contentCache = contentCache;
+    }
+    
+    /**
+     * Creates a client for transfers made by another program through {@link #download}, 
+     * without the console or the content cache.
+     * 
+     * @param serverHost The server hostname or IP address
+     * @param serverPort The server port
+     * @return The client
+     */
+    public static TFTPClient forTransfers(String serverHost, int serverPort) {
+        return new TFTPClient(serverHost, serverPort, null, null);
     }
     
     /**
      * Starts the client's interactive console.
      */
     public void start() {
+        if (scanner == null) {
+            throw new IllegalStateException("Client was created without a console");
+        }
         System.out.println("TFTP Client (TCP) started");
         System.out.println("Server: " + serverHost + ":" + serverPort);
         
@@ -65,6 +106,10 @@ public class TFTPClient {
             }
         }
         
+        if (notModifiedCount > 0) {
+            System.out.println(notModifiedCount + " downloads served from the local cache, saving " 
+                    + bytesSaved + " bytes and about " + nanosSaved / 1_000_000 + " ms");
+        }
         System.out.println("TFTP Client exiting...");
     }
     
@@ -91,72 +136,35 @@ public class TFTPClient {
             
             System.out.println("Downloading " + remoteFile + " to " + localFile + "...");
             
-            // Connect to the server
-            try (
-                Socket socket = new Socket(serverHost, serverPort);
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-                FileOutputStream fileOutputStream = new FileOutputStream(localFile)
-            ) {
-                // Send read request
-                out.writeShort(TFTPConstants.OP_RRQ);
-                writeString(out, remoteFile);
-                writeString(out, TFTPConstants.MODE_OCTET);
-                out.flush();
-                
-                boolean fileComplete = false;
-                int totalBytes = 0;
-                
-                // Receive data packets until the file is complete
-                while (!fileComplete) {
-                    try {
-                        // Read opcode
-                        short opcode = in.readShort();
-                        
-                        if (opcode == TFTPConstants.OP_DATA) {
-                            // Read block number and data length
-                            short blockNumber = in.readShort();
-                            int dataLength = in.readInt();
-                            
-                            // Read data
-                            byte[] buffer = new byte[dataLength];
-                            in.readFully(buffer, 0, dataLength);
-                            
-                            // Write to file
-                            FileTransferUtil.writeBlock(fileOutputStream, buffer, dataLength);
-                            
-                            totalBytes += dataLength;
-                            
-                            // Update progress
-                            System.out.print("\rReceived " + totalBytes + " bytes");
-                            
-                            // If this is a partial block, it's the last one
-                            if (dataLength < TFTPConstants.MAX_DATA_SIZE) {
-                                fileComplete = true;
-                            }
-                            
-                        } else if (opcode == TFTPConstants.OP_ERROR) {
-                            // Read error code and message
-                            short errorCode = in.readShort();
-                            int messageLength = in.readInt();
-                            byte[] messageBytes = new byte[messageLength];
-                            in.readFully(messageBytes, 0, messageLength);
-                            String errorMessage = new String(messageBytes);
-                            
-                            System.out.println("\nError from server: " + errorCode + " - " + errorMessage);
-                            return;
-                            
-                        } else {
-                            System.out.println("\nUnexpected response from server");
-                            return;
-                        }
-                    } catch (EOFException e) {
-                        System.out.println("\nError: Server closed the connection unexpectedly.");
-                        return;
+            // Ask for the file only if it has changed since it was cached
+            String server = serverHost + ":" + serverPort;
+            String cachedDigest = contentCache.digest(server, remoteFile);
+            long startedAt = System.nanoTime();
+            
+            // Open output file, and keep a copy of what arrives in the cache
+            try (FileOutputStream fileOutputStream = new FileOutputStream(localFile);
+                 ContentCache.Fill fill = contentCache.fill(server, remoteFile, fileOutputStream.getChannel())) {
+                long totalBytes = download(remoteFile, cachedDigest, fill, totalReceived -> {
+                    // Update progress, at most a few times a second
+                    if (progressDue()) {
+                        System.out.print("\rReceived " + totalReceived + " bytes");
                     }
-                }
+                });
                 
-                System.out.println("\nDownload complete. " + totalBytes + " bytes received.");
+                if (totalBytes == NOT_MODIFIED) {
+                    long size = contentCache.copyTo(server, remoteFile, fileOutputStream.getChannel());
+                    System.out.println("Not modified. " + size + " bytes copied from the local cache" 
+                            + recordNotModified(size, System.nanoTime() - startedAt) + ".");
+                } else {
+                    fill.commit();
+                    bytesDownloaded += totalBytes;
+                    downloadNanos += System.nanoTime() - startedAt;
+                    System.out.println("\nDownload complete. " + totalBytes + " bytes received.");
+                }
+            } catch (TFTPErrorException e) {
+                System.out.println("\nError from server: " + e.getMessage());
+            } catch (EOFException e) {
+                System.out.println("\nError: Server closed the connection unexpectedly.");
             } catch (IOException e) {
                 System.out.println("Error: " + e.getMessage());
                 LOGGER.log(Level.WARNING, "Error downloading file", e);
@@ -167,6 +175,98 @@ public class TFTPClient {
         }
     }
     
+    /**
+     * Downloads a file from the server.
+     * A client runs one transfer at a time; concurrent downloads need a client each.
+     * 
+     * @param remoteFile The name of the file on the server
+     * @param destination The channel to write the file to, as it arrives
+     * @return The size of the file in bytes
+     * @throws TFTPErrorException If the server answers with an error
+     * @throws EOFException If the server closes the connection before the end of the file
+     * @throws IOException If an I/O error occurs
+     */
+    public long download(String remoteFile, WritableByteChannel destination) throws IOException {
+        return download(remoteFile, null, destination, totalReceived -> { });
+    }
+    
+    /**
+     * Downloads a file from the server, reporting progress after every block.
+     * 
+     * @param remoteFile The name of the file on the server
+     * @param digest The digest of a copy the client has, to only download the file if it 
+     *               has changed, or null
+     * @param destination The channel to write the file to, as it arrives
+     * @param progress Called with the number of bytes received so far
+     * @return The size of the file in bytes, or NOT_MODIFIED if the copy is current
+     * @throws IOException If an I/O error occurs, the server answers with an error or hangs up
+     */
+    private long download(String remoteFile, String digest, WritableByteChannel destination, 
+                          LongConsumer progress) throws IOException {
+        // Connect to the server
+        try (
+            Socket socket = new Socket(serverHost, serverPort);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE))
+        ) {
+            // Send read request, carrying the digest of the client's copy if it has one
+            out.writeShort(digest != null ? TFTPConstants.OP_CONDITIONAL_RRQ : TFTPConstants.OP_RRQ);
+            writeString(out, remoteFile);
+            writeString(out, TFTPConstants.MODE_OCTET);
+            if (digest != null) {
+                writeString(out, digest);
+            }
+            out.flush();
+            
+            long totalBytes = 0;
+            
+            // Receive data packets until a partial block, which is the last one
+            while (true) {
+                // Read opcode
+                short opcode = in.readShort();
+                
+                if (opcode == TFTPConstants.OP_DATA) {
+                    // Read block number and data length
+                    in.readShort();
+                    int dataLength = in.readInt();
+                    
+                    if (dataLength < 0 || dataLength > TFTPConstants.MAX_DATA_SIZE) {
+                        throw new IOException("Invalid data length from server");
+                    }
+                    
+                    // Read data and write it to the destination
+                    in.readFully(blockBuffer, 0, dataLength);
+                    blockView.limit(dataLength).position(0);
+                    FileTransferUtil.writeBlock(destination, blockView);
+                    
+                    totalBytes += dataLength;
+                    progress.accept(totalBytes);
+                    
+                    if (dataLength < TFTPConstants.MAX_DATA_SIZE) {
+                        return totalBytes;
+                    }
+                    
+                } else if (opcode == TFTPConstants.OP_ERROR) {
+                    // Read error code and message
+                    short errorCode = in.readShort();
+                    int messageLength = in.readInt();
+                    byte[] messageBytes = new byte[messageLength];
+                    in.readFully(messageBytes, 0, messageLength);
+                    
+                    if (digest != null && totalBytes == 0 && errorCode == TFTPConstants.ERR_NOT_MODIFIED) {
+                        return NOT_MODIFIED;
+                    }
+                    throw new TFTPErrorException(errorCode, new String(messageBytes));
+                    
+                } else {
+                    throw new IOException("Unexpected response from server");
+                }
+            }
+        }
+    }
+    
     /**
      * Handles uploading a file to the server.
      */
@@ -193,8 +293,10 @@ public class TFTPClient {
             // Connect to the server
             try (
                 Socket socket = new Socket(serverHost, serverPort);
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
                 FileInputStream fileInputStream = new FileInputStream(localFile)
             ) {
                 // Send write request
@@ -216,26 +318,52 @@ public class TFTPClient {
                     System.out.println("Error from server: " + errorCode + " - " + errorMessage);
                     return;
                 }
+                if (opcode != TFTPConstants.OP_ACK) {
+                    System.out.println("Error: Unexpected response from server");
+                    return;
+                }
+                in.readShort();
                 
                 // Send file data
-                byte[] buffer = new byte[TFTPConstants.MAX_DATA_SIZE];
                 int bytesRead;
                 short blockNumber = 1;
                 int totalBytes = 0;
                 
-                while ((bytesRead = FileTransferUtil.readBlock(fileInputStream, buffer, TFTPConstants.MAX_DATA_SIZE)) != -1) {
-                    // Send data packet
+                // Send blocks until a short (possibly empty) one has been sent
+                do {
+                    // A file read only comes up short at the end of the file
+                    bytesRead = Math.max(0, FileTransferUtil.readBlock(fileInputStream, blockBuffer, TFTPConstants.MAX_DATA_SIZE));
+                    
+                    // Send data packet; the stream buffer decides when to hit the socket
                     out.writeShort(TFTPConstants.OP_DATA);
                     out.writeShort(blockNumber);
                     out.writeInt(bytesRead);
-                    out.write(buffer, 0, bytesRead);
-                    out.flush();
+                    out.write(blockBuffer, 0, bytesRead);
                     
                     totalBytes += bytesRead;
                     blockNumber++;
                     
-                    // Update progress
-                    System.out.print("\rSent " + totalBytes + " bytes");
+                    // Update progress, at most a few times a second
+                    if (progressDue()) {
+                        System.out.print("\rSent " + totalBytes + " bytes");
+                    }
+                } while (bytesRead == TFTPConstants.MAX_DATA_SIZE);
+                out.flush();
+                
+                // The server acknowledges the last block once the file is written
+                opcode = in.readShort();
+                if (opcode == TFTPConstants.OP_ERROR) {
+                    short errorCode = in.readShort();
+                    int messageLength = in.readInt();
+                    byte[] messageBytes = new byte[messageLength];
+                    in.readFully(messageBytes, 0, messageLength);
+                    
+                    System.out.println("\nError from server: " + errorCode + " - " + new String(messageBytes));
+                    return;
+                }
+                if (opcode != TFTPConstants.OP_ACK || in.readShort() != (short) (blockNumber - 1)) {
+                    System.out.println("\nError: Unexpected response from server");
+                    return;
                 }
                 
                 System.out.println("\nUpload complete. " + totalBytes + " bytes sent.");
@@ -251,6 +379,67 @@ public class TFTPClient {
         }
     }
     
+    /**
+     * Records a download answered from the cache, and estimates the time it saved from 
+     * the throughput of the full downloads so far.
+     * 
+     * @param size The size of the cached copy
+     * @param elapsedNanos The time the conditional request took
+     * @return A note on the time saved, empty if there is nothing to estimate from yet
+     */
+    private String recordNotModified(long size, long elapsedNanos) {
+        notModifiedCount++;
+        bytesSaved += size;
+        if (bytesDownloaded == 0) {
+            return "";
+        }
+        long saved = Math.max(0, (long) ((double) size * downloadNanos / bytesDownloaded) - elapsedNanos);
+        nanosSaved += saved;
+        return ", about " + saved / 1_000_000 + " ms saved";
+    }
+    
+    /**
+     * Gets the number of downloads answered from the local cache.
+     * 
+     * @return The not-modified count
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount;
+    }
+    
+    /**
+     * Gets the number of bytes not downloaded because the cached copy was current.
+     * 
+     * @return The byte count
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+    
+    /**
+     * Gets the estimated time saved by downloads answered from the local cache.
+     * 
+     * @return The time in milliseconds
+     */
+    public long getMillisSaved() {
+        return nanosSaved / 1_000_000;
+    }
+    
+    /**
+     * Checks whether enough time has passed to print another progress line.
+     * Progress is throttled so a long transfer does not build a string for every block.
+     * 
+     * @return true if progress should be printed now
+     */
+    private boolean progressDue() {
+        long now = System.nanoTime();
+        if (now - lastProgressAt < PROGRESS_INTERVAL_NANOS) {
+            return false;
+        }
+        lastProgressAt = now;
+        return true;
+    }
+    
     /**
      * Writes a null-terminated string to the output stream.
      * 
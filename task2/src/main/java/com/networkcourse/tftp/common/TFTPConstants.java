@@ -10,6 +10,9 @@ public class TFTPConstants {
     public static final short OP_DATA = 3;     // Data packet
     public static final short OP_ACK = 4;      // Acknowledgment
     public static final short OP_ERROR = 5;    // Error message
+    // RRQ followed by the digest of the client's copy, as a string; the request has 
+    // no room for options, which end where the next request starts
+    public static final short OP_CONDITIONAL_RRQ = 7;
     
     // TFTP error codes
     public static final short ERR_NOT_DEFINED = 0;       // Not defined
@@ -20,6 +23,8 @@ public class TFTPConstants {
     public static final short ERR_UNKNOWN_TID = 5;       // Unknown transfer ID
     public static final short ERR_FILE_EXISTS = 6;       // File already exists
     public static final short ERR_NO_SUCH_USER = 7;      // No such user
+    // Extension; 8 is taken by RFC 2347
+    public static final short ERR_NOT_MODIFIED = 9;      // The client's copy is current
     
     // Mode strings
     public static final String MODE_OCTET = "octet";
@@ -39,4 +44,5 @@ public class TFTPConstants {
     public static final String ERR_MSG_UNKNOWN_TID = "Unknown transfer ID.";
     public static final String ERR_MSG_FILE_EXISTS = "File already exists.";
     public static final String ERR_MSG_NO_SUCH_USER = "No such user.";
+    public static final String ERR_MSG_NOT_MODIFIED = "Not modified.";
 }
@@ -0,0 +1,31 @@
+package com.networkcourse.tftp.common;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the other end of a transfer answers with an ERROR packet.
+ */
+public class TFTPErrorException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    private final short errorCode;
+    
+    /**
+     * Creates a new exception for a received error.
+     * 
+     * @param errorCode The error code
+     * @param errorMessage The error message
+     */
+    public TFTPErrorException(short errorCode, String errorMessage) {
+        super(errorCode + " - " + errorMessage);
+        this.errorCode = errorCode;
+    }
+    
+    /**
+     * Get the error code.
+     * @return The error code
+     */
+    public short getErrorCode() {
+        return errorCode;
+    }
+}
@@ -1,9 +1,8 @@
 package com.networkcourse.tftp.common;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Base class for TFTP packet structures.
@@ -24,22 +23,64 @@ public abstract class TFTPPacket {
         return opcode;
     }
     
+    /**
+     * Gets the number of bytes this packet occupies on the wire.
+     * @return The encoded length in bytes
+     */
+    public abstract int getEncodedLength();
+    
+    /**
+     * Encodes this packet directly into a buffer, which may be a direct buffer.
+     * Uses absolute puts, so the buffer's position and limit are left unchanged
+     * and nothing is allocated.
+     * 
+     * @param buffer The buffer to write into
+     * @param offset The index in the buffer at which the packet starts
+     * @return The number of bytes written
+     * @throws BufferOverflowException If the packet does not fit between offset and the buffer's limit
+     */
+    public abstract int encode(ByteBuffer buffer, int offset);
+    
     /**
      * Serializes this packet into a byte array for transmission.
+     * Kept for callers that need a standalone array; hot paths should use {@link #encode}.
      * @return Byte array representation of the packet
      * @throws IOException If an error occurs during serialization
      */
-    public abstract byte[] serialize() throws IOException;
+    public byte[] serialize() throws IOException {
+        byte[] bytes = new byte[getEncodedLength()];
+        encode(ByteBuffer.wrap(bytes), 0);
+        return bytes;
+    }
     
     /**
-     * Helper method to write null-terminated string to ByteArrayOutputStream.
-     * @param baos The ByteArrayOutputStream
+     * Checks that a packet of the given length fits in the buffer at the given offset.
+     * @param buffer The buffer
+     * @param offset The index at which the packet starts
+     * @param length The encoded length of the packet
+     * @throws BufferOverflowException If the packet does not fit
+     */
+    protected static void checkCapacity(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || buffer.limit() - offset < length) {
+            throw new BufferOverflowException();
+        }
+    }
+    
+    /**
+     * Helper method to write a null-terminated ASCII string at an absolute index.
+     * Characters outside US-ASCII are written as '?'.
+     * @param buffer The buffer to write into
+     * @param index The index of the first character
      * @param str The string to write
-     * @throws IOException If an error occurs during writing
+     * @return The index just past the null terminator
      */
-    protected static void writeNullTerminatedString(ByteArrayOutputStream baos, String str) throws IOException {
-        baos.write(str.getBytes(StandardCharsets.US_ASCII));
-        baos.write(0); // Null terminator
+    protected static int putNullTerminatedString(ByteBuffer buffer, int index, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            buffer.put(index++, c < 0x80 ? (byte) c : (byte) '?');
+        }
+        buffer.put(index++, (byte) 0); // Null terminator
+        return index;
     }
     
     /**
@@ -50,12 +91,21 @@ public abstract class TFTPPacket {
      * @throws IOException If the packet data is invalid
      */
     public static TFTPPacket createFromBytes(byte[] data, int length) throws IOException {
-        if (length < 2) {
+        return createFromBuffer(ByteBuffer.wrap(data, 0, length));
+    }
+    
+    /**
+     * Factory method to create a packet from the bytes between a buffer's position and limit.
+     * @param buffer The buffer holding the received packet
+     * @return The appropriate packet object
+     * @throws IOException If the packet data is invalid
+     */
+    public static TFTPPacket createFromBuffer(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
             throw new IOException("Invalid packet: too short");
         }
         
         // Extract opcode from first two bytes
-        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
         short opcode = buffer.getShort();
         
         switch (opcode) {
@@ -0,0 +1,112 @@
+package com.networkcourse.tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable flyweight view over a received packet.
+ * Reads the opcode, block number and payload of DATA and ACK packets in place,
+ * so the hot receive path creates no packet objects and copies no data: the
+ * payload slice can be handed straight to a file channel.
+ * A view is only valid until its buffer is overwritten by the next receive.
+ * Packets off the hot path can still be turned into objects with {@link #toPacket()}.
+ */
+public final class TFTPPacketView {
+    private ByteBuffer buffer;
+    private ByteBuffer payload;
+    private int offset;
+    private int length;
+
+    /**
+     * Points this view at the packet between the buffer's position and limit.
+     * Only allocates when the view is first pointed at a different buffer.
+     *
+     * @param buffer The buffer holding the received packet
+     * @return This view
+     * @throws IOException If the packet is too short to carry an opcode
+     */
+    public TFTPPacketView wrap(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            throw new IOException("Invalid packet: too short");
+        }
+
+        if (this.buffer != buffer) {
+            this.buffer = buffer;
+            this.payload = buffer.duplicate();
+        }
+        this.offset = buffer.position();
+        this.length = buffer.remaining();
+        return this;
+    }
+
+    /**
+     * Gets the opcode of the viewed packet.
+     * @return The opcode value
+     */
+    public short getOpcode() {
+        return buffer.getShort(offset);
+    }
+
+    /**
+     * Checks whether the viewed packet is a well-formed DATA packet.
+     * @return true if this is a DATA packet with a block number
+     */
+    public boolean isData() {
+        return getOpcode() == TFTPConstants.OP_DATA && length >= 4;
+    }
+
+    /**
+     * Checks whether the viewed packet is a well-formed ACK packet.
+     * @return true if this is an ACK packet with a block number
+     */
+    public boolean isAck() {
+        return getOpcode() == TFTPConstants.OP_ACK && length >= 4;
+    }
+
+    /**
+     * Gets the block number of the viewed DATA or ACK packet.
+     * @return The block number
+     */
+    public short getBlockNumber() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * Gets the length of the payload of the viewed DATA packet.
+     * @return The payload length in bytes
+     */
+    public int getPayloadLength() {
+        return length - 4;
+    }
+
+    /**
+     * Gets the payload of the viewed DATA packet as a slice of the receive buffer.
+     * The returned buffer is reused by this view and positioned on the payload.
+     *
+     * @return The payload slice
+     */
+    public ByteBuffer payload() {
+        payload.limit(offset + length).position(offset + 4);
+        return payload;
+    }
+
+    /**
+     * Checks whether the viewed DATA packet is the final one of a transfer.
+     * @return true if the payload is shorter than a full block
+     */
+    public boolean isFinalPacket() {
+        return getPayloadLength() < TFTPConstants.MAX_DATA_SIZE;
+    }
+
+    /**
+     * Decodes the viewed packet into a packet object, for the non-hot paths.
+     *
+     * @return The packet object
+     * @throws IOException If the packet data is invalid
+     */
+    public TFTPPacket toPacket() throws IOException {
+        ByteBuffer packet = buffer.duplicate();
+        packet.limit(offset + length).position(offset);
+        return TFTPPacket.createFromBuffer(packet);
+    }
+}
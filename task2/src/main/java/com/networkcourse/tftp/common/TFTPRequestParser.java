@@ -0,0 +1,355 @@
+package com.networkcourse.tftp.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass parser for RRQ and WRQ packets, including the options of RFC 2347.
+ * Format:
+ *    2 bytes    string    1 byte    string    1 byte    string   1 byte   string   1 byte
+ *   --------------------------------------------------------------------------------------
+ *  | Opcode |  Filename  |   0   |    Mode    |   0  |  opt1   |   0   |  value1 |   0   | ...
+ *   --------------------------------------------------------------------------------------
+ *
+ * The packet is scanned once with absolute reads and every field is bounds-checked,
+ * so truncated or malicious packets are rejected with a reason instead of an exception.
+ * The mode and the known option names are matched against byte constants and option
+ * values are decoded as numbers, so parsing allocates nothing; the filename is only
+ * turned into a String when asked for. A parser instance is reusable but not thread-safe.
+ */
+public final class TFTPRequestParser {
+    // Transfer modes
+    public static final int MODE_UNKNOWN = 0;
+    public static final int MODE_OCTET = 1;
+    public static final int MODE_NETASCII = 2;
+    public static final int MODE_MAIL = 3;
+
+    // Value reported for an option that was not present
+    public static final int OPTION_ABSENT = -1;
+
+    // Rejection reasons
+    public static final String ERR_TOO_SHORT = "Invalid request packet: too short";
+    public static final String ERR_BAD_OPCODE = "Invalid request packet: not an RRQ or WRQ";
+    public static final String ERR_EMPTY_FILENAME = "Invalid request packet: empty filename";
+    public static final String ERR_NO_FILENAME_END = "Invalid request packet: no zero after filename";
+    public static final String ERR_NO_MODE_END = "Invalid request packet: no zero after mode";
+    public static final String ERR_BAD_OPTION = "Invalid request packet: malformed option";
+    public static final String ERR_BAD_OPTION_VALUE = "Invalid request packet: malformed option value";
+
+    private static final byte[] OCTET = ascii(TFTPConstants.MODE_OCTET);
+    private static final byte[] NETASCII = ascii("netascii");
+    private static final byte[] MAIL = ascii("mail");
+    private static final byte[] BLKSIZE = ascii("blksize");
+    private static final byte[] TIMEOUT = ascii("timeout");
+    private static final byte[] TSIZE = ascii("tsize");
+    private static final byte[] WINDOWSIZE = ascii("windowsize");
+    private static final byte[] DIGEST = ascii("digest");
+
+    // Longest decimal value accepted for an option (fits comfortably in a long)
+    private static final int MAX_VALUE_DIGITS = 18;
+
+    private ByteBuffer buffer;
+    private short opcode;
+    private int filenameOffset;
+    private int filenameLength;
+    private int modeOffset;
+    private int modeLength;
+    private int mode;
+    private int blockSize;
+    private int timeout;
+    private long transferSize;
+    private int windowSize;
+    private int digestOffset;
+    private int digestLength;
+    private String error;
+
+    /**
+     * Parses the request between the buffer's position and limit.
+     * The buffer's position and limit are not changed, and the buffer must not be
+     * modified while the parsed fields are still being read.
+     *
+     * @param buffer The buffer holding the packet, starting with its opcode
+     * @return true if the packet is a well-formed request, false otherwise (see {@link #getError()})
+     */
+    public boolean parse(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) {
+            this.error = ERR_TOO_SHORT;
+            return false;
+        }
+        return parse(buffer.getShort(buffer.position()), buffer, buffer.position() + 2);
+    }
+
+    /**
+     * Parses the fields of a request whose opcode has already been read.
+     * The fields are taken from between the buffer's position and limit.
+     *
+     * @param opcode The opcode of the packet
+     * @param buffer The buffer holding the packet, positioned after the opcode
+     * @return true if the packet is a well-formed request, false otherwise (see {@link #getError()})
+     */
+    public boolean parse(short opcode, ByteBuffer buffer) {
+        return parse(opcode, buffer, buffer.position());
+    }
+
+    private boolean parse(short opcode, ByteBuffer buffer, int index) {
+        this.buffer = buffer;
+        this.opcode = opcode;
+        this.mode = MODE_UNKNOWN;
+        this.blockSize = OPTION_ABSENT;
+        this.timeout = OPTION_ABSENT;
+        this.transferSize = OPTION_ABSENT;
+        this.windowSize = OPTION_ABSENT;
+        this.digestLength = OPTION_ABSENT;
+        this.error = null;
+
+        int limit = buffer.limit();
+
+        if (opcode != TFTPConstants.OP_RRQ && opcode != TFTPConstants.OP_WRQ) {
+            return reject(ERR_BAD_OPCODE);
+        }
+
+        // Filename
+        filenameOffset = index;
+        index = findZero(buffer, index, limit);
+        if (index < 0) {
+            return reject(ERR_NO_FILENAME_END);
+        }
+        filenameLength = index - filenameOffset;
+        if (filenameLength == 0) {
+            return reject(ERR_EMPTY_FILENAME);
+        }
+        index++;
+
+        // Mode
+        modeOffset = index;
+        index = findZero(buffer, index, limit);
+        if (index < 0) {
+            return reject(ERR_NO_MODE_END);
+        }
+        modeLength = index - modeOffset;
+        index++;
+
+        if (equalsIgnoreCase(buffer, modeOffset, modeLength, OCTET)) {
+            mode = MODE_OCTET;
+        } else if (equalsIgnoreCase(buffer, modeOffset, modeLength, NETASCII)) {
+            mode = MODE_NETASCII;
+        } else if (equalsIgnoreCase(buffer, modeOffset, modeLength, MAIL)) {
+            mode = MODE_MAIL;
+        }
+
+        // Options, as name/value pairs
+        while (index < limit) {
+            int nameOffset = index;
+            index = findZero(buffer, index, limit);
+            if (index < 0 || index == nameOffset) {
+                return reject(ERR_BAD_OPTION);
+            }
+            int nameLength = index - nameOffset;
+            index++;
+
+            int valueOffset = index;
+            index = findZero(buffer, index, limit);
+            if (index < 0) {
+                return reject(ERR_BAD_OPTION);
+            }
+            int valueLength = index - valueOffset;
+            index++;
+
+            if (equalsIgnoreCase(buffer, nameOffset, nameLength, BLKSIZE)) {
+                blockSize = (int) Math.min(Integer.MAX_VALUE, parseNumber(buffer, valueOffset, valueLength));
+                if (blockSize < 0) {
+                    return reject(ERR_BAD_OPTION_VALUE);
+                }
+            } else if (equalsIgnoreCase(buffer, nameOffset, nameLength, TIMEOUT)) {
+                timeout = (int) Math.min(Integer.MAX_VALUE, parseNumber(buffer, valueOffset, valueLength));
+                if (timeout < 0) {
+                    return reject(ERR_BAD_OPTION_VALUE);
+                }
+            } else if (equalsIgnoreCase(buffer, nameOffset, nameLength, TSIZE)) {
+                transferSize = parseNumber(buffer, valueOffset, valueLength);
+                if (transferSize < 0) {
+                    return reject(ERR_BAD_OPTION_VALUE);
+                }
+            } else if (equalsIgnoreCase(buffer, nameOffset, nameLength, WINDOWSIZE)) {
+                windowSize = (int) Math.min(Integer.MAX_VALUE, parseNumber(buffer, valueOffset, valueLength));
+                if (windowSize < 0) {
+                    return reject(ERR_BAD_OPTION_VALUE);
+                }
+            } else if (equalsIgnoreCase(buffer, nameOffset, nameLength, DIGEST)) {
+                digestOffset = valueOffset;
+                digestLength = valueLength;
+            }
+            // Unknown options are ignored, as RFC 2347 requires
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the reason the last packet was rejected.
+     * @return The rejection reason, or null if the last packet was accepted
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Gets the opcode of the parsed request.
+     * @return OP_RRQ or OP_WRQ
+     */
+    public short getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Gets the filename of the parsed request. This is the only accessor that allocates.
+     * @return The filename
+     */
+    public String getFilename() {
+        return decode(filenameOffset, filenameLength);
+    }
+
+    /**
+     * Gets the transfer mode of the parsed request.
+     * @return One of the MODE_ constants
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the transfer mode as a string; known modes are returned as shared constants.
+     * @return The mode string
+     */
+    public String getModeString() {
+        switch (mode) {
+            case MODE_OCTET:
+                return TFTPConstants.MODE_OCTET;
+            case MODE_NETASCII:
+                return "netascii";
+            case MODE_MAIL:
+                return "mail";
+            default:
+                return decode(modeOffset, modeLength);
+        }
+    }
+
+    /**
+     * Gets the requested block size (RFC 2348).
+     * @return The block size, or OPTION_ABSENT
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the requested timeout in seconds (RFC 2349).
+     * @return The timeout, or OPTION_ABSENT
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Gets the transfer size (RFC 2349).
+     * @return The transfer size, or OPTION_ABSENT
+     */
+    public long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * Gets the requested window size (RFC 7440).
+     * @return The window size, or OPTION_ABSENT
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Gets the digest of the client's copy of the file, sent to ask for the file only
+     * if it has changed. Allocates, like the filename.
+     * @return The digest as sent, in hex, or null if the option was not present
+     */
+    public String getDigest() {
+        return digestLength < 0 ? null : decode(digestOffset, digestLength);
+    }
+
+    /**
+     * Builds a request packet object from the last accepted packet.
+     * @return The request packet
+     */
+    public TFTPRequestPacket toPacket() {
+        return new TFTPRequestPacket(opcode, getFilename(), getModeString(),
+                blockSize, timeout, transferSize, windowSize, getDigest());
+    }
+
+    private boolean reject(String reason) {
+        this.error = reason;
+        return false;
+    }
+
+    private String decode(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Finds the next zero byte.
+     * @return The index of the zero byte, or -1 if there is none before the limit
+     */
+    private static int findZero(ByteBuffer buffer, int index, int limit) {
+        while (index < limit) {
+            if (buffer.get(index) == 0) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares a field with a lower-case ASCII constant, ignoring case.
+     */
+    private static boolean equalsIgnoreCase(ByteBuffer buffer, int offset, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(offset + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a non-negative decimal number.
+     * @return The value, or -1 if the field is empty, too long or not all digits
+     */
+    private static long parseNumber(ByteBuffer buffer, int offset, int length) {
+        if (length == 0 || length > MAX_VALUE_DIGITS) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = buffer.get(offset + i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
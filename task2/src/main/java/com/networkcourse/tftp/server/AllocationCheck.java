@@ -0,0 +1,146 @@
+package com.networkcourse.tftp.server;
+
+import com.networkcourse.tftp.client.TFTPClient;
+import com.networkcourse.tftp.common.TFTPConstants;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Checks that the per-block paths of a download allocate nothing once warmed up.
+ *
+ * Runs a server on a temporary directory and a client in one process, downloads a file
+ * over loopback twice, the first time to warm up the code, and compares the heap
+ * allocated by all live threads during the second download, the session's and the
+ * client's among them, with the number of blocks sent. Exits with status 1 if the
+ * allocation per block is above the threshold.
+ * What a transfer allocates once, its session and buffers, is spread over its blocks,
+ * so the file must be large for the per-block figure to mean anything.
+ */
+public class AllocationCheck {
+    public static final int DEFAULT_FILE_MEGABYTES = 100;
+    // Bytes per block tolerated for what each transfer allocates once
+    public static final double MAX_BYTES_PER_BLOCK = 16;
+    private static final long IDLE_TIMEOUT_MILLIS = 10_000;
+    // Held so the level set on it is not lost with it
+    private static final Logger PACKAGE_LOGGER = Logger.getLogger("com.networkcourse.tftp");
+
+    /**
+     * A destination that drops what it is given.
+     */
+    private static final class Discard implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Gets the bytes each live thread has allocated so far.
+     */
+    private static Map<Long, Long> allocatedByThread(com.sun.management.ThreadMXBean threads) {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Waits until the server's sessions have ended, so a transfer's last steps do not
+     * fall into the next measurement.
+     */
+    private static void awaitIdle(TFTPServer server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MILLIS;
+        while (server.getSessionRegistry().size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args Command line arguments (optional: size of the measured file in megabytes)
+     * @throws IOException If the server cannot be started or a download fails
+     * @throws InterruptedException If the check is interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_MEGABYTES;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM does not measure allocation per thread");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        // Sessions log at INFO when they start and end, which is not the per-block path
+        PACKAGE_LOGGER.setLevel(Level.WARNING);
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Path directory = Files.createTempDirectory("tftp-allocation");
+        Path file = directory.resolve("transfer.bin");
+        Files.write(file, new byte[megabytes << 20]);
+        TFTPServer server = new TFTPServer(port, directory.toString(), 1);
+        server.start();
+
+        TFTPClient client = TFTPClient.forTransfers("127.0.0.1", port);
+        Discard discard = new Discard();
+        long size;
+        Map<Long, Long> before;
+        Map<Long, Long> after;
+        try {
+            client.download("transfer.bin", discard);
+            awaitIdle(server);
+
+            before = allocatedByThread(threads);
+            size = client.download("transfer.bin", discard);
+            awaitIdle(server);
+            after = allocatedByThread(threads);
+        } finally {
+            server.drain(IDLE_TIMEOUT_MILLIS);
+            // The server keeps its own state files in the directory too
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            allocated += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        long blocks = size / TFTPConstants.MAX_DATA_SIZE + 1;
+        double perBlock = (double) allocated / blocks;
+        System.out.printf("%d blocks, %d bytes allocated, %.2f bytes per block (at most %.0f)%n",
+                blocks, allocated, perBlock, MAX_BYTES_PER_BLOCK);
+        System.exit(perBlock > MAX_BYTES_PER_BLOCK ? 1 : 0);
+    }
+}
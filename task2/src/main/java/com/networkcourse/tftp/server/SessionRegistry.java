@@ -0,0 +1,153 @@
+package com.networkcourse.tftp.server;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the sessions currently being served.
+ * Sessions are indexed both by session ID and by the client's transfer ID
+ * (address and port). Both indexes are concurrent maps, so registering and
+ * removing a session never takes a server-wide lock.
+ */
+public class SessionRegistry {
+    private static final Logger LOGGER = Logger.getLogger(SessionRegistry.class.getName());
+    private static final long DRAIN_POLL_INTERVAL_MS = 100;
+
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    private final ConcurrentHashMap<Long, TFTPSession> sessionsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, TFTPSession> sessionsByClient = new ConcurrentHashMap<>();
+
+    /**
+     * Allocates a new, unique session ID.
+     *
+     * @return The session ID
+     */
+    public long nextSessionId() {
+        return nextSessionId.getAndIncrement();
+    }
+
+    /**
+     * Registers a session.
+     *
+     * @param session The session to register
+     */
+    public void register(TFTPSession session) {
+        sessionsById.put(session.getSessionId(), session);
+        sessionsByClient.put(session.getClientAddress(), session);
+    }
+
+    /**
+     * Removes a session from the registry.
+     * The client index entry is only removed if it still points at this session.
+     *
+     * @param session The session to remove
+     */
+    public void unregister(TFTPSession session) {
+        sessionsById.remove(session.getSessionId(), session);
+        sessionsByClient.remove(session.getClientAddress(), session);
+    }
+
+    /**
+     * Looks up a session by its ID.
+     *
+     * @param sessionId The session ID
+     * @return The session, or null if there is no such session
+     */
+    public TFTPSession get(long sessionId) {
+        return sessionsById.get(sessionId);
+    }
+
+    /**
+     * Looks up a session by the client's transfer ID.
+     *
+     * @param clientAddress The client address and port
+     * @return The session, or null if there is no such session
+     */
+    public TFTPSession getByClient(InetSocketAddress clientAddress) {
+        return sessionsByClient.get(clientAddress);
+    }
+
+    /**
+     * Gets a live, read-only view of the registered sessions.
+     *
+     * @return The registered sessions
+     */
+    public Collection<TFTPSession> getSessions() {
+        return Collections.unmodifiableCollection(sessionsById.values());
+    }
+
+    /**
+     * Gets the number of registered sessions.
+     *
+     * @return The session count
+     */
+    public int size() {
+        return sessionsById.size();
+    }
+
+    /**
+     * Kills a session immediately.
+     *
+     * @param sessionId The session ID
+     * @return true if the session was found, false otherwise
+     */
+    public boolean kill(long sessionId) {
+        TFTPSession session = sessionsById.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        session.kill();
+        return true;
+    }
+
+    /**
+     * Lets a session finish its current transfer and then end.
+     *
+     * @param sessionId The session ID
+     * @return true if the session was found, false otherwise
+     */
+    public boolean drain(long sessionId) {
+        TFTPSession session = sessionsById.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        session.drain();
+        return true;
+    }
+
+    /**
+     * Kills all registered sessions.
+     */
+    public void killAll() {
+        for (TFTPSession session : sessionsById.values()) {
+            session.kill();
+        }
+    }
+
+    /**
+     * Drains all registered sessions and waits for them to finish.
+     *
+     * @param timeoutMillis The maximum time to wait in milliseconds
+     * @return true if all sessions finished, false if the timeout expired first
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public boolean drainAll(long timeoutMillis) throws InterruptedException {
+        for (TFTPSession session : sessionsById.values()) {
+            session.drain();
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!sessionsById.isEmpty()) {
+            if (System.currentTimeMillis() >= deadline) {
+                LOGGER.warning("Drain timed out with " + sessionsById.size() + " sessions still active");
+                return false;
+            }
+            Thread.sleep(DRAIN_POLL_INTERVAL_MS);
+        }
+        return true;
+    }
+}
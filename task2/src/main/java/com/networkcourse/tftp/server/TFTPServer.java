@@ -1,9 +1,31 @@
 package com.networkcourse.tftp.server;
 
+import com.networkcourse.tftp.client.TFTPClient;
 import com.networkcourse.tftp.common.TFTPConstants;
+import com.networkcourse.tftp.common.TFTPErrorException;
+import com.networkcourse.tftp.util.BundleStorage;
+import com.networkcourse.tftp.util.CacheWarmer;
+import com.networkcourse.tftp.util.DigestIndex;
+import com.networkcourse.tftp.util.FileHandleCache;
+import com.networkcourse.tftp.util.FileMetadataCache;
+import com.networkcourse.tftp.util.FileSystemStorage;
+import com.networkcourse.tftp.util.MemoryStorage;
+import com.networkcourse.tftp.util.PathLockTable;
+import com.networkcourse.tftp.util.PopularityTracker;
+import com.networkcourse.tftp.util.ProxyStorage;
+import com.networkcourse.tftp.util.SequencePrefetcher;
+import com.networkcourse.tftp.util.ShardedLayout;
+import com.networkcourse.tftp.util.Storage;
+import com.networkcourse.tftp.util.SyncService;
+import com.networkcourse.tftp.util.VirtualFiles;
+import com.networkcourse.tftp.util.WriteBehindService;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -16,9 +38,29 @@ import java.util.logging.Logger;
 public class TFTPServer {
     private static final Logger LOGGER = Logger.getLogger(TFTPServer.class.getName());
     
+    // Rules of the virtual files and their templates, in a directory hidden from clients
+    private static final String VIRTUAL_FILES_DIRECTORY = ".tftp-virtual";
+    private static final String VIRTUAL_FILES_RULES = "virtual-files.conf";
+    // Saved digests of the served files, in the base directory
+    private static final String DIGEST_INDEX_FILE = ".tftp-digests";
+    // Saved request counts of the served files, in the base directory
+    private static final String POPULARITY_FILE = ".tftp-popularity";
+    
     private final int port;
     private final String baseDirectory;
     private final ExecutorService executorService;
+    private final SessionRegistry sessionRegistry;
+    private final FileHandleCache handleCache;
+    private final FileMetadataCache metadataCache;
+    private final WriteBehindService writeBehindService;
+    private final SyncService syncService;
+    private final PathLockTable pathLocks;
+    private volatile Storage storage;
+    private final VirtualFiles virtualFiles;
+    private final DigestIndex digestIndex;
+    private final PopularityTracker popularity;
+    private final CacheWarmer cacheWarmer;
+    private final SequencePrefetcher prefetcher;
     private ServerSocket serverSocket;
     private boolean running;
     
@@ -33,6 +75,20 @@ public class TFTPServer {
         this.port = port;
         this.baseDirectory = baseDirectory;
         this.executorService = Executors.newFixedThreadPool(maxConcurrentSessions);
+        this.sessionRegistry = new SessionRegistry();
+        this.handleCache = new FileHandleCache();
+        this.metadataCache = new FileMetadataCache(baseDirectory);
+        this.writeBehindService = new WriteBehindService(WriteBehindService.DEFAULT_THREADS);
+        this.syncService = new SyncService(SyncService.Policy.NONE);
+        this.pathLocks = new PathLockTable();
+        this.storage = new FileSystemStorage(baseDirectory, handleCache, metadataCache, 
+                writeBehindService, syncService, pathLocks);
+        this.virtualFiles = new VirtualFiles();
+        this.digestIndex = new DigestIndex(Paths.get(baseDirectory, DIGEST_INDEX_FILE));
+        this.popularity = new PopularityTracker(Paths.get(baseDirectory, POPULARITY_FILE));
+        // Without a block cache, warming reads files into the page cache and the handle cache
+        this.cacheWarmer = new CacheWarmer(popularity, CacheWarmer.READ_THROUGH);
+        this.prefetcher = new SequencePrefetcher(CacheWarmer.READ_THROUGH);
     }
     
     /**
@@ -44,6 +100,9 @@ public class TFTPServer {
         serverSocket = new ServerSocket(port);
         running = true;
         
+        // Load the most requested files while the first requests are already served
+        cacheWarmer.start(storage);
+        
         // Start the main server loop in a new thread
         new Thread(this::listenLoop).start();
     }
@@ -67,8 +126,17 @@ public class TFTPServer {
                            ":" + clientSocket.getPort());
                 
                 // Create and start a new session for this client
-                TFTPSession session = new TFTPSession(clientSocket, baseDirectory);
-                executorService.submit(session);
+                TFTPSession session = new TFTPSession(sessionRegistry.nextSessionId(), clientSocket, storage, 
+                        virtualFiles, digestIndex, popularity, prefetcher);
+                sessionRegistry.register(session);
+                
+                executorService.submit(() -> {
+                    try {
+                        session.run();
+                    } finally {
+                        sessionRegistry.unregister(session);
+                    }
+                });
                 
             } catch (SocketException e) {
                 if (running) {
@@ -82,6 +150,199 @@ public class TFTPServer {
         }
     }
     
+    /**
+     * Gets the registry of active sessions.
+     * 
+     * @return The session registry
+     */
+    public SessionRegistry getSessionRegistry() {
+        return sessionRegistry;
+    }
+    
+    /**
+     * Gets the cache of open file channels shared by the sessions.
+     * 
+     * @return The file handle cache
+     */
+    public FileHandleCache getHandleCache() {
+        return handleCache;
+    }
+    
+    /**
+     * Gets the cache of file metadata shared by the sessions.
+     * 
+     * @return The metadata cache
+     */
+    public FileMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+    
+    /**
+     * Gets the background I/O stage that writes uploads behind the sessions' receives.
+     * 
+     * @return The write-behind service
+     */
+    public WriteBehindService getWriteBehindService() {
+        return writeBehindService;
+    }
+    
+    /**
+     * Gets the service that makes uploads durable, where the server-wide and per-path
+     * durability policies are set.
+     * 
+     * @return The sync service
+     */
+    public SyncService getSyncService() {
+        return syncService;
+    }
+    
+    /**
+     * Gets the table of per-path locks that keeps concurrent uploads of the same file apart.
+     * 
+     * @return The path lock table
+     */
+    public PathLockTable getPathLocks() {
+        return pathLocks;
+    }
+    
+    /**
+     * Gets the storage files are served from and uploaded to.
+     * 
+     * @return The storage
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+    
+    /**
+     * Sets the storage files are served from and uploaded to, in place of the base directory.
+     * Sessions already running carry on with the storage they started with.
+     * The storage replaced is closed, releasing what it holds for itself; the caches and 
+     * services it shared with the server stay open until the server stops.
+     * 
+     * @param storage The storage, which must not wrap the current one
+     */
+    public void setStorage(Storage storage) {
+        Storage previous = this.storage;
+        this.storage = storage;
+        previous.close();
+    }
+    
+    /**
+     * Serves the base directory with its files spread over a tree of hashed directories,
+     * for upload areas too large for one directory. Existing files are moved into the 
+     * tree with {@link ShardedLayout#main(String[])} while the server is stopped.
+     * 
+     * @throws IOException If the tree cannot be created or indexed
+     */
+    public void useShardedLayout() throws IOException {
+        setStorage(new FileSystemStorage(baseDirectory, handleCache, metadataCache, 
+                writeBehindService, syncService, pathLocks, new ShardedLayout(Paths.get(baseDirectory))));
+    }
+    
+    /**
+     * Makes this server an edge of another TFTP server: files missing from the current 
+     * storage are fetched from the upstream server with the client's transfer logic, 
+     * streamed to the requesting clients as they arrive and cached in memory.
+     * The proxy's cache metrics are on the storage this installs.
+     * 
+     * @param upstreamHost The upstream server's hostname or IP address
+     * @param upstreamPort The upstream server's port
+     */
+    public void setUpstream(String upstreamHost, int upstreamPort) {
+        this.storage = new ProxyStorage(storage, (name, destination) -> {
+            try {
+                // A client runs one transfer at a time, so every fetch gets its own
+                return TFTPClient.forTransfers(upstreamHost, upstreamPort).download(name, destination);
+            } catch (TFTPErrorException e) {
+                if (e.getErrorCode() == TFTPConstants.ERR_FILE_NOT_FOUND) {
+                    throw new NoSuchFileException(name);
+                }
+                throw e;
+            }
+        });
+    }
+    
+    /**
+     * Gets the files rendered per client from templates, where their rules are added.
+     * 
+     * @return The virtual files
+     */
+    public VirtualFiles getVirtualFiles() {
+        return virtualFiles;
+    }
+    
+    /**
+     * Gets the index of file digests that answers conditional requests, with the bytes they saved.
+     * 
+     * @return The digest index
+     */
+    public DigestIndex getDigestIndex() {
+        return digestIndex;
+    }
+    
+    /**
+     * Gets the tracker of how often each stored file is requested.
+     * 
+     * @return The popularity tracker
+     */
+    public PopularityTracker getPopularity() {
+        return popularity;
+    }
+    
+    /**
+     * Gets the warmer that loads the most requested files at startup, with the time it took.
+     * 
+     * @return The cache warmer
+     */
+    public CacheWarmer getCacheWarmer() {
+        return cacheWarmer;
+    }
+    
+    /**
+     * Gets the prefetcher that loads the files clients are about to ask for, with its accuracy.
+     * 
+     * @return The sequence prefetcher
+     */
+    public SequencePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+    
+    /**
+     * Loads a file into the caches and keeps it there until it is unpinned.
+     * 
+     * @param filename The file name
+     * @throws IOException If the file cannot be read
+     */
+    public void pin(String filename) throws IOException {
+        cacheWarmer.pin(storage, filename);
+    }
+    
+    /**
+     * Lets a pinned file leave the caches again.
+     * 
+     * @param filename The file name
+     * @return true if the file was pinned
+     */
+    public boolean unpin(String filename) {
+        return cacheWarmer.unpin(filename);
+    }
+    
+    /**
+     * Stops accepting new connections, waits for the active sessions to finish and then stops the server.
+     * 
+     * @param timeoutMillis The maximum time to wait for active sessions in milliseconds
+     * @return true if all sessions finished before the timeout, false otherwise
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        running = false;
+        closeServerSocket();
+        boolean drained = sessionRegistry.drainAll(timeoutMillis);
+        stop();
+        return drained;
+    }
+    
     /**
      * Stops the server.
      */
@@ -89,6 +350,33 @@ public class TFTPServer {
         running = false;
         
         // Close the server socket to interrupt the accept() call
+        closeServerSocket();
+        
+        // Kill all active sessions
+        sessionRegistry.killAll();
+        
+        // Shutdown the executor service; the sessions were killed above, and an interrupt
+        // would close the shared file channels they read
+        if (executorService != null && !executorService.isShutdown()) {
+            executorService.shutdown();
+        }
+        writeBehindService.shutdown();
+        syncService.shutdown();
+        prefetcher.shutdown();
+        cacheWarmer.close();
+        storage.close();
+        digestIndex.close();
+        popularity.close();
+        handleCache.closeAll();
+        metadataCache.close();
+        
+        LOGGER.info("Server stopped");
+    }
+    
+    /**
+     * Closes the server socket, interrupting the accept() call.
+     */
+    private void closeServerSocket() {
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -96,22 +384,16 @@ public class TFTPServer {
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Error closing server socket", e);
         }
-        
-        // Shutdown the executor service
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdownNow();
-        }
-        
-        LOGGER.info("Server stopped");
     }
     
     /**
      * Main method to start the server.
      * 
-     * @param args Command line arguments (optional: port)
+     * @param args Command line arguments (optional: port, durability policy, storage, upstream server)
      */
     public static void main(String[] args) {
         int port = TFTPConstants.DEFAULT_PORT;
+        SyncService.Policy durabilityPolicy = SyncService.Policy.NONE;
         
         // Parse command line arguments
         if (args.length > 0) {
@@ -123,12 +405,62 @@ public class TFTPServer {
             }
         }
         
+        // Parse the durability policy (none, the default, on_close or group_commit)
+        if (args.length > 1) {
+            try {
+                durabilityPolicy = SyncService.Policy.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid durability policy: " + args[1]);
+                System.exit(1);
+            }
+        }
+        
         String baseDirectory = System.getProperty("user.dir");
         
         // Create and start the server
         TFTPServer server = new TFTPServer(port, baseDirectory, 10);
+        server.getSyncService().setDefaultPolicy(durabilityPolicy);
         
         try {
+            // Serve from the file system (disk), from the file system sharded into hashed directories 
+            // (sharded), from a copy of the base directory held in memory (memory), or from the 
+            // entries of a ZIP bundle (the bundle's path)
+            if (args.length > 2) {
+                if (args[2].equalsIgnoreCase("sharded")) {
+                    server.useShardedLayout();
+                } else if (args[2].equalsIgnoreCase("memory")) {
+                    server.setStorage(MemoryStorage.load(Paths.get(baseDirectory)));
+                } else if (args[2].toLowerCase().endsWith(".zip")) {
+                    server.setStorage(new BundleStorage(Paths.get(args[2])));
+                } else if (!args[2].equalsIgnoreCase("disk")) {
+                    System.err.println("Invalid storage: " + args[2]);
+                    System.exit(1);
+                }
+            }
+            
+            // Fill misses from an upstream server (host:port), as an edge of it
+            if (args.length > 3) {
+                int separator = args[3].lastIndexOf(':');
+                try {
+                    server.setUpstream(args[3].substring(0, separator), 
+                            Integer.parseInt(args[3].substring(separator + 1)));
+                } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                    System.err.println("Invalid upstream server: " + args[3]);
+                    System.exit(1);
+                }
+            }
+            
+            // Load the rules of the virtual files, if there are any
+            Path virtualFilesRules = Paths.get(baseDirectory, VIRTUAL_FILES_DIRECTORY, VIRTUAL_FILES_RULES);
+            if (Files.isRegularFile(virtualFilesRules)) {
+                server.getVirtualFiles().load(virtualFilesRules);
+            }
+            if (Files.isRegularFile(Paths.get(baseDirectory, VIRTUAL_FILES_RULES))) {
+                // Where the rules used to be, served to anyone who asks
+                LOGGER.warning(VIRTUAL_FILES_RULES + " in the base directory is not loaded; move it and its templates to "
+                        + Paths.get(baseDirectory, VIRTUAL_FILES_DIRECTORY));
+            }
+            
             server.start();
             
             // Add shutdown hook to stop the server cleanly
@@ -137,6 +469,12 @@ public class TFTPServer {
             System.out.println("TFTP Server started on port " + port);
             System.out.println("Base directory: " + baseDirectory);
             System.out.println("Press Ctrl+C to stop the server");
+            System.out.println("Commands: pin <file>, unpin <file>, top [count]");
+            
+            // Operator commands come from standard input
+            Thread console = new Thread(() -> runConsole(server), "tftp-console");
+            console.setDaemon(true);
+            console.start();
             
             // Wait for the server to stop
             while (server.running) {
@@ -150,4 +488,47 @@ public class TFTPServer {
             // Ignore
         }
     }
+    
+    /**
+     * Reads operator commands from standard input until it ends.
+     * 
+     * @param server The server the commands apply to
+     */
+    private static void runConsole(TFTPServer server) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.trim().split("\\s+", 2);
+                String argument = words.length > 1 ? words[1] : "";
+                try {
+                    switch (words[0]) {
+                        case "pin":
+                            server.pin(argument);
+                            System.out.println("Pinned " + argument);
+                            break;
+                        case "unpin":
+                            System.out.println(server.unpin(argument) ? "Unpinned " + argument : "Not pinned: " + argument);
+                            break;
+                        case "top":
+                            int count = argument.isEmpty() ? 10 : Integer.parseInt(argument);
+                            for (String name : server.getPopularity().top(count)) {
+                                System.out.println(server.getPopularity().estimate(name) + "\t" + name);
+                            }
+                            break;
+                        case "":
+                            break;
+                        default:
+                            System.out.println("Unknown command: " + words[0]);
+                    }
+                } catch (NoSuchFileException e) {
+                    System.out.println("File not found: " + argument);
+                } catch (IOException | NumberFormatException e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Console closed", e);
+        }
+    }
 }
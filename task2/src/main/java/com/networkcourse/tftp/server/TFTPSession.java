@@ -2,13 +2,26 @@ package com.networkcourse.tftp.server;
 
 import com.networkcourse.tftp.common.TFTPConstants;
 import com.networkcourse.tftp.common.TFTPRequestPacket;
+import com.networkcourse.tftp.util.DigestIndex;
+import com.networkcourse.tftp.util.FileBlockReader;
 import com.networkcourse.tftp.util.FileTransferUtil;
+import com.networkcourse.tftp.util.PopularityTracker;
+import com.networkcourse.tftp.util.SequencePrefetcher;
+import com.networkcourse.tftp.util.Storage;
+import com.networkcourse.tftp.util.StorageFullException;
+import com.networkcourse.tftp.util.VirtualFiles;
 
 import java.io.*;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,34 +32,112 @@ import java.util.logging.Logger;
 public class TFTPSession implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(TFTPSession.class.getName()); // Add this line
     private static final int SOCKET_TIMEOUT_MS = 50000;
+    // Large enough to coalesce many blocks into one socket write
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // Encoded once: boot loaders probe long chains of names that mostly do not exist
+    private static final byte[] FILE_NOT_FOUND_FRAME = 
+            encodeError(TFTPConstants.ERR_FILE_NOT_FOUND, TFTPConstants.ERR_MSG_FILE_NOT_FOUND);
+    private static final byte[] NOT_MODIFIED_FRAME = 
+            encodeError(TFTPConstants.ERR_NOT_MODIFIED, TFTPConstants.ERR_MSG_NOT_MODIFIED);
+    
+    /**
+     * Lifecycle states of a session.
+     */
+    public enum State {
+        STARTING, TRANSFERRING, DRAINING, COMPLETED, FAILED, KILLED
+    }
+    
+    private final long sessionId;
     private final Socket socket;
-    private final String baseDirectory;
-    private boolean running;
-    private DatagramSocket clientSocket;
+    private final InetSocketAddress clientAddress;
+    private final Storage storage;
+    private final VirtualFiles virtualFiles;
+    private final DigestIndex digestIndex;
+    private final PopularityTracker popularity;
+    private final SequencePrefetcher prefetcher;
+    private final long createdAt;
+    private volatile boolean running;
+    // Changed only by compare-and-set, so a drain or kill is never overwritten
+    private final AtomicReference<State> state = new AtomicReference<>(State.STARTING);
+    // Guards awaitingRequest, so a drain cannot cut off a request that has begun
+    private final Object requestLock = new Object();
+    private boolean awaitingRequest;
+    // Set once any request on this connection has been answered with an error
+    private boolean failed;
+    private volatile String currentFilename;
+    private volatile long bytesTransferred;
+    
+    // Reused for every block of every request on this connection
+    private final byte[] blockBuffer = new byte[TFTPConstants.MAX_DATA_SIZE];
+    private final ByteBuffer blockView = ByteBuffer.wrap(blockBuffer);
     
-        public TFTPSession(Socket socket, String baseDirectory) {
+        /**
+         * Creates a new TFTP session.
+         * 
+         * @param sessionId The unique ID of this session
+         * @param socket The connected client socket
+         * @param storage The storage files are served from and uploaded to
+         * @param virtualFiles The files rendered per client, served ahead of the storage
+         * @param digestIndex The digests of the stored files, for conditional requests
+         * @param popularity The tracker the requests for stored files are counted in
+         * @param prefetcher The prefetcher that learns the order of the requests for stored files
+         */
+        public TFTPSession(long sessionId, Socket socket, Storage storage, VirtualFiles virtualFiles, 
+                           DigestIndex digestIndex, PopularityTracker popularity, 
+                           SequencePrefetcher prefetcher) {
+            this.sessionId = sessionId;
             this.socket = socket;
-            this.baseDirectory = baseDirectory;
+            this.clientAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+            this.storage = storage;
+            this.virtualFiles = virtualFiles;
+            this.digestIndex = digestIndex;
+            this.popularity = popularity;
+            this.prefetcher = prefetcher;
+            this.createdAt = System.currentTimeMillis();
             this.running = true;
         }
     
         @Override
         public void run() {
+            state.compareAndSet(State.STARTING, State.TRANSFERRING);
+            boolean succeeded = false;
+            
             try {
                 // Set a timeout for the socket
                 socket.setSoTimeout(SOCKET_TIMEOUT_MS);
     
                 try (
-                    DataInputStream in = new DataInputStream(socket.getInputStream());
-                    DataOutputStream out = new DataOutputStream(socket.getOutputStream())
+                    // Buffered, as the raw socket streams allocate and make a syscall for every single byte
+                    DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE))
                 ) {
-                    while (true) {
+                    // A draining session finishes its current request and then closes
+                    while (running) {
                         try {
-                            // Read opcode
-                            short opcode = in.readShort();
+                            synchronized (requestLock) {
+                                if (state.get() == State.DRAINING) {
+                                    break;
+                                }
+                                awaitingRequest = true;
+                            }
+                            // Read opcode; the client may close the connection between requests
+                            short opcode;
+                            try {
+                                opcode = in.readShort();
+                            } catch (EOFException e) {
+                                break;
+                            } finally {
+                                synchronized (requestLock) {
+                                    awaitingRequest = false;
+                                }
+                            }
     
                             if (opcode == TFTPConstants.OP_RRQ) {
-                                handleReadRequest(in, out);
+                                handleReadRequest(in, out, false);
+                            } else if (opcode == TFTPConstants.OP_CONDITIONAL_RRQ) {
+                                handleReadRequest(in, out, true);
                             } else if (opcode == TFTPConstants.OP_WRQ) {
                                 handleWriteRequest(in, out);
                             } else {
@@ -54,16 +145,20 @@ public class TFTPSession implements Runnable {
                             }
                         } catch (SocketTimeoutException e) {
                             LOGGER.warning("Socket timeout: No response from client.");
+                            failed = true;
                             break;
                         } catch (EOFException e) {
                             LOGGER.warning("Client closed the connection unexpectedly.");
+                            failed = true;
                             break;
                         } catch (IOException e) {
                             LOGGER.warning("I/O error in session: " + e.getMessage());
+                            failed = true;
                             break;
                         }
                     }
                 }
+                succeeded = !failed;
             } catch (IOException e) {
                 LOGGER.warning("Error setting socket timeout: " + e.getMessage());
             } finally {
@@ -72,6 +167,7 @@ public class TFTPSession implements Runnable {
                 } catch (IOException e) {
                     LOGGER.warning("Error closing socket: " + e.getMessage());
                 }
+                finish(succeeded ? State.COMPLETED : State.FAILED);
             }
         }
         
@@ -80,49 +176,84 @@ public class TFTPSession implements Runnable {
          * 
          * @param in The input stream
          * @param out The output stream
+         * @param conditional Whether the request carries the digest of the client's copy
          * @throws IOException If an I/O error occurs
          */
-        private void handleReadRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        private void handleReadRequest(DataInputStream in, DataOutputStream out, boolean conditional) throws IOException {
             // Read file name
             String filename = readString(in);
             
             // Read mode (we only support octet mode)
             String mode = readString(in);
             
+            // Read the digest of the client's copy, if it has one
+            String digest = conditional ? readString(in) : null;
+            
             if (!mode.equalsIgnoreCase(TFTPConstants.MODE_OCTET)) {
                 sendError(out, TFTPConstants.ERR_ILLEGAL_OP, "Only octet mode is supported");
                 return;
             }
             
             LOGGER.info("Client requested file: " + filename);
+            currentFilename = filename;
             
-            // Construct the file path
-            String filePath = baseDirectory + File.separator + filename;
+            // Virtual files shadow stored files of the same name
+            Storage.ReadHandle virtualFile = virtualFiles.open(filename, clientAddress.getAddress());
             
-            // Check if the file exists and is readable
-            if (!FileTransferUtil.isFileReadable(filePath)) {
-                sendError(out, TFTPConstants.ERR_FILE_NOT_FOUND, TFTPConstants.ERR_MSG_FILE_NOT_FOUND);
-                return;
+            if (virtualFile == null) {
+                // Check if the file exists and is readable
+                Storage.Stat stat = storage.stat(filename);
+                if (stat.isDenied()) {
+                    sendError(out, TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
+                    return;
+                }
+                if (!stat.isReadable()) {
+                    sendError(out, TFTPConstants.ERR_FILE_NOT_FOUND, TFTPConstants.ERR_MSG_FILE_NOT_FOUND);
+                    return;
+                }
+                popularity.record(filename);
+                prefetcher.requested(clientAddress.getAddress(), filename, storage);
+                
+                // A client that already has the current version is told so instead of sent the file
+                if (digestIndex.isUnchanged(storage, filename, stat, digest)) {
+                    LOGGER.info("File not modified: " + filename);
+                    out.write(NOT_MODIFIED_FRAME);
+                    out.flush();
+                    return;
+                }
             }
             
-            // Send the file
-            try (FileInputStream fileInputStream = new FileInputStream(filePath)) {
-                byte[] buffer = new byte[TFTPConstants.MAX_DATA_SIZE];
-                int bytesRead;
+            // Send the file; concurrent requests for the same file may share one handle
+            try (Storage.ReadHandle fileHandle = virtualFile != null ? virtualFile : storage.open(filename)) {
+                // Large and in-memory files are served from a mapping, small ones are read into the block buffer
+                FileBlockReader blockReader = FileBlockReader.open(
+                        fileHandle, blockView, TFTPConstants.MAX_DATA_SIZE);
+                WritableByteChannel outChannel = Channels.newChannel(out);
+                int blockLength;
                 short blockNumber = 1;
                 
-                while ((bytesRead = FileTransferUtil.readBlock(fileInputStream, buffer, TFTPConstants.MAX_DATA_SIZE)) != -1) {
-                    // Send data packet
+                // Send blocks until a short (possibly empty) one has been sent
+                do {
+                    ByteBuffer block = blockReader.nextBlock();
+                    blockLength = block.remaining();
+                    
+                    // Send data packet; the stream buffer decides when to hit the socket
                     out.writeShort(TFTPConstants.OP_DATA);
                     out.writeShort(blockNumber);
-                    out.writeInt(bytesRead);  // Include length for easier processing on client side
-                    out.write(buffer, 0, bytesRead);
-                    out.flush();
+                    out.writeInt(blockLength);  // Include length for easier processing on client side
+                    FileTransferUtil.writeBlock(outChannel, block);
                     
+                    bytesTransferred += blockLength;
                     blockNumber++;
-                }
+                } while (blockLength == TFTPConstants.MAX_DATA_SIZE);
+                out.flush();
                 
                 LOGGER.info("File sent successfully: " + filename);
+            } catch (NoSuchFileException e) {
+                // Deleted since the check above
+                sendError(out, TFTPConstants.ERR_FILE_NOT_FOUND, TFTPConstants.ERR_MSG_FILE_NOT_FOUND);
+            } catch (AccessDeniedException e) {
+                sendError(out, TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
             }
         }
         
@@ -146,26 +277,28 @@ public class TFTPSession implements Runnable {
             }
             
             LOGGER.info("Client wants to upload file: " + filename);
-            
-            // Construct the file path
-            String filePath = baseDirectory + File.separator + filename;
+            currentFilename = filename;
             
             // Check if the file can be written
-            if (!FileTransferUtil.isFileWritable(filePath)) {
+            Storage.Stat stat = storage.stat(filename);
+            if (!stat.isWritable()) {
                 sendError(out, TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
                 return;
             }
             
             // Check if the file already exists
-            File file = new File(filePath);
-            if (file.exists()) {
+            if (stat.exists()) {
                 sendError(out, TFTPConstants.ERR_FILE_EXISTS, TFTPConstants.ERR_MSG_FILE_EXISTS);
                 return;
             }
             
-            // Receive the file
-            try (FileOutputStream fileOutputStream = new FileOutputStream(filePath)) {
+            // Receive the file; nothing appears under its name until the upload is committed
+            try (Storage.Upload upload = storage.create(filename)) {
+                // Tell the client to start sending
+                sendAck(out, (short) 0);
+                
                 short expectedBlock = 1;
+                boolean complete = false;
                 
                 while (true) {
                     // Read opcode
@@ -185,29 +318,57 @@ public class TFTPSession implements Runnable {
                         break;
                     }
                     
-                    // Read data
-                    byte[] buffer = new byte[dataLength];
-                    in.readFully(buffer, 0, dataLength);
+                    if (dataLength < 0 || dataLength > TFTPConstants.MAX_DATA_SIZE) {
+                        sendError(out, TFTPConstants.ERR_ILLEGAL_OP, "Invalid data length");
+                        break;
+                    }
                     
-                    // Write to file
-                    FileTransferUtil.writeBlock(fileOutputStream, buffer, dataLength);
+                    // Read data
+                    in.readFully(blockBuffer, 0, dataLength);
                     
-                    expectedBlock++;
+                    // Hand the block to the upload
+                    blockView.limit(dataLength).position(0);
+                    upload.write(blockView);
+                    bytesTransferred += dataLength;
                     
-                    // If this is a partial block, it's the last one
+                    // If this is a partial block, it's the last one; acknowledge it once the 
+                    // upload is committed
                     if (dataLength < TFTPConstants.MAX_DATA_SIZE) {
+                        upload.commit();
+                        sendAck(out, blockNumber);
+                        complete = true;
                         break;
                     }
+                    
+                    expectedBlock++;
                 }
                 
-                LOGGER.info("File received successfully: " + filename);
-            } catch (IOException e) {
-                // Delete the file if there was an error
-                file.delete();
-                throw e;
+                if (complete) {
+                    LOGGER.info("File received successfully: " + filename);
+                }
+            } catch (FileAlreadyExistsException e) {
+                // Created, or being uploaded, by someone else since the check
+                sendError(out, TFTPConstants.ERR_FILE_EXISTS, TFTPConstants.ERR_MSG_FILE_EXISTS);
+            } catch (AccessDeniedException e) {
+                sendError(out, TFTPConstants.ERR_ACCESS_VIOLATION, TFTPConstants.ERR_MSG_ACCESS_VIOLATION);
+            } catch (StorageFullException e) {
+                sendError(out, TFTPConstants.ERR_DISK_FULL, TFTPConstants.ERR_MSG_DISK_FULL);
             }
         }
         
+        /**
+         * Sends an acknowledgement.
+         * 
+         * @param out The output stream
+         * @param blockNumber The block number to acknowledge, 0 to accept a write request
+         * @throws IOException If an I/O error occurs
+         */
+        private void sendAck(DataOutputStream out, short blockNumber) throws IOException {
+            out.writeShort(TFTPConstants.OP_ACK);
+            out.writeShort(blockNumber);
+            out.flush();
+        }
+        
         /**
          * Reads a null-terminated string from the input stream.
          * 
@@ -237,14 +398,153 @@ public class TFTPSession implements Runnable {
          */
         private void sendError(DataOutputStream out, short errorCode, String errorMessage) throws IOException {
             LOGGER.warning("Sending error to client: " + errorCode + " - " + errorMessage);
+            failed = true;
             
+            if (errorCode == TFTPConstants.ERR_FILE_NOT_FOUND 
+                    && errorMessage.equals(TFTPConstants.ERR_MSG_FILE_NOT_FOUND)) {
+                out.write(FILE_NOT_FOUND_FRAME);
+            } else {
+                writeError(out, errorCode, errorMessage);
+            }
+            out.flush();
+        }
+        
+        /**
+         * Encodes an error frame once, for errors that are sent often.
+         * 
+         * @param errorCode The error code
+         * @param errorMessage The error message
+         * @return The encoded frame
+         */
+        private static byte[] encodeError(short errorCode, String errorMessage) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            try {
+                writeError(new DataOutputStream(frame), errorCode, errorMessage);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return frame.toByteArray();
+        }
+        
+        /**
+         * Writes an error frame.
+         * 
+         * @param out The output stream
+         * @param errorCode The error code
+         * @param errorMessage The error message
+         * @throws IOException If an I/O error occurs
+         */
+        private static void writeError(DataOutputStream out, short errorCode, String errorMessage) throws IOException {
             byte[] messageBytes = errorMessage.getBytes();
             
             out.writeShort(TFTPConstants.OP_ERROR);
             out.writeShort(errorCode);
             out.writeInt(messageBytes.length);
             out.write(messageBytes);
-            out.flush();
+        }
+        
+        /**
+         * Get the unique ID of this session.
+         * @return The session ID
+         */
+        public long getSessionId() {
+            return sessionId;
+        }
+        
+        /**
+         * Get the client's transfer ID (address and port).
+         * @return The client address
+         */
+        public InetSocketAddress getClientAddress() {
+            return clientAddress;
+        }
+        
+        /**
+         * Get the current state of this session.
+         * @return The session state
+         */
+        public State getState() {
+            return state.get();
+        }
+        
+        /**
+         * Get the name of the file most recently requested on this connection.
+         * @return The filename, or null if no request has been received yet
+         */
+        public String getFilename() {
+            return currentFilename;
+        }
+        
+        /**
+         * Get the number of file bytes transferred so far.
+         * @return The byte count
+         */
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+        
+        /**
+         * Get the age of this session.
+         * @return The time since the session was created, in milliseconds
+         */
+        public long getAgeMillis() {
+            return System.currentTimeMillis() - createdAt;
+        }
+        
+        /**
+         * Get the average transfer rate of this session.
+         * @return The rate in bytes per second
+         */
+        public long getTransferRate() {
+            long age = Math.max(1, getAgeMillis());
+            return bytesTransferred * 1000 / age;
+        }
+        
+        /**
+         * Lets the current request run to completion, then closes the connection.
+         */
+        public void drain() {
+            if (!state.compareAndSet(State.STARTING, State.DRAINING)
+                    && !state.compareAndSet(State.TRANSFERRING, State.DRAINING)) {
+                return;
+            }
+            synchronized (requestLock) {
+                if (awaitingRequest) {
+                    // An idle connection would otherwise wait for a request until it times out
+                    try {
+                        socket.shutdownInput();
+                    } catch (IOException e) {
+                        LOGGER.fine("Error shutting down socket input: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Moves the session to its final state, unless it has been killed.
+         * 
+         * @param end COMPLETED if every request was served, FAILED otherwise
+         */
+        private void finish(State end) {
+            State current;
+            do {
+                current = state.get();
+                if (current == State.KILLED) {
+                    return;
+                }
+            } while (!state.compareAndSet(current, end));
+        }
+        
+        /**
+         * Kills the session immediately, aborting any transfer in progress.
+         */
+        public void kill() {
+            state.set(State.KILLED);
+            try {
+                stop();
+            } catch (IOException e) {
+                LOGGER.warning("Error closing socket: " + e.getMessage());
+            }
         }
         
         /**
@@ -252,8 +552,16 @@ public class TFTPSession implements Runnable {
          */
         public void stop() throws IOException {
             running = false;
-            if (!clientSocket.isClosed()) {
-            clientSocket.close();
-         }
-    }
+            if (!socket.isClosed()) {
+                socket.close();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return "Session " + sessionId + " [" + state.get() + "] " + currentFilename
+                    + " client=" + clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort()
+                    + " bytes=" + bytesTransferred + " rate=" + getTransferRate() + "B/s"
+                    + " age=" + getAgeMillis() + "ms";
+        }
 }
@@ -0,0 +1,132 @@
+package com.networkcourse.tftp.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An upload written to a temporary file next to its target and renamed into place
+ * once it is complete, so the target only ever appears whole. Downloads never see
+ * a partly written file, and a failed upload leaves nothing behind.
+ *
+ * The target path is reserved in a {@link PathLockTable} for the whole upload, so a
+ * second upload of the same file is refused rather than racing the first, and the
+ * final existence check and rename happen under the path's stripe lock.
+ * An upload is not thread-safe.
+ */
+public final class AtomicUpload implements Closeable {
+    private final Path target;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final PathLockTable locks;
+    private boolean committed;
+    private boolean closed;
+
+    private AtomicUpload(Path target, Path temporary, FileChannel channel, PathLockTable locks) {
+        this.target = target;
+        this.temporary = temporary;
+        this.channel = channel;
+        this.locks = locks;
+    }
+
+    /**
+     * Starts an upload: reserves the target and creates its temporary file.
+     *
+     * @param target The file to upload to
+     * @param locks The server's lock table
+     * @return The upload, to be closed when it ends, committed or not
+     * @throws FileAlreadyExistsException If the target exists or another upload of it is in progress
+     * @throws IOException If the temporary file cannot be created
+     */
+    public static AtomicUpload begin(Path target, PathLockTable locks) throws IOException {
+        Path normalized = target.toAbsolutePath().normalize();
+        if (!locks.tryReserve(normalized)) {
+            throw new FileAlreadyExistsException(normalized.toString(), null, "Upload already in progress");
+        }
+
+        Path temporary = null;
+        try {
+            if (Files.exists(normalized)) {
+                throw new FileAlreadyExistsException(normalized.toString());
+            }
+            // Hidden, in the same directory so the rename stays on one file system
+            temporary = normalized.resolveSibling("." + normalized.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+            FileChannel channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return new AtomicUpload(normalized, temporary, channel, locks);
+        } catch (IOException | RuntimeException e) {
+            locks.release(normalized);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the channel of the temporary file.
+     *
+     * @return The channel to write the upload to
+     */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Gets the file the upload is for.
+     *
+     * @return The absolute, normalized target path
+     */
+    public Path target() {
+        return target;
+    }
+
+    /**
+     * Renames the complete temporary file into place, in one atomic step.
+     * Anything that makes the file durable must happen before; syncing the
+     * directory to make the new name durable must happen after.
+     *
+     * @throws FileAlreadyExistsException If the target has appeared in the meantime
+     * @throws IOException If the rename fails
+     */
+    public void commit() throws IOException {
+        ReentrantLock lock = locks.lockFor(target);
+        lock.lock();
+        try {
+            // Created behind our back, outside this server
+            if (Files.exists(target)) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the upload: closes the temporary file, deletes it if the upload was not
+     * committed, and releases the reservation. Further calls do nothing.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        FileTransferUtil.closeQuietly(channel);
+        if (!committed) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                // Left for the operator; it is hidden and never served under the target's name
+            }
+        }
+        locks.release(target);
+    }
+}
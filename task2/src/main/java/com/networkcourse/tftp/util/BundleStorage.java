@@ -0,0 +1,417 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-only storage that serves the entries of one ZIP bundle, for trees of many
+ * small files that would otherwise cost an inode, a directory lookup and an open each.
+ *
+ * The bundle is memory-mapped once and its central directory indexed into a map of
+ * name to offset and length, so a lookup is a hash probe and a read is a slice of the
+ * mapping, with no per-file open or stat. Entries must be stored uncompressed
+ * (zip -0); a bundle with compressed, encrypted or ZIP64 entries is refused.
+ *
+ * The mapping and its index are one immutable snapshot, replaced in a single step
+ * when a new bundle is deployed: a background thread notices that the file at the
+ * bundle's path has changed and indexes the new one, and only a bundle that indexes
+ * cleanly replaces the old. Transfers keep reading the snapshot they opened. A new
+ * bundle must be deployed by renaming it over the old one, never by rewriting it in place.
+ * All methods are thread-safe.
+ */
+public class BundleStorage implements Storage {
+    private static final Logger LOGGER = Logger.getLogger(BundleStorage.class.getName());
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 2_000;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private final Path bundlePath;
+    private final ScheduledExecutorService watcher;
+    private volatile Bundle bundle;
+    // The last bundle refused by the watch thread, so a broken deploy is only reported once
+    private List<Object> refusedVersion;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder failedReloads = new LongAdder();
+
+    /**
+     * Mounts a bundle, checking for a new one at the default interval.
+     *
+     * @param bundlePath The ZIP file to serve
+     * @throws IOException If the bundle cannot be read or is not a valid bundle
+     */
+    public BundleStorage(Path bundlePath) throws IOException {
+        this(bundlePath, DEFAULT_CHECK_INTERVAL_MS);
+    }
+
+    /**
+     * Mounts a bundle.
+     *
+     * @param bundlePath The ZIP file to serve
+     * @param checkIntervalMillis How often to check for a new bundle, in milliseconds; 0 to never check
+     * @throws IOException If the bundle cannot be read or is not a valid bundle
+     */
+    public BundleStorage(Path bundlePath, long checkIntervalMillis) throws IOException {
+        this.bundlePath = bundlePath.toAbsolutePath().normalize();
+        this.bundle = index(this.bundlePath);
+
+        if (checkIntervalMillis > 0) {
+            this.watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tftp-bundle-watch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watcher.scheduleWithFixedDelay(this::checkForNewBundle,
+                    checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.watcher = null;
+        }
+    }
+
+    /**
+     * Indexes the bundle at the bundle path again and swaps it in, whether or not it has changed.
+     *
+     * @throws IOException If the new bundle cannot be read or is not valid; the old one stays mounted
+     */
+    public void reload() throws IOException {
+        try {
+            bundle = index(bundlePath);
+            reloads.increment();
+        } catch (IOException | RuntimeException e) {
+            failedReloads.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Reloads the bundle if the file at its path is not the one mounted; runs on the watch thread.
+     */
+    private void checkForNewBundle() {
+        List<Object> version = null;
+        try {
+            version = versionOf(Files.readAttributes(bundlePath, BasicFileAttributes.class));
+            if (version.equals(bundle.version) || version.equals(refusedVersion)) {
+                return;
+            }
+            reload();
+        } catch (IOException | RuntimeException e) {
+            // Mid-deploy, or a broken bundle; keep serving the one we have. Nothing may escape,
+            // as an exception would cancel the schedule and with it every later reload
+            if (version != null) {
+                refusedVersion = version;
+            }
+            LOGGER.log(Level.WARNING, "Cannot load new bundle " + bundlePath + ", keeping the current one", e);
+        }
+    }
+
+    /**
+     * Identifies the version of a bundle file by its file key, modification time and size.
+     */
+    private static List<Object> versionOf(BasicFileAttributes attributes) {
+        return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    /**
+     * Maps a bundle and indexes its central directory.
+     */
+    private static Bundle index(Path path) throws IOException {
+        long start = System.nanoTime();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        ByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Bundle too large to map: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer zip = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        int eocd = findEndOfCentralDirectory(zip);
+        int entryCount = zip.getShort(eocd + 10) & 0xFFFF;
+        long directoryOffset = zip.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 bundles are not supported: " + path);
+        }
+
+        Bundle bundle = new Bundle(mapping.asReadOnlyBuffer(), versionOf(attributes),
+                attributes.lastModifiedTime().toMillis(), entryCount);
+        // Offsets are checked as longs, as a corrupt field can be anything up to 4 GB
+        long offset = directoryOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > zip.limit() || zip.getInt((int) offset) != CENTRAL_SIGNATURE) {
+                throw new IOException("Corrupt central directory in bundle " + path);
+            }
+            int header = (int) offset;
+            int flags = zip.getShort(header + 8) & 0xFFFF;
+            int method = zip.getShort(header + 10) & 0xFFFF;
+            long compressedSize = zip.getInt(header + 20) & 0xFFFFFFFFL;
+            long size = zip.getInt(header + 24) & 0xFFFFFFFFL;
+            int nameLength = zip.getShort(header + 28) & 0xFFFF;
+            int extraLength = zip.getShort(header + 30) & 0xFFFF;
+            int commentLength = zip.getShort(header + 32) & 0xFFFF;
+            long localOffset = zip.getInt(header + 42) & 0xFFFFFFFFL;
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (offset > zip.limit()) {
+                throw new IOException("Corrupt central directory in bundle " + path);
+            }
+            String name = decodeName(zip, header + CENTRAL_HEADER_SIZE, nameLength);
+
+            if (name.endsWith("/")) {
+                // Directory entry
+                continue;
+            }
+            if (method != METHOD_STORED || (flags & FLAG_ENCRYPTED) != 0 || compressedSize != size) {
+                throw new IOException("Entry " + name + " is not stored uncompressed in bundle " + path);
+            }
+
+            // The local header's extra field may differ from the central one
+            if (localOffset + LOCAL_HEADER_SIZE > zip.limit() || zip.getInt((int) localOffset) != LOCAL_SIGNATURE) {
+                throw new IOException("Corrupt local header for " + name + " in bundle " + path);
+            }
+            int local = (int) localOffset;
+            long dataOffset = local + LOCAL_HEADER_SIZE
+                    + (zip.getShort(local + 26) & 0xFFFF) + (zip.getShort(local + 28) & 0xFFFF);
+            if (dataOffset + size > zip.limit()) {
+                throw new IOException("Entry " + name + " runs past the end of bundle " + path);
+            }
+            String key;
+            try {
+                key = normalize(name);
+            } catch (InvalidPathException e) {
+                throw new IOException("Invalid entry name " + name + " in bundle " + path, e);
+            }
+            bundle.entries.put(key, new Entry(bundle, (int) dataOffset, (int) size));
+        }
+
+        bundle.indexNanos = System.nanoTime() - start;
+        LOGGER.info("Indexed " + bundle.entries.size() + " entries of bundle " + path
+                + " in " + bundle.indexNanos / 1000 + " us");
+        return bundle;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer zip) throws IOException {
+        // The record is at the very end, followed only by a comment of up to 64 KB
+        int last = zip.limit() - EOCD_SIZE;
+        int first = Math.max(0, last - 0xFFFF);
+        for (int position = last; position >= first; position--) {
+            if (zip.getInt(position) == EOCD_SIGNATURE) {
+                return position;
+            }
+        }
+        throw new IOException("Not a ZIP bundle");
+    }
+
+    private static String decodeName(ByteBuffer zip, int offset, int length) {
+        byte[] name = new byte[length];
+        zip.get(offset, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static String normalize(String name) {
+        return Paths.get(name).normalize().toString();
+    }
+
+    private Entry lookup(String name) {
+        long start = System.nanoTime();
+        Entry entry = bundle.entries.get(normalize(name));
+        lookups.increment();
+        lookupNanos.add(System.nanoTime() - start);
+        return entry;
+    }
+
+    @Override
+    public Stat stat(String name) {
+        Entry entry = lookup(name);
+        if (entry == null) {
+            return new Stat(false, false, false, 0, 0);
+        }
+        return new Stat(true, true, false, entry.length, entry.bundle.lastModified);
+    }
+
+    @Override
+    public boolean isKnownMissing(String name) {
+        // The index is the whole store, so a miss is authoritative
+        return lookup(name) == null;
+    }
+
+    @Override
+    public ReadHandle open(String name) throws IOException {
+        Entry entry = lookup(name);
+        if (entry == null) {
+            throw new NoSuchFileException(name);
+        }
+        return entry;
+    }
+
+    @Override
+    public Upload create(String name) throws IOException {
+        throw new AccessDeniedException(name, null, "Bundle storage is read-only");
+    }
+
+    /**
+     * Stops checking for new bundles. The mounted bundle can still be read.
+     */
+    @Override
+    public void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the number of files in the mounted bundle.
+     * @return The entry count
+     */
+    public int getEntryCount() {
+        return bundle.entries.size();
+    }
+
+    /**
+     * Gets the time it took to map and index the mounted bundle.
+     * @return The indexing time in milliseconds
+     */
+    public double getIndexMillis() {
+        return bundle.indexNanos / 1e6;
+    }
+
+    /**
+     * Gets the number of lookups made in the index.
+     * @return The lookup count
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Gets the average time of a lookup in the index.
+     * @return The average lookup latency in microseconds
+     */
+    public double getAverageLookupMicros() {
+        long count = lookups.sum();
+        return count == 0 ? 0 : lookupNanos.sum() / 1e3 / count;
+    }
+
+    /**
+     * Gets the number of times a new bundle was swapped in.
+     * @return The reload count
+     */
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    /**
+     * Gets the number of new bundles that were refused.
+     * @return The failed reload count
+     */
+    public long getFailedReloads() {
+        return failedReloads.sum();
+    }
+
+    /**
+     * One mapped bundle and its index; never changes once indexed.
+     */
+    private static final class Bundle {
+        private final ByteBuffer mapping;
+        private final List<Object> version;
+        private final long lastModified;
+        private final Map<String, Entry> entries;
+        private long indexNanos;
+
+        Bundle(ByteBuffer mapping, List<Object> version, long lastModified, int entryCount) {
+            this.mapping = mapping;
+            this.version = version;
+            this.lastModified = lastModified;
+            this.entries = new HashMap<>(entryCount * 4 / 3 + 1);
+        }
+    }
+
+    /**
+     * A file in a bundle; also the read handle on it, as it never changes.
+     * Its identity is the entry itself, so each bundle gets its own cached blocks.
+     */
+    private static final class Entry implements ReadHandle {
+        private final Bundle bundle;
+        private final int offset;
+        private final int length;
+
+        Entry(Bundle bundle, int offset, int length) {
+            this.bundle = bundle;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public long lastModified() {
+            return bundle.lastModified;
+        }
+
+        @Override
+        public Object identity() {
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer destination, long position) {
+            if (position >= length) {
+                return -1;
+            }
+            int count = (int) Math.min(destination.remaining(), length - position);
+            destination.put(bundle.mapping.slice(offset + (int) position, count));
+            return count;
+        }
+
+        @Override
+        public ByteBuffer map(long position, long length) {
+            return bundle.mapping.slice(offset + (int) position, (int) length);
+        }
+
+        @Override
+        public boolean isResident() {
+            // Already mapped, so a view costs nothing
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the most requested files into the caches when a server starts, so the first
+ * wave of clients after a restart does not find every cache cold at once.
+ *
+ * Files are taken from the popularity tracker, most requested first, until the byte
+ * budget is spent; files too large for what is left of it are skipped in favor of
+ * smaller ones. Warming runs on a background thread while the server already accepts
+ * requests, and reads are paced to a rate so it never takes the disk away from them.
+ * Reading a file through the storage fills the metadata and handle caches and the
+ * page cache; a loader can fill a cache of its own on the way.
+ *
+ * Files can also be pinned: they are loaded whatever the budget, held open, and the
+ * loader is told to keep them, until they are unpinned. A pin holds the version of the
+ * file that was pinned; a file replaced since has to be pinned again.
+ * All methods are thread-safe.
+ */
+public class CacheWarmer {
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmer.class.getName());
+
+    public static final int DEFAULT_TOP_FILES = 100;
+    public static final long DEFAULT_BUDGET_BYTES = 64L << 20;
+    public static final long DEFAULT_BYTES_PER_SECOND = 32L << 20;
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+
+    /**
+     * Loads a file into the caches, reading the file through the storage's handle.
+     * The loader of a server without a cache of its own.
+     */
+    public static final Loader READ_THROUGH = (handle, throttle) -> {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = 0;
+        int bytesRead;
+        while (throttle.acquire(READ_BUFFER_SIZE) && (bytesRead = handle.read(buffer, position)) > 0) {
+            buffer.clear();
+            position += bytesRead;
+        }
+    };
+
+    private final PopularityTracker popularity;
+    private final Loader loader;
+    private final int topFiles;
+    private final long budgetBytes;
+    private final Throttle throttle;
+    private final ExecutorService executor;
+    private final Map<String, Storage.ReadHandle> pinned = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private final LongAdder filesWarmed = new LongAdder();
+    private final LongAdder bytesWarmed = new LongAdder();
+    private final LongAdder filesSkipped = new LongAdder();
+    private volatile long startedAt;
+    private volatile long warmupNanos = -1;
+
+    /**
+     * Creates a warmer with the default number of files, budget and rate.
+     *
+     * @param popularity The tracker of the most requested files
+     * @param loader The loader that fills the server's own cache
+     */
+    public CacheWarmer(PopularityTracker popularity, Loader loader) {
+        this(popularity, loader, DEFAULT_TOP_FILES, DEFAULT_BUDGET_BYTES, DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * Creates a warmer.
+     *
+     * @param popularity The tracker of the most requested files
+     * @param loader The loader that fills the server's own cache
+     * @param topFiles The number of most requested files to consider
+     * @param budgetBytes The maximum number of bytes to load at startup
+     * @param bytesPerSecond The maximum rate to read files at
+     */
+    public CacheWarmer(PopularityTracker popularity, Loader loader, int topFiles,
+                       long budgetBytes, long bytesPerSecond) {
+        this.popularity = popularity;
+        this.loader = loader;
+        this.topFiles = topFiles;
+        this.budgetBytes = budgetBytes;
+        this.throttle = new Throttle(bytesPerSecond);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tftp-warmer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts loading the most requested files in the background.
+     *
+     * @param storage The storage the files are served from
+     */
+    public void start(Storage storage) {
+        startedAt = System.nanoTime();
+        try {
+            executor.execute(() -> warmUp(storage));
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    private void warmUp(Storage storage) {
+        List<String> names = popularity.top(topFiles);
+        long remaining = budgetBytes;
+        for (String name : names) {
+            if (closed) {
+                return;
+            }
+            // The stat also loads the file's metadata
+            Storage.Stat stat = storage.stat(name);
+            if (!stat.isReadable() || stat.getSize() > remaining) {
+                filesSkipped.increment();
+                continue;
+            }
+            try (Storage.ReadHandle handle = storage.open(name)) {
+                loader.load(handle, throttle);
+                remaining -= stat.getSize();
+                filesWarmed.increment();
+                bytesWarmed.add(stat.getSize());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot warm " + name, e);
+                filesSkipped.increment();
+            }
+        }
+        warmupNanos = System.nanoTime() - startedAt;
+        LOGGER.info("Warmed " + filesWarmed.sum() + " of the " + names.size() + " most requested files ("
+                + bytesWarmed.sum() + " bytes) in " + getWarmupMillis() + " ms");
+    }
+
+    /**
+     * Loads a file and keeps it in the caches until it is unpinned.
+     * Does nothing if the file is already pinned.
+     *
+     * @param storage The storage the file is served from
+     * @param name The file name
+     * @throws IOException If the file cannot be read
+     */
+    public void pin(Storage storage, String name) throws IOException {
+        if (pinned.containsKey(name)) {
+            return;
+        }
+        Storage.ReadHandle handle = storage.open(name);
+        if (closed || pinned.putIfAbsent(name, handle) != null) {
+            handle.close();
+            return;
+        }
+        try {
+            loader.setPinned(handle, true);
+            loader.load(handle, throttle);
+        } catch (IOException | RuntimeException e) {
+            unpin(name);
+            throw e;
+        }
+        LOGGER.info("Pinned " + name);
+    }
+
+    /**
+     * Lets a pinned file leave the caches again.
+     *
+     * @param name The file name
+     * @return true if the file was pinned
+     */
+    public boolean unpin(String name) {
+        Storage.ReadHandle handle = pinned.remove(name);
+        if (handle == null) {
+            return false;
+        }
+        loader.setPinned(handle, false);
+        handle.close();
+        LOGGER.info("Unpinned " + name);
+        return true;
+    }
+
+    /**
+     * Stops warming and lets every pinned file go.
+     */
+    public void close() {
+        closed = true;
+        // Not interrupted, as that would close the shared channel it reads for every transfer
+        throttle.stop();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String name : Set.copyOf(pinned.keySet())) {
+            unpin(name);
+        }
+    }
+
+    /**
+     * Gets the names of the pinned files.
+     * @return The pinned files
+     */
+    public Set<String> getPinned() {
+        return Set.copyOf(pinned.keySet());
+    }
+
+    /**
+     * Gets the number of files loaded at startup.
+     * @return The file count
+     */
+    public long getFilesWarmed() {
+        return filesWarmed.sum();
+    }
+
+    /**
+     * Gets the number of bytes loaded at startup.
+     * @return The byte count
+     */
+    public long getBytesWarmed() {
+        return bytesWarmed.sum();
+    }
+
+    /**
+     * Gets the number of popular files not loaded, as they were missing or over the budget.
+     * @return The file count
+     */
+    public long getFilesSkipped() {
+        return filesSkipped.sum();
+    }
+
+    /**
+     * Checks whether the startup warm-up has finished.
+     * @return true once every file that fits the budget is loaded
+     */
+    public boolean isWarm() {
+        return warmupNanos >= 0;
+    }
+
+    /**
+     * Gets the time from the start until the caches were warm, the time it takes a
+     * restarted server to be back to serving its popular files from the caches.
+     * @return The time in milliseconds, or -1 if warming has not finished
+     */
+    public long getWarmupMillis() {
+        long nanos = warmupNanos;
+        return nanos < 0 ? -1 : nanos / 1_000_000;
+    }
+
+    /**
+     * Fills a cache with the contents of a file.
+     */
+    public interface Loader {
+
+        /**
+         * Reads a file into the cache, acquiring every read from the throttle first.
+         *
+         * @param handle The handle of the file, open for the duration of the call
+         * @param throttle The throttle that paces the reads
+         * @throws IOException If the file cannot be read
+         */
+        void load(Storage.ReadHandle handle, Throttle throttle) throws IOException;
+
+        /**
+         * Tells the cache to keep a file whatever the pressure on it, or to treat it as
+         * any other file again. Called before the file is loaded when it is pinned.
+         *
+         * @param handle The handle of the file
+         * @param pinned Whether the file is to be kept
+         */
+        default void setPinned(Storage.ReadHandle handle, boolean pinned) {
+        }
+    }
+
+    /**
+     * Paces reads to a number of bytes per second, and stops the reads it paces when
+     * their reader is closed.
+     */
+    public static final class Throttle {
+        // Shorter waits are run up as a debt, as sleeps that short oversleep by far
+        private static final long MIN_SLEEP_NANOS = 2_000_000;
+
+        private final long nanosPerMegabyte;
+        private long nextFree = System.nanoTime();
+        private boolean stopped;
+
+        /**
+         * Creates a throttle.
+         *
+         * @param bytesPerSecond The maximum rate to read at
+         */
+        public Throttle(long bytesPerSecond) {
+            this.nanosPerMegabyte = (long) (1e9 * (1 << 20) / bytesPerSecond);
+        }
+
+        /**
+         * Waits until a read of the given size is within the rate.
+         *
+         * @param bytes The size of the read
+         * @return true, so it can guard a read loop
+         * @throws InterruptedIOException If the throttle was stopped, or the thread interrupted
+         */
+        public synchronized boolean acquire(int bytes) throws InterruptedIOException {
+            if (stopped) {
+                throw new InterruptedIOException("Reading stopped");
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFree);
+            nextFree = start + bytes * nanosPerMegabyte / (1 << 20);
+            if (start - now >= MIN_SLEEP_NANOS) {
+                // Waiting lets go of the lock, so other readers book their reads meanwhile
+                try {
+                    long remaining;
+                    while (!stopped && (remaining = start - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Reading stopped");
+                }
+                if (stopped) {
+                    throw new InterruptedIOException("Reading stopped");
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Makes every read waiting for the throttle, and every later one, fail, so the
+         * readers stop at their next read without being interrupted.
+         */
+        public synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+    }
+}
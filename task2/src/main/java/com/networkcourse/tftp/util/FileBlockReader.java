@@ -0,0 +1,188 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a file as a sequence of fixed-size blocks for an RRQ.
+ * Files at or above the mapping threshold, and files the storage already holds in
+ * memory, are mapped a window at a time, and each block is handed out as a slice of
+ * the mapping, straight from the page cache or the store and without a read call.
+ * Smaller files are not worth the cost of setting up a mapping and are read into a
+ * caller-supplied buffer instead.
+ *
+ * Every call to {@link #nextBlock()} returns a block; a block shorter than the block
+ * size (possibly empty) is the last one, so files whose size is a multiple of the
+ * block size end with an empty block as TFTP requires.
+ * A reader is not thread-safe and does not close the handle it reads from.
+ */
+public abstract class FileBlockReader {
+    // Files at least this large are mapped rather than read
+    public static final long DEFAULT_MAP_THRESHOLD = 1 << 20;
+
+    // Size of each mapped window; a multiple of any block size up to 64 KB
+    static final long MAP_WINDOW_SIZE = 64L << 20;
+
+    protected final Storage.ReadHandle handle;
+    protected final int blockSize;
+    protected final long size;
+    protected long position;
+
+    private FileBlockReader(Storage.ReadHandle handle, int blockSize) throws IOException {
+        this.handle = handle;
+        this.blockSize = blockSize;
+        this.size = handle.size();
+    }
+
+    /**
+     * Creates a reader for a file, using the default mapping threshold.
+     *
+     * @param handle The handle of the file to read
+     * @param readBuffer The buffer to read into if the file is not mapped
+     * @param blockSize The block size
+     * @return The reader
+     * @throws IOException If an I/O error occurs
+     */
+    public static FileBlockReader open(Storage.ReadHandle handle, ByteBuffer readBuffer, int blockSize) throws IOException {
+        return open(handle, readBuffer, blockSize, DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * Creates a reader for a file.
+     *
+     * @param handle The handle of the file to read
+     * @param readBuffer The buffer to read into if the file is not mapped;
+     *                   must hold at least one block
+     * @param blockSize The block size
+     * @param mapThreshold The file size from which a file on disk is mapped
+     * @return The reader
+     * @throws IOException If an I/O error occurs
+     */
+    public static FileBlockReader open(Storage.ReadHandle handle, ByteBuffer readBuffer,
+                                       int blockSize, long mapThreshold) throws IOException {
+        if (handle.isResident() || handle.size() >= mapThreshold) {
+            return new Mapped(handle, blockSize);
+        }
+        return new Streamed(handle, readBuffer, blockSize);
+    }
+
+    /**
+     * Gets the next block of the file.
+     * The returned buffer holds the block between its position and limit and is only
+     * valid until the next call; the caller may move its position but must not write to it.
+     *
+     * @return The block, shorter than the block size if it is the last one
+     * @throws IOException If an I/O error occurs
+     */
+    public abstract ByteBuffer nextBlock() throws IOException;
+
+    /**
+     * Moves past the next block without reading it, for blocks that are served from elsewhere.
+     *
+     * @return The length of the skipped block
+     */
+    public int skipBlock() {
+        int length = (int) Math.max(0, Math.min(blockSize, size - position));
+        position += length;
+        return length;
+    }
+
+    /**
+     * Checks whether this reader serves blocks from a mapping.
+     *
+     * @return true if the file is mapped
+     */
+    public abstract boolean isMapped();
+
+    /**
+     * Gets the block size.
+     *
+     * @return The block size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the size of the file when the reader was opened.
+     *
+     * @return The file size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Serves blocks as slices of a mapped window of the file.
+     */
+    private static final class Mapped extends FileBlockReader {
+        private ByteBuffer view;
+        private long windowStart;
+        private long windowLength;
+
+        Mapped(Storage.ReadHandle handle, int blockSize) throws IOException {
+            super(handle, blockSize);
+        }
+
+        @Override
+        public ByteBuffer nextBlock() throws IOException {
+            int length = (int) Math.min(blockSize, size - position);
+
+            if (view == null || position + length > windowStart + windowLength) {
+                mapWindow();
+            }
+
+            int offset = (int) (position - windowStart);
+            view.limit(offset + length).position(offset);
+            position += length;
+            return view;
+        }
+
+        /**
+         * Maps the window starting at the current position.
+         * The previous window is unmapped when it is garbage collected.
+         */
+        private void mapWindow() throws IOException {
+            windowStart = position;
+            windowLength = Math.min(MAP_WINDOW_SIZE, size - position);
+            view = handle.map(windowStart, windowLength);
+        }
+
+        @Override
+        public boolean isMapped() {
+            return true;
+        }
+    }
+
+    /**
+     * Reads blocks into a buffer supplied by the caller, with positional reads
+     * so that skipped blocks need no seek.
+     */
+    private static final class Streamed extends FileBlockReader {
+        private final ByteBuffer buffer;
+
+        Streamed(Storage.ReadHandle handle, ByteBuffer buffer, int blockSize) throws IOException {
+            super(handle, blockSize);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer nextBlock() throws IOException {
+            buffer.clear().limit(blockSize);
+            while (buffer.hasRemaining()) {
+                int bytesRead = handle.read(buffer, position);
+                if (bytesRead < 0) {
+                    break;
+                }
+                position += bytesRead;
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public boolean isMapped() {
+            return false;
+        }
+    }
+}
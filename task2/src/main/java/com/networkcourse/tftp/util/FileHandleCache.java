@@ -0,0 +1,253 @@
+package com.networkcourse.tftp.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of read-only file channels shared between the transfers of a server.
+ * Channels are keyed by canonical path and reference counted, so any number of
+ * concurrent RRQs for the same file share one open channel and read it with
+ * positional reads, which do not move a shared file position.
+ *
+ * A channel that nobody holds is closed once it has been idle for the idle timeout.
+ * If the file at a path has been replaced (its file key changed), the cached channel
+ * is retired: new requests open the new file, and the old channel is closed as soon
+ * as its last holder is done with it. So is a channel found closed, as an interrupt of
+ * any thread reading it closes it for every holder; threads that read shared channels
+ * must therefore be stopped without interrupts.
+ * All methods are thread-safe.
+ */
+public class FileHandleCache {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+
+    // Idle channels are swept at most this often
+    private static final long SWEEP_INTERVAL_MS = 1_000;
+
+    private final long idleTimeoutMillis;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private long lastSweepAt;
+    private int openCount;
+    private long acquires;
+    private long reuses;
+
+    /**
+     * Creates a new handle cache with the default idle timeout.
+     */
+    public FileHandleCache() {
+        this(DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a new handle cache.
+     *
+     * @param idleTimeoutMillis How long an unused channel is kept open, in milliseconds
+     */
+    public FileHandleCache(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Gets a shared read-only channel for a file, opening it if needed.
+     *
+     * @param path The file to read
+     * @return A handle on the channel, to be closed when the transfer is done
+     * @throws IOException If the file does not exist or cannot be opened
+     */
+    public Handle acquire(Path path) throws IOException {
+        Path canonicalPath = path.toRealPath();
+        Object fileKey = Files.readAttributes(canonicalPath, BasicFileAttributes.class).fileKey();
+
+        synchronized (this) {
+            acquires++;
+            sweep(System.currentTimeMillis());
+
+            Entry entry = entries.get(canonicalPath);
+            if (entry != null && (!Objects.equals(entry.fileKey, fileKey) || !entry.channel.isOpen())) {
+                // The file was replaced, or the channel closed under its holders; the old
+                // channel goes once its holders are done
+                retire(entry);
+                entry = null;
+            }
+            if (entry != null) {
+                reuses++;
+                entry.references++;
+                return new Handle(entry);
+            }
+        }
+
+        // Open outside the lock, so a slow open does not hold up other files
+        FileChannel channel = FileChannel.open(canonicalPath, StandardOpenOption.READ);
+
+        synchronized (this) {
+            Entry entry = entries.get(canonicalPath);
+            if (entry != null && Objects.equals(entry.fileKey, fileKey) && entry.channel.isOpen()) {
+                // Another transfer opened the same file in the meantime
+                FileTransferUtil.closeQuietly(channel);
+                reuses++;
+            } else {
+                if (entry != null) {
+                    retire(entry);
+                }
+                entry = new Entry(canonicalPath, fileKey, channel);
+                entries.put(canonicalPath, entry);
+                openCount++;
+            }
+            entry.references++;
+            return new Handle(entry);
+        }
+    }
+
+    /**
+     * Closes every channel that nobody holds, and retires the others.
+     */
+    public synchronized void closeAll() {
+        for (Entry entry : entries.values()) {
+            entry.retired = true;
+            if (entry.references == 0) {
+                closeEntry(entry);
+            }
+        }
+        entries.clear();
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.references--;
+        long now = System.currentTimeMillis();
+        if (entry.references == 0) {
+            if (entry.retired) {
+                closeEntry(entry);
+            } else {
+                entry.idleSince = now;
+            }
+        }
+        sweep(now);
+    }
+
+    private void retire(Entry entry) {
+        entries.remove(entry.path, entry);
+        entry.retired = true;
+        if (entry.references == 0) {
+            closeEntry(entry);
+        }
+    }
+
+    private void sweep(long now) {
+        if (now - lastSweepAt < SWEEP_INTERVAL_MS) {
+            return;
+        }
+        lastSweepAt = now;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.references == 0 && now - entry.idleSince >= idleTimeoutMillis) {
+                iterator.remove();
+                closeEntry(entry);
+            }
+        }
+    }
+
+    private void closeEntry(Entry entry) {
+        FileTransferUtil.closeQuietly(entry.channel);
+        openCount--;
+    }
+
+    /**
+     * Gets the number of channels currently open, including retired ones still in use.
+     * @return The open channel count
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Gets the number of channels requested.
+     * @return The acquire count
+     */
+    public synchronized long getAcquires() {
+        return acquires;
+    }
+
+    /**
+     * Gets the share of requests served by a channel that was already open.
+     * @return The reuse ratio, between 0 and 1
+     */
+    public synchronized double getReuseRatio() {
+        return acquires == 0 ? 0 : (double) reuses / acquires;
+    }
+
+    /**
+     * A holder's reference to a shared channel.
+     * The channel must only be read with positional reads or mappings, and must not be closed.
+     */
+    public final class Handle implements Closeable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Gets the shared channel.
+         * @return The channel
+         */
+        public FileChannel channel() {
+            return entry.channel;
+        }
+
+        /**
+         * Gets the canonical path of the file.
+         * @return The path
+         */
+        public Path path() {
+            return entry.path;
+        }
+
+        /**
+         * Gets the file key of the file the channel was opened on.
+         * @return The file key, or null if the file system has none
+         */
+        public Object fileKey() {
+            return entry.fileKey;
+        }
+
+        /**
+         * Releases this reference. Further calls do nothing.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * An open channel and its holders.
+     */
+    private static final class Entry {
+        private final Path path;
+        private final Object fileKey;
+        private final FileChannel channel;
+        private int references;
+        private long idleSince;
+        private boolean retired;
+
+        Entry(Path path, Object fileKey, FileChannel channel) {
+            this.path = path;
+            this.fileKey = fileKey;
+            this.channel = channel;
+        }
+    }
+}
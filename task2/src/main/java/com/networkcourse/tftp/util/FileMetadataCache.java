@@ -0,0 +1,557 @@
+package com.networkcourse.tftp.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of file metadata (existence, type, size, modification time, access and file key)
+ * for the files a server serves, so that the checks made for every request do not
+ * each cost a round of stat calls.
+ *
+ * Entries are loaded on first use. A watch service on the served tree drops the
+ * entries of files as they are created, changed or deleted; every entry also expires
+ * after a time to live, which bounds staleness where the file system does not report
+ * changes (network file systems, paths outside the tree, or a watch that could not be set up).
+ *
+ * Missing files are cached too, under a shorter time to live, so that clients probing
+ * a chain of names that mostly do not exist (PXE boot loaders, for one) are answered
+ * without touching the file system. Creating, deleting or moving a directory drops the
+ * entries of every path below it.
+ *
+ * Existing and missing files are cached in separate maps, each bounded and evicting its
+ * least recently used entries, so clients asking for random names can neither grow the
+ * cache without end nor push the files that exist out of it.
+ *
+ * The cache counts the stat calls it makes and the time spent in lookups, both in
+ * total and for the calling thread, so a session can report what its own request cost.
+ * All methods are thread-safe.
+ */
+public class FileMetadataCache implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(FileMetadataCache.class.getName());
+
+    public static final long DEFAULT_TTL_MS = 5_000;
+    public static final long DEFAULT_NEGATIVE_TTL_MS = 2_000;
+    public static final int DEFAULT_MAX_ENTRIES = 65_536;
+    public static final int DEFAULT_MAX_MISSING = 16_384;
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    // Existing and missing files, each in least recently used order; guarded by the cache
+    private final Map<Path, Metadata> entries;
+    private final Map<Path, Metadata> missing;
+    // Directories registered with the watch service, so a deletion can tell them from files
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private final WatchService watchService;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeLookups = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder statCalls = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // Stat calls and lookup nanoseconds of the calling thread
+    private final ThreadLocal<long[]> threadCounters = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * Creates a new metadata cache watching a tree, with the default times to live.
+     *
+     * @param root The root of the served tree
+     */
+    public FileMetadataCache(String root) {
+        this(root, DEFAULT_TTL_MS, DEFAULT_NEGATIVE_TTL_MS);
+    }
+
+    /**
+     * Creates a new metadata cache watching a tree.
+     * If the tree cannot be watched, entries are only expired by their time to live.
+     *
+     * @param root The root of the served tree
+     * @param ttlMillis How long an entry is trusted without a change notification, in milliseconds
+     * @param negativeTtlMillis How long the entry of a missing file is trusted, in milliseconds
+     */
+    public FileMetadataCache(String root, long ttlMillis, long negativeTtlMillis) {
+        this(root, ttlMillis, negativeTtlMillis, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_MISSING);
+    }
+
+    /**
+     * Creates a new metadata cache watching a tree.
+     * If the tree cannot be watched, entries are only expired by their time to live.
+     *
+     * @param root The root of the served tree
+     * @param ttlMillis How long an entry is trusted without a change notification, in milliseconds
+     * @param negativeTtlMillis How long the entry of a missing file is trusted, in milliseconds
+     * @param maxEntries The maximum number of existing files to cache
+     * @param maxMissing The maximum number of missing files to cache
+     */
+    public FileMetadataCache(String root, long ttlMillis, long negativeTtlMillis, int maxEntries, int maxMissing) {
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000L;
+        this.entries = createLruMap(maxEntries);
+        this.missing = createLruMap(maxMissing);
+        this.watchService = startWatching(normalize(Paths.get(root)));
+    }
+
+    /**
+     * Gets the metadata of a file, loading it if it is not cached or has expired.
+     *
+     * @param path The file
+     * @return The metadata; for a missing file, one that reports it does not exist
+     */
+    public Metadata get(Path path) {
+        long start = System.nanoTime();
+        Path key = normalize(path);
+        lookups.increment();
+
+        Metadata metadata = cached(key);
+        if (isFresh(metadata, start)) {
+            hits.increment();
+            if (!metadata.exists) {
+                negativeHits.increment();
+            }
+        } else {
+            metadata = load(key, start);
+            store(metadata);
+        }
+        if (!metadata.exists) {
+            negativeLookups.increment();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        lookupNanos.add(elapsed);
+        threadCounters.get()[1] += elapsed;
+        return metadata;
+    }
+
+    /**
+     * Gets the metadata of a file, loading it if it is not cached or has expired.
+     *
+     * @param filename The name of the file
+     * @return The metadata
+     */
+    public Metadata get(String filename) {
+        return get(Paths.get(filename));
+    }
+
+    /**
+     * Checks whether a file is known to be missing, from the cache alone.
+     * Never touches the file system, so it can be called on a server's intake thread;
+     * a file that is not cached as missing still has to be looked up with {@link #get}.
+     *
+     * @param filename The name of the file
+     * @return true if the file is cached as missing
+     */
+    public boolean isKnownMissing(String filename) {
+        Metadata metadata;
+        synchronized (this) {
+            metadata = missing.get(normalize(Paths.get(filename)));
+        }
+        if (metadata == null || !isFresh(metadata, System.nanoTime())) {
+            return false;
+        }
+        lookups.increment();
+        hits.increment();
+        negativeLookups.increment();
+        negativeHits.increment();
+        return true;
+    }
+
+    private boolean isFresh(Metadata metadata, long now) {
+        return metadata != null && now - metadata.loadedAt < (metadata.exists ? ttlNanos : negativeTtlNanos);
+    }
+
+    /**
+     * Drops the cached metadata of a file, for callers that have just changed it
+     * and cannot wait for the change notification.
+     *
+     * @param path The file
+     */
+    public void invalidate(Path path) {
+        if (remove(normalize(path)) != null) {
+            invalidations.increment();
+        }
+    }
+
+    private synchronized Metadata cached(Path path) {
+        Metadata metadata = entries.get(path);
+        return metadata != null ? metadata : missing.get(path);
+    }
+
+    private synchronized void store(Metadata metadata) {
+        if (metadata.exists) {
+            missing.remove(metadata.path);
+            entries.put(metadata.path, metadata);
+        } else {
+            entries.remove(metadata.path);
+            missing.put(metadata.path, metadata);
+        }
+    }
+
+    private synchronized Metadata remove(Path path) {
+        Metadata removed = entries.remove(path);
+        Metadata removedMissing = missing.remove(path);
+        return removed != null ? removed : removedMissing;
+    }
+
+    private synchronized int removeBelow(Path path) {
+        int before = entries.size() + missing.size();
+        entries.keySet().removeIf(cached -> cached.startsWith(path) && !cached.equals(path));
+        missing.keySet().removeIf(cached -> cached.startsWith(path) && !cached.equals(path));
+        return before - entries.size() - missing.size();
+    }
+
+    private synchronized int clear() {
+        int size = entries.size() + missing.size();
+        entries.clear();
+        missing.clear();
+        return size;
+    }
+
+    private Map<Path, Metadata> createLruMap(int capacity) {
+        return new LinkedHashMap<Path, Metadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Metadata> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private Metadata load(Path path, long now) {
+        int calls = 1;
+        Metadata metadata;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            calls += 2;
+            metadata = new Metadata(path, true, attributes.isRegularFile(), attributes.isDirectory(),
+                    attributes.size(), attributes.lastModifiedTime().toMillis(),
+                    Files.isReadable(path), Files.isWritable(path), attributes.fileKey(), now);
+        } catch (IOException e) {
+            // Missing, or not accessible at all
+            metadata = new Metadata(path, false, false, false, 0, 0, false, false, null, now);
+        }
+        statCalls.add(calls);
+        threadCounters.get()[0] += calls;
+        return metadata;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Registers the tree with a new watch service and starts the thread that applies its events.
+     *
+     * @return The watch service, or null if the tree cannot be watched
+     */
+    private WatchService startWatching(Path root) {
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            registerTree(service, root);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot watch " + root + ", relying on the metadata TTL", e);
+            FileTransferUtil.closeQuietly(service);
+            return null;
+        }
+
+        WatchService watcher = service;
+        Thread thread = new Thread(() -> watchLoop(watcher), "tftp-metadata-watch");
+        thread.setDaemon(true);
+        thread.start();
+        return service;
+    }
+
+    private void registerTree(WatchService service, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Unreadable subtrees are left to the TTL
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Applies change notifications until the watch service is closed.
+     */
+    private void watchLoop(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path dir = (Path) key.watchable();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so nothing cached can be trusted
+                        invalidations.add(clear());
+                        continue;
+                    }
+
+                    Path child = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        boolean directory = Files.isDirectory(child);
+                        invalidate(child, directory);
+                        if (directory) {
+                            try {
+                                registerTree(service, child);
+                            } catch (IOException e) {
+                                LOGGER.log(Level.FINE, "Cannot watch new directory " + child, e);
+                            }
+                        }
+                    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        invalidate(child, watchedDirectories.remove(child));
+                    } else {
+                        invalidate(child, false);
+                    }
+                }
+                // The directory's own entry reflects its children too
+                invalidate(dir);
+                if (!key.reset()) {
+                    // Deleted or moved away
+                    watchedDirectories.remove(dir);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Drops the entry of a path and, if it is or was a directory, the entries of everything
+     * below it. Files have nothing cached below them, so their events cost one removal.
+     */
+    private void invalidate(Path path, boolean directory) {
+        Metadata removed = remove(path);
+        if (removed != null) {
+            invalidations.increment();
+        }
+        if (directory || (removed != null && removed.isDirectory())) {
+            invalidations.add(removeBelow(path));
+        }
+    }
+
+    /**
+     * Gets the number of lookups made.
+     * @return The lookup count
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Gets the share of lookups answered without a stat call.
+     * @return The hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        long total = lookups.sum();
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    /**
+     * Gets the share of lookups of missing files answered without a stat call.
+     * @return The negative hit ratio, between 0 and 1
+     */
+    public double getNegativeHitRatio() {
+        long total = negativeLookups.sum();
+        return total == 0 ? 0 : (double) negativeHits.sum() / total;
+    }
+
+    /**
+     * Gets the number of lookups of missing files answered without a stat call.
+     * @return The negative hit count
+     */
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * Gets the number of stat calls made to load entries.
+     * @return The stat call count
+     */
+    public long getStatCalls() {
+        return statCalls.sum();
+    }
+
+    /**
+     * Gets the average time a lookup took.
+     * @return The average lookup time in microseconds
+     */
+    public double getAverageLookupMicros() {
+        long total = lookups.sum();
+        return total == 0 ? 0 : lookupNanos.sum() / 1_000.0 / total;
+    }
+
+    /**
+     * Gets the number of entries dropped because their file changed.
+     * @return The invalidation count
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Gets the number of entries evicted to keep the cache within its bounds.
+     * @return The eviction count
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Gets the number of stat calls made so far by lookups on the calling thread.
+     * @return The thread's stat call count
+     */
+    public long getThreadStatCalls() {
+        return threadCounters.get()[0];
+    }
+
+    /**
+     * Gets the time spent so far in lookups on the calling thread.
+     * @return The thread's lookup time in nanoseconds
+     */
+    public long getThreadLookupNanos() {
+        return threadCounters.get()[1];
+    }
+
+    /**
+     * Stops watching the tree.
+     */
+    @Override
+    public void close() {
+        FileTransferUtil.closeQuietly(watchService);
+    }
+
+    /**
+     * The metadata of one file at the time it was loaded.
+     */
+    public static final class Metadata {
+        private final Path path;
+        private final boolean exists;
+        private final boolean regularFile;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final boolean readable;
+        private final boolean writable;
+        private final Object fileKey;
+        private final long loadedAt;
+
+        Metadata(Path path, boolean exists, boolean regularFile, boolean directory, long size,
+                 long lastModified, boolean readable, boolean writable, Object fileKey, long loadedAt) {
+            this.path = path;
+            this.exists = exists;
+            this.regularFile = regularFile;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.readable = readable;
+            this.writable = writable;
+            this.fileKey = fileKey;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * Gets the absolute, normalized path of the file.
+         * @return The path
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Checks whether the file exists.
+         * @return true if it exists
+         */
+        public boolean exists() {
+            return exists;
+        }
+
+        /**
+         * Checks whether the file is a regular file.
+         * @return true if it is a regular file
+         */
+        public boolean isRegularFile() {
+            return regularFile;
+        }
+
+        /**
+         * Checks whether the file is a directory.
+         * @return true if it is a directory
+         */
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * Gets the size of the file.
+         * @return The size in bytes, or 0 if it does not exist
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the modification time of the file.
+         * @return The modification time in milliseconds since the epoch, or 0 if it does not exist
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Checks whether the server can read the file.
+         * @return true if it is readable
+         */
+        public boolean isReadable() {
+            return readable;
+        }
+
+        /**
+         * Checks whether the server can write the file.
+         * @return true if it is writable
+         */
+        public boolean isWritable() {
+            return writable;
+        }
+
+        /**
+         * Gets the file key that identifies the file on its file system.
+         * @return The file key, or null if it does not exist or the file system has none
+         */
+        public Object getFileKey() {
+            return fileKey;
+        }
+    }
+}
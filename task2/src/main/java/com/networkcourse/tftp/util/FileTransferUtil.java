@@ -1,6 +1,10 @@
 package com.networkcourse.tftp.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 
 /**
  * Utility class for file operations used in the TFTP implementation.
@@ -66,4 +70,54 @@ public class FileTransferUtil {
     public static void writeBlock(OutputStream fos, byte[] buffer, int length) throws IOException {
         fos.write(buffer, 0, length);
     }
+    
+    /**
+     * Reads a block of data from a channel into a buffer.
+     * Keeps reading until the buffer is full up to its limit or the end of the file is reached.
+     * 
+     * @param channel The channel to read from
+     * @param buffer The buffer to read into, from its position up to its limit
+     * @return The number of bytes read, or -1 if already at the end of the file
+     * @throws IOException If an I/O error occurs
+     */
+    public static int readBlock(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer);
+            if (bytesRead < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+    
+    /**
+     * Writes a block of data straight from a buffer to a channel.
+     * Writes everything between the buffer's position and limit, leaving the position at the limit.
+     * 
+     * @param channel The channel to write to
+     * @param data The buffer holding the data
+     * @throws IOException If an I/O error occurs
+     */
+    public static void writeBlock(WritableByteChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+    
+    /**
+     * Safely closes a closeable resource.
+     * 
+     * @param closeable The resource to close
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
 }
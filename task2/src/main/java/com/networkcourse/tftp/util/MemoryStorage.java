@@ -0,0 +1,263 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Storage that keeps every file in memory, keyed by its normalized name.
+ * Meant for small, hot sets of files, such as the boot images every client of a
+ * network asks for, and for measuring the servers without a disk in the way.
+ *
+ * Files are immutable once stored: an upload builds its contents privately and
+ * publishes them in one step on commit, and readers keep the version they opened.
+ * Nothing is persisted; the contents are lost when the server stops.
+ *
+ * Uploads are bounded per file and in total, counting what uploads in progress have
+ * buffered, so clients cannot fill the heap; an upload past either limit fails with
+ * {@link StorageFullException}. Files stored with {@link #put} are not limited.
+ * All methods are thread-safe.
+ */
+public class MemoryStorage implements Storage {
+    // Initial capacity of an upload's buffer; it doubles as the upload grows
+    private static final int INITIAL_UPLOAD_CAPACITY = 64 << 10;
+    // By default uploads may take up to half of the heap, and a quarter of that per file
+    public static final long DEFAULT_MAX_TOTAL_BYTES = Runtime.getRuntime().maxMemory() / 2;
+    public static final long DEFAULT_MAX_FILE_BYTES = DEFAULT_MAX_TOTAL_BYTES / 4;
+
+    private final long maxFileBytes;
+    private final long maxTotalBytes;
+    private final ConcurrentHashMap<String, MemoryFile> files = new ConcurrentHashMap<>();
+    private final Set<String> uploading = ConcurrentHashMap.newKeySet();
+    private final LongAdder usedBytes = new LongAdder();
+    // Bytes written to uploads that are not committed or discarded yet
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final LongAdder refusedUploads = new LongAdder();
+
+    /**
+     * Creates an empty memory storage with the default limits.
+     */
+    public MemoryStorage() {
+        this(DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_TOTAL_BYTES);
+    }
+
+    /**
+     * Creates an empty memory storage.
+     *
+     * @param maxFileBytes The largest file an upload may store
+     * @param maxTotalBytes The most bytes the stored files and the uploads in progress may take
+     */
+    public MemoryStorage(long maxFileBytes, long maxTotalBytes) {
+        this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE - 8);
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Creates a memory storage holding a copy of every regular file under a directory,
+     * named by their paths relative to it.
+     *
+     * @param directory The directory to load
+     * @return The storage
+     * @throws IOException If the directory cannot be read
+     */
+    public static MemoryStorage load(Path directory) throws IOException {
+        MemoryStorage storage = new MemoryStorage();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                // The server's state files live in the directory too
+                if (Files.isRegularFile(path) && !Storage.isHidden(directory.relativize(path).toString())) {
+                    storage.put(directory.relativize(path).toString(), Files.readAllBytes(path));
+                }
+            }
+        }
+        return storage;
+    }
+
+    /**
+     * Stores a file, replacing any file of the same name.
+     * Transfers already reading the old file carry on with it.
+     *
+     * @param name The file name
+     * @param contents The contents; not copied, and must not be changed afterwards
+     */
+    public void put(String name, byte[] contents) {
+        store(normalize(name), ByteBuffer.wrap(contents));
+    }
+
+    /**
+     * Removes a file.
+     *
+     * @param name The file name
+     * @return true if the file existed
+     */
+    public boolean remove(String name) {
+        MemoryFile removed = files.remove(normalize(name));
+        if (removed == null) {
+            return false;
+        }
+        usedBytes.add(-removed.size());
+        return true;
+    }
+
+    private void store(String key, ByteBuffer contents) {
+        MemoryFile previous = files.put(key, new MemoryFile(contents, System.currentTimeMillis()));
+        usedBytes.add(contents.capacity() - (previous == null ? 0 : previous.size()));
+    }
+
+    private static String normalize(String name) {
+        return Paths.get(name).normalize().toString();
+    }
+
+    @Override
+    public Stat stat(String name) {
+        String key = normalize(name);
+        if (Storage.isHidden(key)) {
+            return Stat.DENIED;
+        }
+        MemoryFile file = files.get(key);
+        if (file == null) {
+            return new Stat(false, false, true, 0, 0);
+        }
+        // Stored files are never written in place
+        return new Stat(true, true, false, file.size(), file.lastModified());
+    }
+
+    @Override
+    public boolean isKnownMissing(String name) {
+        // The map is the whole store, so a miss is authoritative; a refused name is not missing
+        String key = normalize(name);
+        return !Storage.isHidden(key) && !files.containsKey(key);
+    }
+
+    @Override
+    public ReadHandle open(String name) throws IOException {
+        MemoryFile file = files.get(normalize(name));
+        if (file == null) {
+            throw new NoSuchFileException(name);
+        }
+        return file;
+    }
+
+    @Override
+    public Upload create(String name) throws IOException {
+        String key = normalize(name);
+        if (Storage.isHidden(key)) {
+            throw new AccessDeniedException(name, null, "Hidden name");
+        }
+        if (!uploading.add(key)) {
+            throw new FileAlreadyExistsException(name, null, "Upload already in progress");
+        }
+        if (files.containsKey(key)) {
+            uploading.remove(key);
+            throw new FileAlreadyExistsException(name);
+        }
+        return new MemoryUpload(key);
+    }
+
+    /**
+     * Gets the number of files stored.
+     *
+     * @return The file count
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * Gets the memory taken by the contents of the stored files.
+     *
+     * @return The size in bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.sum();
+    }
+
+    /**
+     * Gets the number of uploads refused because they would have exceeded a limit.
+     *
+     * @return The refused upload count
+     */
+    public long getRefusedUploads() {
+        return refusedUploads.sum();
+    }
+
+    /**
+     * An upload gathered into a private buffer until it is committed.
+     */
+    private final class MemoryUpload implements Upload {
+        private final String key;
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_UPLOAD_CAPACITY);
+        private boolean closed;
+        private boolean committed;
+
+        MemoryUpload(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            int length = data.remaining();
+            long required = (long) buffer.position() + length;
+            if (required > maxFileBytes) {
+                refusedUploads.increment();
+                throw new StorageFullException(key, "File larger than " + maxFileBytes + " bytes");
+            }
+            if (usedBytes.sum() + bufferedBytes.addAndGet(length) > maxTotalBytes) {
+                bufferedBytes.addAndGet(-length);
+                refusedUploads.increment();
+                throw new StorageFullException(key, "Memory storage full");
+            }
+            if (buffer.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate((int) Math.min(maxFileBytes,
+                        Math.max(required, 2L * buffer.capacity())));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.put(data);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            // Files put since the upload was written may have used up the room it counted on
+            int size = buffer.position();
+            if (usedBytes.sum() + bufferedBytes.get() > maxTotalBytes) {
+                refusedUploads.increment();
+                throw new StorageFullException(key, "Memory storage full");
+            }
+            // Trim the buffer to the file's size
+            buffer.flip();
+            ByteBuffer contents = ByteBuffer.allocate(size);
+            contents.put(buffer).flip();
+            if (files.putIfAbsent(key, new MemoryFile(contents, System.currentTimeMillis())) != null) {
+                throw new FileAlreadyExistsException(key);
+            }
+            // Counted as used before it stops counting as buffered, so the total never reads low
+            usedBytes.add(size);
+            bufferedBytes.addAndGet(-size);
+            committed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (!committed) {
+                    bufferedBytes.addAndGet(-buffer.position());
+                }
+                buffer = null;
+                uploading.remove(key);
+            }
+        }
+    }
+}
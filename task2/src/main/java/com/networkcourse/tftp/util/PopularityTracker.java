@@ -0,0 +1,236 @@
+package com.networkcourse.tftp.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks how often each file is requested, so the most popular ones can be loaded into
+ * the caches before clients ask for them.
+ *
+ * Counts are kept in a count-min sketch: a fixed grid of counters, one row per hash
+ * function, where a file's count is the smallest of its counters. The sketch never
+ * undercounts and takes the same memory however many files are served. Next to it, the
+ * names of the files with the highest estimates are kept as candidates for the top list,
+ * as the sketch itself cannot list what it has counted.
+ *
+ * The candidates and their estimates are saved to a file every so often and when the
+ * tracker is closed, and read back at half weight when it is created, so popularity
+ * survives restarts and fades when files stop being requested.
+ * All methods are synchronized on the tracker.
+ */
+public class PopularityTracker {
+    private static final Logger LOGGER = Logger.getLogger(PopularityTracker.class.getName());
+
+    public static final int DEFAULT_CANDIDATES = 1024;
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+    private static final long SAVE_INTERVAL_MILLIS = 30_000;
+
+    private final Path file;
+    private final int maxCandidates;
+    private final int[][] counters = new int[DEPTH][WIDTH];
+    private final Map<String, Integer> candidates = new HashMap<>();
+    private final ScheduledExecutorService saver;
+    private long requests;
+    private boolean dirty;
+
+    /**
+     * Creates a tracker, reading back the counts saved by an earlier one.
+     *
+     * @param file The file the counts are saved to
+     */
+    public PopularityTracker(Path file) {
+        this(file, DEFAULT_CANDIDATES);
+    }
+
+    /**
+     * Creates a tracker, reading back the counts saved by an earlier one.
+     *
+     * @param file The file the counts are saved to
+     * @param maxCandidates The number of most requested files to keep the names of
+     */
+    public PopularityTracker(Path file, int maxCandidates) {
+        this.file = file;
+        this.maxCandidates = maxCandidates;
+        load();
+        this.saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tftp-popularity");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::saveIfDirty,
+                SAVE_INTERVAL_MILLIS, SAVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts a request for a file.
+     *
+     * @param name The file name
+     */
+    public synchronized void record(String name) {
+        requests++;
+        dirty = true;
+        update(name, 1);
+    }
+
+    /**
+     * Adds to the count of a file and updates the candidates with its new estimate.
+     */
+    private void update(String name, int count) {
+        int hash = name.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int[] counts = counters[row];
+            int column = column(hash, row);
+            counts[column] = (int) Math.min(Integer.MAX_VALUE, (long) counts[column] + count);
+            estimate = Math.min(estimate, counts[column]);
+        }
+
+        candidates.put(name, estimate);
+        if (candidates.size() > 2 * maxCandidates) {
+            // Trimmed in bulk, so the sort is paid once per maxCandidates new names
+            List<String> kept = top(maxCandidates);
+            candidates.keySet().retainAll(kept);
+        }
+    }
+
+    private static int column(int hash, int row) {
+        // One multiplicative hash per row, over the spread bits of the name's hash
+        int mixed = (hash ^ (hash >>> 16)) * (0x9E3779B1 + 2 * row);
+        return (mixed ^ (mixed >>> 15)) & (WIDTH - 1);
+    }
+
+    /**
+     * Gets the estimated number of requests for a file.
+     *
+     * @param name The file name
+     * @return The estimate, never lower than the true count
+     */
+    public synchronized int estimate(String name) {
+        int hash = name.hashCode();
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters[row][column(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Gets the most requested files.
+     *
+     * @param limit The maximum number of files
+     * @return The file names, most requested first
+     */
+    public synchronized List<String> top(int limit) {
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(candidates.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        List<String> names = new ArrayList<>(Math.min(limit, ranked.size()));
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            names.add(ranked.get(i).getKey());
+        }
+        return names;
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                // count and name; the name goes last as it may hold tabs
+                String[] fields = line.split("\t", 2);
+                if (fields.length == 2) {
+                    // Older requests count for half, so the ranking follows what is requested now
+                    int count = Integer.parseInt(fields[0]) / 2;
+                    if (count > 0) {
+                        update(fields[1], count);
+                    }
+                }
+            }
+            LOGGER.info("Loaded the request counts of " + candidates.size() + " files from " + file);
+        } catch (IOException | NumberFormatException e) {
+            // Losing the counts only costs a cold start
+            LOGGER.log(Level.WARNING, "Cannot read request counts " + file + ", starting empty", e);
+            for (int[] counts : counters) {
+                Arrays.fill(counts, 0);
+            }
+            candidates.clear();
+        }
+    }
+
+    private void saveIfDirty() {
+        Map<String, Integer> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            snapshot = new HashMap<>(candidates);
+        }
+        save(snapshot);
+    }
+
+    /**
+     * Writes the counts to a temporary file and renames it over the counts file.
+     */
+    private void save(Map<String, Integer> snapshot) {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Integer> candidate : snapshot.entrySet()) {
+                    writer.write(candidate.getValue() + "\t" + candidate.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            LOGGER.log(Level.WARNING, "Cannot save request counts " + file, e);
+        }
+    }
+
+    /**
+     * Stops saving periodically and saves the counts.
+     */
+    public void close() {
+        saver.shutdownNow();
+        try {
+            saver.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveIfDirty();
+    }
+
+    /**
+     * Gets the number of requests counted since the tracker was created.
+     * @return The request count
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Gets the number of files kept as candidates for the top list.
+     * @return The candidate count
+     */
+    public synchronized int getCandidateCount() {
+        return candidates.size();
+    }
+}
@@ -0,0 +1,423 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the files a client is about to ask for into the caches, predicted from the
+ * order earlier clients asked for files in.
+ *
+ * Network boot clients fetch their files in a nearly fixed order (boot loader, its
+ * modules, configuration, kernel, initrd), each with its own RRQ. The prefetcher
+ * learns a first-order Markov model of that order: how often each file followed each
+ * other file. A client's requests form a sequence until it pauses for longer than the
+ * sequence gap, and the first file of the sequence is its class, so clients that boot
+ * differently (BIOS and UEFI, say) learn separate chains.
+ *
+ * When a client asks for a file, the chain of most likely next files is followed for
+ * as long as the probability of the whole chain stays above the threshold, and those
+ * files are loaded on a background thread. A prefetched file the client then asks for
+ * in the same sequence is a hit; one it never asks for is wasted, and so are its bytes.
+ * All methods are thread-safe.
+ */
+public class SequencePrefetcher {
+    private static final Logger LOGGER = Logger.getLogger(SequencePrefetcher.class.getName());
+
+    public static final double DEFAULT_THRESHOLD = 0.6;
+    public static final int DEFAULT_MIN_OBSERVATIONS = 3;
+    public static final long DEFAULT_SEQUENCE_GAP_MILLIS = 30_000;
+    // Files predicted past the next one, as long as the chain is likely enough
+    private static final int LOOKAHEAD = 3;
+    private static final int MAX_STATES = 16_384;
+    private static final int MAX_SUCCESSORS = 32;
+    private static final int MAX_CLIENTS = 4096;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long BYTES_PER_SECOND = 256L << 20;
+    // Size of a prediction that has not been loaded yet
+    private static final long NOT_LOADED = -1;
+
+    private final CacheWarmer.Loader loader;
+    private final double threshold;
+    private final int minObservations;
+    private final long sequenceGapNanos;
+    private final CacheWarmer.Throttle throttle = new CacheWarmer.Throttle(BYTES_PER_SECOND);
+    private final ThreadPoolExecutor executor;
+    private volatile boolean enabled = true;
+
+    // Transition counts by class and previous file, and the clients' sequences,
+    // least recently active first
+    private final Map<String, Transitions> states = new HashMap<>();
+    private final Map<InetAddress, Sequence> sequences = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long observations;
+    private long prefetches;
+    private long prefetchedBytes;
+    private long hits;
+    private long hitBytes;
+    private long late;
+    private long wasted;
+    private long wastedBytes;
+    private long dropped;
+
+    /**
+     * Creates a prefetcher with the default threshold, evidence and sequence gap.
+     *
+     * @param loader The loader that fills the server's cache
+     */
+    public SequencePrefetcher(CacheWarmer.Loader loader) {
+        this(loader, DEFAULT_THRESHOLD, DEFAULT_MIN_OBSERVATIONS, DEFAULT_SEQUENCE_GAP_MILLIS);
+    }
+
+    /**
+     * Creates a prefetcher.
+     *
+     * @param loader The loader that fills the server's cache
+     * @param threshold The probability a predicted chain of files needs to be prefetched
+     * @param minObservations The number of times a file must have been seen before its
+     *                        successors are predicted
+     * @param sequenceGapMillis The pause after which a client's next request starts a new sequence
+     */
+    public SequencePrefetcher(CacheWarmer.Loader loader, double threshold, int minObservations,
+                              long sequenceGapMillis) {
+        this.loader = loader;
+        this.threshold = threshold;
+        this.minObservations = minObservations;
+        this.sequenceGapNanos = TimeUnit.MILLISECONDS.toNanos(sequenceGapMillis);
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        // A full queue means the predictions come faster than they load, so new ones are dropped
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "tftp-prefetch-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Learns from a client's request for a stored file and prefetches what it is likely to ask for next.
+     *
+     * @param client The client's address
+     * @param name The requested file name
+     * @param storage The storage the files are served from
+     */
+    public void requested(InetAddress client, String name, Storage storage) {
+        List<String> predicted;
+        Sequence sequence;
+        synchronized (this) {
+            long now = System.nanoTime();
+            sequence = sequences.get(client);
+            if (sequence != null && now - sequence.lastAt > sequenceGapNanos) {
+                end(sequence);
+                sequences.remove(client);
+                sequence = null;
+            }
+            if (sequence == null) {
+                if (sequences.size() >= MAX_CLIENTS) {
+                    expire(now);
+                }
+                sequence = new Sequence(name);
+                sequences.put(client, sequence);
+            } else {
+                learn(sequence.entry, sequence.last, name);
+            }
+
+            Long size = sequence.pending.remove(name);
+            if (size != null) {
+                if (size == NOT_LOADED) {
+                    // Asked for before the prefetch got to it
+                    late++;
+                } else {
+                    hits++;
+                    hitBytes += size;
+                }
+            }
+            sequence.last = name;
+            sequence.lastAt = now;
+
+            predicted = enabled ? predict(sequence, name) : List.of();
+            for (String next : predicted) {
+                sequence.pending.put(next, NOT_LOADED);
+            }
+        }
+
+        for (String next : predicted) {
+            Sequence target = sequence;
+            try {
+                executor.execute(() -> prefetch(storage, target, next));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    dropped++;
+                    target.pending.remove(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts one transition of a class's chain.
+     */
+    private void learn(String entry, String previous, String name) {
+        String key = entry + '\n' + previous;
+        Transitions transitions = states.get(key);
+        if (transitions == null) {
+            if (states.size() >= MAX_STATES) {
+                // Files seen once or twice (per-client configuration probes, say) make way
+                states.values().removeIf(state -> state.total < minObservations);
+                if (states.size() >= MAX_STATES) {
+                    return;
+                }
+            }
+            transitions = new Transitions();
+            states.put(key, transitions);
+        }
+        observations++;
+        transitions.total++;
+        Integer count = transitions.next.get(name);
+        if (count != null) {
+            transitions.next.put(name, count + 1);
+        } else if (transitions.next.size() < MAX_SUCCESSORS) {
+            // Beyond that many successors none of them is predictable anyway
+            transitions.next.put(name, 1);
+        }
+    }
+
+    /**
+     * Follows the chain of most likely next files while it is likely enough.
+     */
+    private List<String> predict(Sequence sequence, String name) {
+        List<String> predicted = new ArrayList<>(LOOKAHEAD);
+        String current = name;
+        double probability = 1;
+        for (int step = 0; step < LOOKAHEAD; step++) {
+            Transitions transitions = states.get(sequence.entry + '\n' + current);
+            if (transitions == null || transitions.total < minObservations) {
+                break;
+            }
+            String best = null;
+            int bestCount = 0;
+            for (Map.Entry<String, Integer> next : transitions.next.entrySet()) {
+                if (next.getValue() > bestCount) {
+                    best = next.getKey();
+                    bestCount = next.getValue();
+                }
+            }
+            probability *= (double) bestCount / transitions.total;
+            if (best == null || probability < threshold || best.equals(name) || predicted.contains(best)) {
+                break;
+            }
+            if (!sequence.pending.containsKey(best)) {
+                predicted.add(best);
+            }
+            current = best;
+        }
+        return predicted;
+    }
+
+    /**
+     * Loads a predicted file, unless the client has asked for it or gone since.
+     */
+    private void prefetch(Storage storage, Sequence sequence, String name) {
+        synchronized (this) {
+            if (!sequence.pending.containsKey(name)) {
+                return;
+            }
+        }
+        long size = -1;
+        Storage.Stat stat = storage.stat(name);
+        if (stat.isReadable()) {
+            try (Storage.ReadHandle handle = storage.open(name)) {
+                loader.load(handle, throttle);
+                size = stat.getSize();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot prefetch " + name, e);
+            }
+        }
+        synchronized (this) {
+            if (size < 0) {
+                sequence.pending.remove(name);
+                return;
+            }
+            prefetches++;
+            prefetchedBytes += size;
+            // A client that asked for the file while it was loading was counted as late
+            if (!sequence.pending.replace(name, NOT_LOADED, size) && sequence.ended) {
+                // The client was gone before the file was loaded
+                wasted++;
+                wastedBytes += size;
+            }
+        }
+    }
+
+    /**
+     * Counts the prefetched files a finished sequence never asked for.
+     */
+    private void end(Sequence sequence) {
+        sequence.ended = true;
+        for (long size : sequence.pending.values()) {
+            if (size != NOT_LOADED) {
+                wasted++;
+                wastedBytes += size;
+            }
+        }
+        sequence.pending.clear();
+    }
+
+    /**
+     * Ends the sequences of clients that have paused, or else the sequence of the least
+     * recently active client, so the number of clients tracked stays bounded.
+     */
+    private void expire(long now) {
+        Iterator<Sequence> iterator = sequences.values().iterator();
+        while (iterator.hasNext()) {
+            Sequence sequence = iterator.next();
+            if (now - sequence.lastAt > sequenceGapNanos) {
+                end(sequence);
+                iterator.remove();
+            }
+        }
+        if (sequences.size() >= MAX_CLIENTS) {
+            // More clients are booting at once than are tracked
+            iterator = sequences.values().iterator();
+            end(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Turns prefetching on or off; the model goes on learning either way.
+     *
+     * @param enabled Whether to prefetch
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Stops prefetching.
+     */
+    public void shutdown() {
+        // Not interrupted, as that would close the shared channel a prefetch reads
+        throttle.stop();
+        executor.shutdown();
+        executor.getQueue().clear();
+    }
+
+    /**
+     * Gets the number of transitions between files learned.
+     * @return The observation count
+     */
+    public synchronized long getObservations() {
+        return observations;
+    }
+
+    /**
+     * Gets the number of files prefetched.
+     * @return The prefetch count
+     */
+    public synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    /**
+     * Gets the number of bytes of files prefetched.
+     * @return The byte count
+     */
+    public synchronized long getPrefetchedBytes() {
+        return prefetchedBytes;
+    }
+
+    /**
+     * Gets the number of prefetched files the client then asked for.
+     * @return The hit count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of bytes of prefetched files the client then asked for.
+     * @return The byte count
+     */
+    public synchronized long getHitBytes() {
+        return hitBytes;
+    }
+
+    /**
+     * Gets the number of predicted files the client asked for before they were loaded.
+     * @return The late prediction count
+     */
+    public synchronized long getLate() {
+        return late;
+    }
+
+    /**
+     * Gets the number of prefetched files the client never asked for.
+     * @return The wasted prefetch count
+     */
+    public synchronized long getWasted() {
+        return wasted;
+    }
+
+    /**
+     * Gets the number of bytes loaded for files the client never asked for.
+     * @return The wasted byte count
+     */
+    public synchronized long getWastedBytes() {
+        return wastedBytes;
+    }
+
+    /**
+     * Gets the number of predictions dropped as the prefetch queue was full.
+     * @return The dropped prediction count
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Gets the share of settled prefetches the client asked for.
+     * @return The accuracy, between 0 and 1
+     */
+    public synchronized double getAccuracy() {
+        long settled = hits + wasted;
+        return settled == 0 ? 0 : (double) hits / settled;
+    }
+
+    /**
+     * The files that followed one file in one class of clients, and how often.
+     */
+    private static final class Transitions {
+        private final Map<String, Integer> next = new HashMap<>();
+        private int total;
+    }
+
+    /**
+     * The requests of one client since its last pause.
+     */
+    private static final class Sequence {
+        private final String entry;
+        // Predicted files not asked for yet, with their size once loaded
+        private final Map<String, Long> pending = new HashMap<>();
+        private String last;
+        private long lastAt;
+        private boolean ended;
+
+        Sequence(String entry) {
+            this.entry = entry;
+            this.last = entry;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.networkcourse.tftp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A layout that spreads files over a two-level tree of hashed directories, so no
+ * directory of a very large upload area holds more than a small share of its files.
+ *
+ * A file is kept at {@code .sharded/xx/yy/name} under the root, where xx and yy are
+ * two bytes of a hash of its name and the name is escaped to one path component. The
+ * 65536 directories are made as files are first uploaded to them.
+ *
+ * The names of all files in the tree are indexed in memory, read from the tree when the
+ * layout is created, so a lookup of a file that does not exist, the common case for
+ * uploads, answers without touching the disk. Files must therefore go into the tree
+ * through the storage or {@link #migrate(Path, Collection)}; files put there by hand
+ * are not found until the server restarts. Files left in the root outside the tree are
+ * not served; {@link #main(String[])} moves them in, while the server is stopped.
+ * All methods are thread-safe.
+ */
+public class ShardedLayout implements FileSystemStorage.Layout {
+    private static final Logger LOGGER = Logger.getLogger(ShardedLayout.class.getName());
+
+    public static final String TREE_DIRECTORY = ".sharded";
+    private static final HexFormat HEX = HexFormat.of();
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final Path tree;
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    // Shard directories known to exist, so creating a file costs no directory checks
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a sharded layout, indexing the files already in its tree.
+     *
+     * @param root The root directory of the storage
+     * @throws IOException If the tree cannot be created or read
+     */
+    public ShardedLayout(Path root) throws IOException {
+        Path rootPath = root.toAbsolutePath().normalize();
+        this.tree = rootPath.resolve(TREE_DIRECTORY);
+        Files.createDirectories(tree);
+
+        long start = System.nanoTime();
+        Files.walkFileTree(tree, EnumSet.noneOf(FileVisitOption.class), 3,
+                new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                        directories.add(directory);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        String fileName = file.getFileName().toString();
+                        if (attributes.isRegularFile() && tree.relativize(file).getNameCount() == 3
+                                && !fileName.startsWith(".")) {
+                            // Names starting with a dot are unfinished uploads
+                            names.add(decode(fileName));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        LOGGER.info("Indexed " + names.size() + " files in " + tree + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(rootPath)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry) && !entry.getFileName().toString().startsWith(".")) {
+                    LOGGER.warning("Files in " + rootPath + " outside " + TREE_DIRECTORY + ", such as "
+                            + entry.getFileName() + ", are not served; move them in with "
+                            + ShardedLayout.class.getName());
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Path resolve(String name) {
+        return locate(tree, key(name));
+    }
+
+    @Override
+    public boolean isKnownMissing(String name) {
+        return !names.contains(key(name));
+    }
+
+    @Override
+    public Path creationDirectory(Path path) {
+        // Shard directories are made on demand, so the tree decides what can be created
+        return tree;
+    }
+
+    @Override
+    public void prepare(Path path) throws IOException {
+        Path directory = path.getParent();
+        if (!directories.contains(directory)) {
+            Files.createDirectories(directory);
+            directories.add(directory);
+        }
+    }
+
+    @Override
+    public void committed(String name) {
+        names.add(key(name));
+    }
+
+    /**
+     * Gets the number of files in the tree.
+     * @return The file count
+     */
+    public int getFileCount() {
+        return names.size();
+    }
+
+    /**
+     * Gets the directory the tree is kept in.
+     * @return The tree directory
+     */
+    public Path getTree() {
+        return tree;
+    }
+
+    /**
+     * Normalizes a file name, so every spelling of a path maps to the same file.
+     */
+    private static String key(String name) {
+        if (isNormal(name)) {
+            // Most names are, and are used as they are
+            return name;
+        }
+        String normalized = Paths.get(name).normalize().toString();
+        int start = 0;
+        while (start < normalized.length() && normalized.charAt(start) == '/') {
+            start++;
+        }
+        return normalized.substring(start);
+    }
+
+    /**
+     * Checks that a name has no empty, "." or ".." components.
+     */
+    private static boolean isNormal(String name) {
+        int componentStart = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i < name.length() && name.charAt(i) != '/') {
+                continue;
+            }
+            int length = i - componentStart;
+            if (length == 0 || (name.charAt(componentStart) == '.'
+                    && (length == 1 || (length == 2 && name.charAt(componentStart + 1) == '.')))) {
+                return false;
+            }
+            componentStart = i + 1;
+        }
+        return true;
+    }
+
+    private static Path locate(Path tree, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        // FNV-1a spreads names that share long prefixes, as generated upload names do
+        int hash = FNV_OFFSET;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        return tree.resolve(HEX.toHexDigits((byte) (hash >>> 24)))
+                .resolve(HEX.toHexDigits((byte) (hash >>> 16)))
+                .resolve(encode(bytes));
+    }
+
+    /**
+     * Escapes a name to one path component that does not start with a dot.
+     */
+    private static String encode(byte[] bytes) {
+        StringBuilder encoded = new StringBuilder(bytes.length + 8);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '-' || b == '_' || (b == '.' && i > 0)) {
+                encoded.append((char) b);
+            } else {
+                encoded.append('%').append(HEX.toHexDigits((byte) b));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String decode(String encoded) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length());
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '%' && i + 2 < encoded.length()) {
+                bytes.write(HexFormat.fromHexDigits(encoded, i + 1, i + 3));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Moves the files of a flat directory into its sharded tree. Files and directories
+     * whose names start with a dot (unfinished uploads, the server's own state, the rules
+     * of the virtual files) stay where they are, and so do the files to keep. Directories
+     * emptied by the move are removed.
+     * Must not run while a server is serving the directory.
+     *
+     * @param root The root directory of the storage
+     * @param keep The names of files to leave in place, relative to the root
+     * @return The number of files moved
+     * @throws IOException If the directory cannot be read or a file cannot be moved
+     */
+    public static int migrate(Path root, Collection<String> keep) throws IOException {
+        Path rootPath = root.toAbsolutePath().normalize();
+        Path tree = rootPath.resolve(TREE_DIRECTORY);
+        Files.createDirectories(tree);
+        int[] moved = new int[1];
+
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                // The tree is hidden too
+                boolean hidden = !directory.equals(rootPath) && directory.getFileName().toString().startsWith(".");
+                return hidden ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = rootPath.relativize(file).toString().replace('\\', '/');
+                if (!attributes.isRegularFile() || file.getFileName().toString().startsWith(".")
+                        || keep.contains(name)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path target = locate(tree, key(name));
+                Files.createDirectories(target.getParent());
+                if (Files.exists(target)) {
+                    LOGGER.warning("Not moving " + file + ", " + target + " already exists");
+                    return FileVisitResult.CONTINUE;
+                }
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                moved[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                if (!directory.equals(rootPath)) {
+                    try {
+                        Files.delete(directory);
+                    } catch (DirectoryNotEmptyException notEmpty) {
+                        // Still holds files that stay in place
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return moved[0];
+    }
+
+    /**
+     * Moves the files of a flat directory into its sharded tree.
+     *
+     * @param args The directory, then the names of files to leave in place
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java " + ShardedLayout.class.getName()
+                    + " <directory> [file to leave in place ...]");
+            System.err.println("Files and directories whose names start with a dot always stay in place.");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        try {
+            int moved = migrate(Paths.get(args[0]), List.of(args).subList(1, args.length));
+            System.out.println("Moved " + moved + " files into " + Paths.get(args[0]).resolve(TREE_DIRECTORY)
+                    + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
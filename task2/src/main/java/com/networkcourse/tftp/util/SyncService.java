@@ -0,0 +1,381 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes completed uploads durable before their final block is acknowledged,
+ * according to a durability policy set per server and per path.
+ *
+ * With {@link Policy#ON_CLOSE} the uploading session forces the file and its directory
+ * to disk itself. With {@link Policy#GROUP_COMMIT} uploads that complete within a short
+ * window of each other are forced together by a dedicated sync thread, which syncs each
+ * directory once per batch and lets the file system fold the batch into fewer journal
+ * commits; every session waits only for its own batch. {@link Policy#NONE} leaves the
+ * data to the page cache, as before.
+ *
+ * An upload written to a temporary file is published (renamed into place) between the
+ * two steps, after its data is on disk and before its directory is synced, so the name
+ * never points at data that could still be lost.
+ * All methods are thread-safe.
+ */
+public class SyncService {
+    private static final Logger LOGGER = Logger.getLogger(SyncService.class.getName());
+
+    public static final long DEFAULT_GROUP_WINDOW_MICROS = 2_000;
+    // Most uploads forced in one batch
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * How durable an upload must be before its final block is acknowledged.
+     */
+    public enum Policy {
+        NONE, ON_CLOSE, GROUP_COMMIT
+    }
+
+    /**
+     * Makes a completed upload visible under its final name.
+     */
+    public interface Publisher {
+        /**
+         * Publishes the upload.
+         *
+         * @throws IOException If the upload could not be published
+         */
+        void publish() throws IOException;
+    }
+
+    private final long groupWindowNanos;
+    private final LinkedBlockingQueue<SyncRequest> queue = new LinkedBlockingQueue<>();
+    private final Thread syncThread;
+    // Changed and checked before queueing under the queue's lock, so nothing is queued
+    // once the sync thread has released the last waiters
+    private volatile boolean running = true;
+
+    // Guarded by this
+    private Policy defaultPolicy;
+    private final Map<String, Policy> pathPolicies = new LinkedHashMap<>();
+
+    private final LongAdder[] uploads = newAdders();
+    private final LongAdder[] bytes = newAdders();
+    private final LongAdder[] syncNanos = newAdders();
+    private final LongAdder[] transferNanos = newAdders();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedUploads = new LongAdder();
+    private volatile int maxBatchSize;
+
+    /**
+     * Creates a new sync service with the default group commit window.
+     *
+     * @param defaultPolicy The policy for paths without a policy of their own
+     */
+    public SyncService(Policy defaultPolicy) {
+        this(defaultPolicy, DEFAULT_GROUP_WINDOW_MICROS);
+    }
+
+    /**
+     * Creates a new sync service.
+     *
+     * @param defaultPolicy The policy for paths without a policy of their own
+     * @param groupWindowMicros How long the sync thread gathers uploads into a batch, in microseconds
+     */
+    public SyncService(Policy defaultPolicy, long groupWindowMicros) {
+        this.defaultPolicy = defaultPolicy;
+        this.groupWindowNanos = groupWindowMicros * 1_000L;
+        this.syncThread = new Thread(this::syncLoop, "tftp-group-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Policy.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Sets the policy for paths without a policy of their own.
+     *
+     * @param policy The default policy
+     */
+    public synchronized void setDefaultPolicy(Policy policy) {
+        this.defaultPolicy = policy;
+    }
+
+    /**
+     * Sets the policy for the files whose requested names start with a prefix.
+     * The longest matching prefix wins.
+     *
+     * @param prefix The file name prefix, relative to the served directory
+     * @param policy The policy
+     */
+    public synchronized void setPolicy(String prefix, Policy policy) {
+        pathPolicies.put(prefix, policy);
+    }
+
+    /**
+     * Gets the policy that applies to a file.
+     *
+     * @param filename The requested file name, relative to the served directory
+     * @return The policy
+     */
+    public synchronized Policy policyFor(String filename) {
+        Policy policy = defaultPolicy;
+        int matched = -1;
+        for (Map.Entry<String, Policy> rule : pathPolicies.entrySet()) {
+            String prefix = rule.getKey();
+            if (prefix.length() > matched && filename.startsWith(prefix)) {
+                policy = rule.getValue();
+                matched = prefix.length();
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Publishes a completed upload, made as durable as its policy asks, and waits until it is.
+     * The file must be completely written before this is called.
+     *
+     * @param channel The channel of the uploaded file
+     * @param file The final path of the uploaded file
+     * @param policy The policy for the file
+     * @param publisher Makes the file visible under its final path
+     * @param uploadedBytes The size of the upload
+     * @param startedAt When the upload started, as a {@link System#nanoTime()} value
+     * @throws IOException If the file could not be forced to disk or published
+     */
+    public void commit(FileChannel channel, Path file, Policy policy, Publisher publisher,
+                       long uploadedBytes, long startedAt) throws IOException {
+        long start = System.nanoTime();
+        switch (policy) {
+            case ON_CLOSE:
+                channel.force(true);
+                publisher.publish();
+                forceDirectory(file.toAbsolutePath().getParent());
+                break;
+            case GROUP_COMMIT:
+                SyncRequest request = new SyncRequest(channel, file.toAbsolutePath().getParent(), publisher);
+                synchronized (queue) {
+                    if (!running) {
+                        throw new IOException("Sync service has been shut down");
+                    }
+                    queue.add(request);
+                }
+                request.await();
+                break;
+            default:
+                publisher.publish();
+                break;
+        }
+        long end = System.nanoTime();
+
+        int level = policy.ordinal();
+        uploads[level].increment();
+        bytes[level].add(uploadedBytes);
+        syncNanos[level].add(end - start);
+        transferNanos[level].add(end - startedAt);
+    }
+
+    /**
+     * Gathers uploads into batches and forces each batch; runs on the sync thread.
+     */
+    private void syncLoop() {
+        List<SyncRequest> batch = new ArrayList<>();
+        Set<Path> directories = new HashSet<>();
+        while (running) {
+            try {
+                SyncRequest first = queue.take();
+                batch.add(first);
+
+                // Gather whatever else completes within the window
+                long deadline = System.nanoTime() + groupWindowNanos;
+                while (batch.size() < MAX_BATCH) {
+                    long remaining = deadline - System.nanoTime();
+                    SyncRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (SyncRequest request : batch) {
+                try {
+                    request.channel.force(true);
+                    request.publisher.publish();
+                    directories.add(request.directory);
+                } catch (IOException e) {
+                    request.error = e;
+                } catch (RuntimeException e) {
+                    // Fails this upload only; the thread goes on serving the others
+                    request.error = new IOException("Cannot publish an upload to " + request.directory, e);
+                }
+            }
+            // One directory sync covers every new name in it
+            for (Path directory : directories) {
+                forceDirectory(directory);
+            }
+
+            batches.increment();
+            batchedUploads.add(batch.size());
+            maxBatchSize = Math.max(maxBatchSize, batch.size());
+            for (SyncRequest request : batch) {
+                request.complete();
+            }
+            batch.clear();
+            directories.clear();
+        }
+
+        // Release anyone still waiting
+        for (SyncRequest request : batch) {
+            request.fail();
+        }
+        synchronized (queue) {
+            running = false;
+            SyncRequest request;
+            while ((request = queue.poll()) != null) {
+                request.fail();
+            }
+        }
+    }
+
+    /**
+     * Forces a directory to disk, so the entries of new files in it survive a crash.
+     * Not every platform can open a directory; there the directory is left as it is.
+     */
+    private static void forceDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot sync directory " + directory, e);
+        }
+    }
+
+    /**
+     * Gets the number of uploads completed under a policy.
+     * @param policy The policy
+     * @return The upload count
+     */
+    public long getUploads(Policy policy) {
+        return uploads[policy.ordinal()].sum();
+    }
+
+    /**
+     * Gets the average time uploads under a policy waited to be made durable.
+     * @param policy The policy
+     * @return The average sync latency in milliseconds
+     */
+    public double getAverageSyncMillis(Policy policy) {
+        long count = uploads[policy.ordinal()].sum();
+        return count == 0 ? 0 : syncNanos[policy.ordinal()].sum() / 1e6 / count;
+    }
+
+    /**
+     * Gets the upload throughput under a policy, from the start of each upload to its final acknowledgement.
+     * @param policy The policy
+     * @return The throughput in bytes per second
+     */
+    public double getThroughput(Policy policy) {
+        long nanos = transferNanos[policy.ordinal()].sum();
+        return nanos == 0 ? 0 : bytes[policy.ordinal()].sum() * 1e9 / nanos;
+    }
+
+    /**
+     * Gets the number of group commit batches forced.
+     * @return The batch count
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Gets the average number of uploads in a group commit batch.
+     * @return The average batch size
+     */
+    public double getAverageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) batchedUploads.sum() / count;
+    }
+
+    /**
+     * Gets the largest number of uploads forced in one group commit batch.
+     * @return The maximum batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Stops the sync thread. Uploads still waiting for a group commit fail.
+     */
+    public void shutdown() {
+        synchronized (queue) {
+            running = false;
+        }
+        syncThread.interrupt();
+    }
+
+    /**
+     * An upload waiting for its batch to be forced.
+     */
+    private static final class SyncRequest {
+        private final FileChannel channel;
+        private final Path directory;
+        private final Publisher publisher;
+        private boolean done;
+        private IOException error;
+
+        SyncRequest(FileChannel channel, Path directory, Publisher publisher) {
+            this.channel = channel;
+            this.directory = directory;
+            this.publisher = publisher;
+        }
+
+        synchronized void complete() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            if (!done) {
+                error = new IOException("Sync service has been shut down");
+            }
+            complete();
+        }
+
+        synchronized void await() throws IOException {
+            try {
+                while (!done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the group commit");
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
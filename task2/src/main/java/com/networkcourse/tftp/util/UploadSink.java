@@ -0,0 +1,332 @@
+package com.networkcourse.tftp.util;
+
+import com.networkcourse.tftp.common.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind sink for one upload.
+ * Received blocks are gathered into large buffers, and each full buffer is written
+ * to the file by the write-behind service's threads with a single positional write,
+ * so the receive loop makes no write call per block and never waits for the disk
+ * unless the upload has a full queue of buffers still to be written.
+ *
+ * Every buffer but the last is full, so every write starts at a multiple of the
+ * buffer size. {@link #finish()} writes out what is left and waits until all of it
+ * is on the file, so the final block is only acknowledged once the upload is complete.
+ *
+ * If the service is sparse-aware, chunks of a buffer that are all zeros are not written
+ * but skipped over, leaving holes in the file that read back as zeros; this relies on
+ * the file being new. {@link #finish()} extends the file to its full size if it ends in a hole.
+ * The session side of a sink is not thread-safe.
+ */
+public class UploadSink implements Closeable {
+    // Granularity of hole detection; a multiple of the usual file system block size,
+    // so that skipped chunks can become real holes
+    static final int SPARSE_CHUNK_SIZE = 4096;
+
+    private final WriteBehindService service;
+    private final FileChannel channel;
+    private final BufferPool bufferPool;
+    private final int queueDepth;
+    private final boolean sparse;
+    private final Runnable flushTask = this::flush;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // Only touched by the session
+    private ByteBuffer current;
+
+    // Guarded by lock
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private long filePosition;
+    private boolean flushing;
+    private boolean closed;
+    private IOException error;
+
+    UploadSink(WriteBehindService service, FileChannel channel, BufferPool bufferPool,
+               int queueDepth, boolean sparse) {
+        this.service = service;
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.queueDepth = queueDepth;
+        this.sparse = sparse;
+    }
+
+    /**
+     * Adds a block to the upload.
+     * Copies everything between the block's position and limit, leaving the position at the limit.
+     *
+     * @param block The block of data
+     * @throws IOException If an earlier write failed
+     */
+    public void write(ByteBuffer block) throws IOException {
+        while (block.hasRemaining()) {
+            if (current == null) {
+                current = bufferPool.acquire();
+            }
+
+            int length = Math.min(block.remaining(), current.remaining());
+            int limit = block.limit();
+            block.limit(block.position() + length);
+            current.put(block);
+            block.limit(limit);
+
+            if (!current.hasRemaining()) {
+                enqueue();
+            }
+        }
+    }
+
+    /**
+     * Writes out the rest of the upload and waits until everything is on the file.
+     *
+     * @throws IOException If a write failed
+     */
+    public void finish() throws IOException {
+        if (current != null && current.position() > 0) {
+            enqueue();
+        }
+
+        long length;
+        lock.lock();
+        try {
+            while ((flushing || !queue.isEmpty()) && error == null) {
+                changed.await();
+            }
+            if (error != null) {
+                throw error;
+            }
+            length = filePosition;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload to be written");
+        } finally {
+            lock.unlock();
+        }
+
+        // A file that ends in a hole is only as long as its last write; write its last byte
+        if (channel.size() < length) {
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            while (lastByte.hasRemaining()) {
+                channel.write(lastByte, length - 1);
+            }
+        }
+    }
+
+    /**
+     * Hands the current buffer to the write threads, waiting while the queue is full.
+     */
+    private void enqueue() throws IOException {
+        ByteBuffer buffer = current;
+        current = null;
+        buffer.flip();
+
+        lock.lock();
+        try {
+            if (queue.size() >= queueDepth && error == null) {
+                // The disk is behind the network: hold the receive loop back
+                service.stalls.increment();
+                while (queue.size() >= queueDepth && error == null) {
+                    changed.await();
+                }
+            }
+            if (error != null) {
+                bufferPool.release(buffer);
+                throw error;
+            }
+            queue.add(buffer);
+            service.queuedBuffers.incrementAndGet();
+            scheduleFlush();
+        } catch (InterruptedException e) {
+            bufferPool.release(buffer);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write queue");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops writing and returns the buffers to the pool.
+     * Waits for a write in progress to finish; anything not yet written by
+     * {@link #finish()} is discarded.
+     */
+    @Override
+    public void close() {
+        bufferPool.release(current);
+        current = null;
+
+        lock.lock();
+        try {
+            closed = true;
+            while (flushing) {
+                changed.awaitUninterruptibly();
+            }
+            discardQueue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes queued buffers until the queue is empty; runs on a write thread.
+     */
+    private void flush() {
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                long position;
+                lock.lock();
+                try {
+                    if (closed || queue.isEmpty()) {
+                        flushing = false;
+                        changed.signalAll();
+                        return;
+                    }
+                    buffer = queue.peek();
+                    position = filePosition;
+                } finally {
+                    lock.unlock();
+                }
+
+                long start = System.nanoTime();
+                int length = buffer.remaining();
+                long skipped = sparse ? writeSparse(buffer, position) : write(buffer, position);
+                position += length;
+                service.flushNanos.add(System.nanoTime() - start);
+                service.flushes.increment();
+                service.bytesFlushed.add(length - skipped);
+                service.bytesSkipped.add(skipped);
+
+                lock.lock();
+                try {
+                    queue.poll();
+                    service.queuedBuffers.decrementAndGet();
+                    filePosition = position;
+                    bufferPool.release(buffer);
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Write-behind failed", e));
+        }
+    }
+
+    /**
+     * Writes a buffer at a position of the file.
+     *
+     * @return The number of bytes skipped, always 0
+     */
+    private long write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return 0;
+    }
+
+    /**
+     * Writes a buffer at a position of the file, skipping the chunks that are all zeros.
+     *
+     * @return The number of bytes skipped
+     */
+    private long writeSparse(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int runStart = -1;
+        long skipped = 0;
+
+        for (int chunk = start; chunk < end; chunk += SPARSE_CHUNK_SIZE) {
+            int chunkEnd = Math.min(chunk + SPARSE_CHUNK_SIZE, end);
+            if (isZero(buffer, chunk, chunkEnd)) {
+                if (runStart >= 0) {
+                    writeRange(buffer, runStart, chunk, position - start);
+                    runStart = -1;
+                }
+                skipped += chunkEnd - chunk;
+            } else if (runStart < 0) {
+                runStart = chunk;
+            }
+        }
+        if (runStart >= 0) {
+            writeRange(buffer, runStart, end, position - start);
+        }
+        return skipped;
+    }
+
+    /**
+     * Writes part of a buffer; the byte at index i goes to file position base + i.
+     */
+    private void writeRange(ByteBuffer buffer, int from, int to, long base) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(to).position(from);
+        write(buffer, base + from);
+        buffer.limit(limit);
+    }
+
+    /**
+     * Checks whether part of a buffer is all zeros, a long at a time.
+     */
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            error = e;
+            flushing = false;
+            discardQueue();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discardQueue() {
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            service.queuedBuffers.decrementAndGet();
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushing || closed) {
+            return;
+        }
+        flushing = true;
+        try {
+            service.execute(flushTask);
+        } catch (RejectedExecutionException e) {
+            flushing = false;
+            error = new IOException("Write-behind has been shut down");
+            discardQueue();
+            changed.signalAll();
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.networkcourse.tftp.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Files that do not exist anywhere but are rendered from a template for each request,
+ * such as the per-MAC pxelinux.cfg/01-xx-xx-xx-xx-xx-xx files every booting client asks for.
+ *
+ * Rules map name patterns to templates. A pattern is a file name in which * stands for
+ * any run of characters and ? for any one character, neither matching a '/'. When
+ * several rules match, the one added first wins. All patterns are compiled together
+ * into one character trie, which a name is run through once whatever the number of
+ * rules, so matching costs the same for ten rules as for ten thousand.
+ *
+ * A template is text with placeholders, parsed once when its rule is added:
+ * ${name} is the requested name, ${ip} the client's address, ${ip.hex} the address in
+ * upper-case hex as pxelinux spells it, and ${1}, ${2}, ... the parts of the name matched
+ * by the pattern's wildcards, in order. Rendered files are kept in an LRU cache bounded
+ * in bytes, keyed by rule and name, and by client address if the template uses it.
+ * All methods are thread-safe.
+ */
+public class VirtualFiles {
+    public static final long DEFAULT_CACHE_BYTES = 16L << 20;
+
+    private final long cacheCapacityBytes;
+    private volatile Compiled compiled = new Compiled(new ArrayList<>());
+
+    // Guarded by cache
+    private final LinkedHashMap<String, MemoryFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder matchNanos = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder hitNanos = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder missNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+
+    /**
+     * Creates an empty rule set with the default cache size.
+     */
+    public VirtualFiles() {
+        this(DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Creates an empty rule set.
+     *
+     * @param cacheCapacityBytes The most bytes of rendered files to keep
+     */
+    public VirtualFiles(long cacheCapacityBytes) {
+        this.cacheCapacityBytes = cacheCapacityBytes;
+    }
+
+    /**
+     * Adds rules from a file of lines of the form "pattern template-file".
+     * Blank lines and lines starting with # are ignored; template files are
+     * relative to the directory of the rules file.
+     *
+     * @param rulesFile The rules file
+     * @throws IOException If a file cannot be read
+     * @throws IllegalArgumentException If a line or a template is malformed
+     */
+    public void load(Path rulesFile) throws IOException {
+        Path directory = rulesFile.toAbsolutePath().getParent();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(rulesFile, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException(rulesFile + ":" + lineNumber + ": expected a pattern and a template file");
+            }
+            addRule(fields[0], new String(Files.readAllBytes(directory.resolve(fields[1])), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Adds a rule after the existing ones and recompiles the rule set.
+     *
+     * @param pattern The name pattern
+     * @param template The template text
+     * @throws IllegalArgumentException If the template has an unknown placeholder
+     */
+    public synchronized void addRule(String pattern, String template) {
+        List<Rule> rules = new ArrayList<>(compiled.rules);
+        rules.add(new Rule(rules.size(), pattern, Template.parse(template)));
+        compiled = new Compiled(rules);
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    /**
+     * Checks whether a name is a virtual file, without rendering it.
+     *
+     * @param name The requested name
+     * @return true if a rule matches the name
+     */
+    public boolean matches(String name) {
+        return compiled.match(name) != null;
+    }
+
+    /**
+     * Gets the virtual file for a request, rendering it unless it is cached.
+     *
+     * @param name The requested name
+     * @param client The address of the requesting client
+     * @return A handle on the rendered file, or null if no rule matches the name
+     */
+    public Storage.ReadHandle open(String name, InetAddress client) {
+        long start = System.nanoTime();
+        Compiled current = compiled;
+        Rule rule = current.match(name);
+        long matched = System.nanoTime();
+        lookups.increment();
+        matchNanos.add(matched - start);
+        if (rule == null) {
+            return null;
+        }
+
+        String key = rule.index + "\n" + name + (rule.template.usesClient ? "\n" + client.getHostAddress() : "");
+        MemoryFile file;
+        synchronized (cache) {
+            file = cache.get(key);
+        }
+        if (file != null) {
+            hits.increment();
+            hitNanos.add(System.nanoTime() - start);
+            return file;
+        }
+
+        byte[] contents = rule.template.render(name, rule.captures(name), client).getBytes(StandardCharsets.UTF_8);
+        file = new MemoryFile(ByteBuffer.wrap(contents), System.currentTimeMillis());
+        long rendered = System.nanoTime();
+        renderNanos.add(rendered - matched);
+
+        synchronized (cache) {
+            // Rules changed while rendering; do not cache a rendering of the old rules
+            if (current == compiled && cache.put(key, file) == null) {
+                cachedBytes += contents.length;
+                evict();
+            }
+        }
+        misses.increment();
+        missNanos.add(System.nanoTime() - start);
+        return file;
+    }
+
+    private void evict() {
+        Iterator<MemoryFile> eldest = cache.values().iterator();
+        while (cachedBytes > cacheCapacityBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Gets the number of rules.
+     * @return The rule count
+     */
+    public int getRuleCount() {
+        return compiled.rules.size();
+    }
+
+    /**
+     * Gets the number of lookups, whether or not a rule matched.
+     * @return The lookup count
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Gets the average time it took to match a name against the rules.
+     * @return The average match latency in microseconds
+     */
+    public double getAverageMatchMicros() {
+        long count = lookups.sum();
+        return count == 0 ? 0 : matchNanos.sum() / 1e3 / count;
+    }
+
+    /**
+     * Gets the number of virtual files served from the cache.
+     * @return The hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of virtual files that had to be rendered.
+     * @return The miss count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the fraction of virtual files served from the cache.
+     * @return The hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        long total = hits.sum() + misses.sum();
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    /**
+     * Gets the average time it took to serve a virtual file from the cache, matching included.
+     * @return The average hit latency in microseconds
+     */
+    public double getAverageHitMicros() {
+        long count = hits.sum();
+        return count == 0 ? 0 : hitNanos.sum() / 1e3 / count;
+    }
+
+    /**
+     * Gets the average time it took to serve a virtual file that was not cached, matching
+     * and rendering included.
+     * @return The average miss latency in microseconds
+     */
+    public double getAverageMissMicros() {
+        long count = misses.sum();
+        return count == 0 ? 0 : missNanos.sum() / 1e3 / count;
+    }
+
+    /**
+     * Gets the average time it took to render a template.
+     * @return The average render latency in microseconds
+     */
+    public double getAverageRenderMicros() {
+        long count = misses.sum();
+        return count == 0 ? 0 : renderNanos.sum() / 1e3 / count;
+    }
+
+    /**
+     * Gets the size of the rendered files in the cache.
+     * @return The size in bytes
+     */
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * A rule set compiled into a trie; never changes once built.
+     *
+     * Each node is a position in one or more patterns. Literal characters and ? are
+     * edges to the next node; a * is a node of its own that loops on any character
+     * but '/' and can also be passed over without consuming one. A name is matched
+     * by following every edge it allows at once, so each character costs a step per
+     * live node, and the number of live nodes depends on how the patterns overlap,
+     * not on how many there are.
+     */
+    private static final class Compiled {
+        private final List<Rule> rules;
+        private final Node root = new Node(false);
+
+        Compiled(List<Rule> rules) {
+            this.rules = rules;
+            for (Rule rule : rules) {
+                insert(rule);
+            }
+        }
+
+        private void insert(Rule rule) {
+            Node node = root;
+            for (char c : rule.pattern.toCharArray()) {
+                if (c == '*') {
+                    if (node.star == null) {
+                        node.star = new Node(true);
+                    }
+                    node = node.star;
+                } else if (c == '?') {
+                    if (node.any == null) {
+                        node.any = new Node(false);
+                    }
+                    node = node.any;
+                } else {
+                    node = node.children.computeIfAbsent(c, key -> new Node(false));
+                }
+            }
+            // The first rule added for a pattern wins
+            if (node.rule == null) {
+                node.rule = rule;
+            }
+        }
+
+        Rule match(String name) {
+            List<Node> live = new ArrayList<>();
+            List<Node> next = new ArrayList<>();
+            enter(root, live);
+
+            for (int i = 0; i < name.length() && !live.isEmpty(); i++) {
+                char c = name.charAt(i);
+                for (Node node : live) {
+                    Node child = node.children.get(c);
+                    if (child != null) {
+                        enter(child, next);
+                    }
+                    if (c != '/') {
+                        if (node.any != null) {
+                            enter(node.any, next);
+                        }
+                        if (node.looping) {
+                            enter(node, next);
+                        }
+                    }
+                }
+                List<Node> swap = live;
+                live = next;
+                next = swap;
+                next.clear();
+            }
+
+            Rule best = null;
+            for (Node node : live) {
+                if (node.rule != null && (best == null || node.rule.index < best.index)) {
+                    best = node.rule;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Adds a node to a set of live nodes, and the * nodes that can be reached from it
+         * without consuming a character.
+         */
+        private static void enter(Node node, List<Node> nodes) {
+            while (node != null && !nodes.contains(node)) {
+                nodes.add(node);
+                node = node.star;
+            }
+        }
+    }
+
+    /**
+     * A position in the trie.
+     */
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private final boolean looping;
+        private Node any;
+        private Node star;
+        private Rule rule;
+
+        Node(boolean looping) {
+            this.looping = looping;
+        }
+    }
+
+    /**
+     * A pattern and its template.
+     */
+    private static final class Rule {
+        private final int index;
+        private final String pattern;
+        private final Template template;
+
+        Rule(int index, String pattern, Template template) {
+            this.index = index;
+            this.pattern = pattern;
+            this.template = template;
+        }
+
+        /**
+         * Gets the parts of a matching name covered by the pattern's wildcards.
+         */
+        List<String> captures(String name) {
+            List<String> captures = new ArrayList<>();
+            capture(0, name, 0, captures);
+            return captures;
+        }
+
+        private boolean capture(int p, String name, int n, List<String> captures) {
+            if (p == pattern.length()) {
+                return n == name.length();
+            }
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                // Shortest run first; a * never spans a '/'
+                int size = captures.size();
+                for (int end = n; end <= name.length(); end++) {
+                    captures.add(name.substring(n, end));
+                    if (capture(p + 1, name, end, captures)) {
+                        return true;
+                    }
+                    captures.subList(size, captures.size()).clear();
+                    if (end < name.length() && name.charAt(end) == '/') {
+                        break;
+                    }
+                }
+                return false;
+            }
+            if (n == name.length()) {
+                return false;
+            }
+            if (c == '?') {
+                if (name.charAt(n) == '/') {
+                    return false;
+                }
+                captures.add(name.substring(n, n + 1));
+                if (capture(p + 1, name, n + 1, captures)) {
+                    return true;
+                }
+                captures.remove(captures.size() - 1);
+                return false;
+            }
+            return c == name.charAt(n) && capture(p + 1, name, n + 1, captures);
+        }
+    }
+
+    /**
+     * A template parsed into literal text and placeholders.
+     */
+    private static final class Template {
+        private static final int LITERAL = 0;
+        private static final int NAME = 1;
+        private static final int IP = 2;
+        private static final int IP_HEX = 3;
+        private static final int CAPTURE = 4;
+
+        private final int[] kinds;
+        private final String[] literals;
+        private final int[] groups;
+        private final boolean usesClient;
+
+        private Template(List<Integer> kinds, List<String> literals, List<Integer> groups) {
+            this.kinds = kinds.stream().mapToInt(Integer::intValue).toArray();
+            this.literals = literals.toArray(new String[0]);
+            this.groups = groups.stream().mapToInt(Integer::intValue).toArray();
+            this.usesClient = kinds.contains(IP) || kinds.contains(IP_HEX);
+        }
+
+        static Template parse(String text) {
+            List<Integer> kinds = new ArrayList<>();
+            List<String> literals = new ArrayList<>();
+            List<Integer> groups = new ArrayList<>();
+            int position = 0;
+            while (position < text.length()) {
+                int open = text.indexOf("${", position);
+                int close = open < 0 ? -1 : text.indexOf('}', open);
+                if (open < 0 || close < 0) {
+                    open = close = text.length();
+                }
+                if (open > position) {
+                    kinds.add(LITERAL);
+                    literals.add(text.substring(position, open));
+                    groups.add(0);
+                }
+                if (open == text.length()) {
+                    break;
+                }
+
+                String placeholder = text.substring(open + 2, close);
+                int group = 0;
+                if (placeholder.equals("name")) {
+                    kinds.add(NAME);
+                } else if (placeholder.equals("ip")) {
+                    kinds.add(IP);
+                } else if (placeholder.equals("ip.hex")) {
+                    kinds.add(IP_HEX);
+                } else if (placeholder.matches("[1-9][0-9]*")) {
+                    kinds.add(CAPTURE);
+                    group = Integer.parseInt(placeholder);
+                } else {
+                    throw new IllegalArgumentException("Unknown placeholder ${" + placeholder + "}");
+                }
+                literals.add(null);
+                groups.add(group);
+                position = close + 1;
+            }
+            return new Template(kinds, literals, groups);
+        }
+
+        String render(String name, List<String> captures, InetAddress client) {
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < kinds.length; i++) {
+                switch (kinds[i]) {
+                    case LITERAL:
+                        out.append(literals[i]);
+                        break;
+                    case NAME:
+                        out.append(name);
+                        break;
+                    case IP:
+                        out.append(client.getHostAddress());
+                        break;
+                    case IP_HEX:
+                        for (byte b : client.getAddress()) {
+                            out.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+                            out.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+                        }
+                        break;
+                    default:
+                        // A wildcard the name did not have renders as nothing
+                        if (groups[i] <= captures.size()) {
+                            out.append(captures.get(groups[i] - 1));
+                        }
+                        break;
+                }
+            }
+            return out.toString();
+        }
+    }
+}